@@ -0,0 +1,188 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Batch runner for IR1Interp.
+//
+// Usage: java IR1Batch [-j <threads> | -v] [interp options] <file.ir> ...
+//
+// (Programs in binary form, <file.irb>, are read with ir.IR1Bin.)
+//
+// Runs all the programs in one JVM, each on its own IR1Interp instance
+// (with its own output buffer), concurrently on a fixed thread pool of
+// the given size (default: one thread per processor), or with -v on
+// virtual threads (Java 21 and later). Interp options (--engine=code,
+// --jit, ...) apply to every program.
+//
+// Like the 'run' script, each program's output is compared with its
+// .out.ref file (ignoring whitespace, as 'diff -w' does); a program that
+// differs gets its output saved in a .out file. Prints one line per
+// program, in the order given, with its wall time, then a summary.
+//
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ir.*;
+
+class IR1Batch {
+
+  // -- One program's run
+  //
+  static class Job implements Callable<Job> {
+    String file;
+    IR1.Program program;
+    String[] options;
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    long time;			// in ns
+    Throwable error;
+    String trace;		// with --trace, if it failed
+
+    Job(String file, IR1.Program program, String[] options) {
+      this.file = file;
+      this.program = program;
+      this.options = options;
+    }
+
+    public Job call() {
+      IR1Interp interp = new IR1Interp();
+      for (String opt: options)
+	interp.option(opt);
+      interp.stdout = output;
+      long t0 = System.nanoTime();
+      try {
+	interp.execute(program);
+      } catch (Throwable e) {
+	error = e;
+	if (interp.trace != null)
+	  trace = interp.trace.dump(interp.envs);
+      }
+      time = System.nanoTime() - t0;
+      return this;
+    }
+  }
+
+  public static void main(String [] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean virtual = false;
+    List<String> options = new ArrayList<String>();
+    List<String> files = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-j"))
+	threads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-v"))
+	virtual = true;
+      else if (args[i].startsWith("--")) {
+	if (!new IR1Interp().option(args[i])) {
+	  System.out.println("Unknown option: " + args[i]);
+	  return;
+	}
+	options.add(args[i]);
+      } else
+	files.add(args[i]);
+    }
+    IR1Interp check = new IR1Interp();
+    for (String opt: options)
+      check.option(opt);
+    String error = check.lazy ? "IR1Batch loads programs whole (no --lazy)."
+      : check.checkOptions();
+    if (error != null) {
+      System.out.println(error);
+      return;
+    }
+    if (files.isEmpty()) {
+      System.out.println("You must provide an input file name.");
+      return;
+    }
+
+    // The parser is static, so programs are parsed one at a time here
+    long t0 = System.nanoTime();
+    List<Job> jobs = new ArrayList<Job>();
+    for (String file: files) {
+      IR1.Program p;
+      if (file.endsWith(".irb"))
+	p = IR1Bin.read(file);
+      else
+	p = IR1Bin.parse(file);
+      jobs.add(new Job(file, p, options.toArray(new String[0])));
+    }
+
+    ExecutorService pool = virtual ? virtualPool()
+      : Executors.newFixedThreadPool(threads);
+    List<Future<Job>> results = new ArrayList<Future<Job>>();
+    for (Job job: jobs)
+      results.add(pool.submit(job));
+    int match = 0, differ = 0, noRef = 0, failed = 0;
+    long total = 0;
+    for (Future<Job> f: results) {
+      Job job = f.get();
+      total += job.time;
+      String base = job.file.replaceFirst("\\.irb?$", "");
+      System.out.printf("%-24s %9.2f ms  ", base + ":", job.time / 1e6);
+      File ref = new File(base + ".out.ref");
+      if (job.error != null) {
+	failed++;
+	System.out.println("failed: " + job.error);
+	if (job.error instanceof IR1Interp.LimitException)
+	  for (String name: ((IR1Interp.LimitException) job.error).stack)
+	    System.out.println("    in " + name);
+	if (job.trace != null)
+	  System.out.print(job.trace);
+      } else if (!ref.canRead()) {
+	noRef++;
+	System.out.println("no ref to compare");
+      } else if (sameOutput(job.output.toByteArray(), readAll(ref))) {
+	match++;
+	System.out.println("matches ref");
+      } else {
+	differ++;
+	FileOutputStream out = new FileOutputStream(base + ".out");
+	job.output.writeTo(out);
+	out.close();
+	System.out.println("differs from ref (see " + base + ".out)");
+      }
+    }
+    pool.shutdown();
+    long wall = System.nanoTime() - t0;
+    System.out.printf("%d programs: %d match, %d differ, %d no ref, %d failed%n",
+		      jobs.size(), match, differ, noRef, failed);
+    System.out.printf("Wall time %.2f ms (sum of program times %.2f ms) on %s%n",
+		      wall / 1e6, total / 1e6,
+		      virtual ? "virtual threads" : threads + " threads");
+  }
+
+  // Virtual-thread executor, if this JVM has them
+  //
+  static ExecutorService virtualPool() throws Exception {
+    try {
+      return (ExecutorService) Executors.class
+	.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException e) {
+      throw new Exception("-v needs virtual threads (Java 21 or later)");
+    }
+  }
+
+  static byte[] readAll(File f) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    byte[] b = in.readAllBytes();
+    in.close();
+    return b;
+  }
+
+  // Same lines, ignoring all whitespace within a line (as 'diff -w')
+  //
+  static boolean sameOutput(byte[] a, byte[] b) {
+    String[] la = new String(a).split("\n", -1);
+    String[] lb = new String(b).split("\n", -1);
+    int na = la.length, nb = lb.length;
+    if (na > 0 && la[na-1].isEmpty()) na--;	// final newline
+    if (nb > 0 && lb[nb-1].isEmpty()) nb--;
+    if (na != nb)
+      return false;
+    for (int i = 0; i < na; i++)
+      if (!la[i].replaceAll("\\s", "").equals(lb[i].replaceAll("\\s", "")))
+	return false;
+    return true;
+  }
+}
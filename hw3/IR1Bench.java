@@ -0,0 +1,120 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Benchmark driver for IR1Interp.
+//
+// Usage: java IR1Bench [-n <runs>] [-limits] [-trace] <file.ir> ...
+//
+// Runs each program under both engines, and under the code engine with
+// the JIT enabled (threshold 1000); after one warm-up run, reports the
+// best wall time and the number of JVM garbage collections triggered
+// per run. Program output is discarded.
+//
+// With -limits, each engine also runs with a step budget and a deadline
+// that the program does not reach (so the clock is read every
+// IR1Interp.CLOCK_STEPS steps), and the row shows the time relative to
+// the run without them.
+//
+// With -trace, the tree engine also runs with --trace=1024, shown the
+// same way.
+//
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import ir.*;
+
+class IR1Bench {
+
+  public static void main(String [] args) throws Exception {
+    int runs = 5;
+    boolean limits = false, trace = false;
+    List<String> files = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-n"))
+	runs = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-limits"))
+	limits = true;
+      else if (args[i].equals("-trace"))
+	trace = true;
+      else
+	files.add(args[i]);
+    }
+    if (files.isEmpty()) {
+      System.out.println("You must provide an input file name.");
+      return;
+    }
+    for (String file: files) {
+      IR1.Program p = IR1Bin.parse(file);
+      System.out.println(file + ":");
+      String[][] engines = { { "tree" }, { "code", "--engine=code" },
+			     { "jit", "--engine=code", "--jit" } };
+      for (String[] e: engines) {
+	String[] opts = Arrays.copyOfRange(e, 1, e.length);
+	List<String> labels = new ArrayList<String>();
+	List<String[]> configs = new ArrayList<String[]>();
+	labels.add(e[0]);
+	configs.add(opts);
+	if (limits) {
+	  String[] lim = Arrays.copyOf(opts, opts.length + 2);
+	  lim[opts.length] = "--budget=" + Long.MAX_VALUE;
+	  lim[opts.length+1] = "--deadline=3600000";
+	  labels.add(e[0] + "+lim");
+	  configs.add(lim);
+	}
+	if (trace && opts.length == 0) {
+	  labels.add(e[0] + "+trace");
+	  configs.add(new String[] { "--trace=1024" });
+	}
+	bench(p, runs, labels.toArray(new String[0]), configs.toArray(new String[0][]));
+      }
+    }
+  }
+
+  // Run 'p' with each set of interpreter options in 'opts' (one run of
+  // each in turn, so that they see the same machine conditions) and
+  // print a one-line summary per set, labeled from 'labels'; each row
+  // after the first shows its change from the first
+  //
+  static void bench(IR1.Program p, int runs, String[] labels, String[]... opts)
+    throws Exception {
+    int n = opts.length;
+    IR1Interp[] interps = new IR1Interp[n];
+    long[] best = new long[n], gcs = new long[n];
+    for (int k = 0; k < n; k++) {
+      interps[k] = new IR1Interp();
+      for (String opt: opts[k])
+	interps[k].option(opt);
+      interps[k].stdout = OutputStream.nullOutputStream();
+      interps[k].execute(p);		// warm-up
+      best[k] = Long.MAX_VALUE;
+    }
+    for (int i = 0; i < runs; i++) {
+      for (int k = 0; k < n; k++) {
+	long gc0 = gcCount();
+	long t0 = System.nanoTime();
+	interps[k].execute(p);
+	best[k] = Math.min(best[k], System.nanoTime() - t0);
+	gcs[k] += gcCount() - gc0;
+      }
+    }
+    for (int k = 0; k < n; k++) {
+      System.out.printf("  %-10s %9.2f ms  %6.1f GCs/run", labels[k],
+			best[k] / 1e6, (double) gcs[k] / runs);
+      if (k > 0)
+	System.out.printf("  %+5.1f%%", 100.0 * (best[k] - best[0]) / best[0]);
+      System.out.println();
+    }
+  }
+
+  // Total collection count over all of the JVM's collectors
+  //
+  static long gcCount() {
+    long n = 0;
+    for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(0, gc.getCollectionCount());
+    return n;
+  }
+}
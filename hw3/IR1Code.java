@@ -0,0 +1,1003 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Compact code engine for IR1.
+//
+// Each IR1.Func is lowered once into a packed int[] stream of opcodes
+// and operands, with var/temp slots, constants, and jump targets all
+// resolved. The interpreter loop then dispatches with a single switch.
+// (Selected with 'IR1Interp --engine=code'.)
+//
+// Values are unboxed: each one is a long with a type tag in the upper
+// half and the payload in the lower 32 bits (see Value Representation),
+// so frames are plain long[] slices and no instruction allocates.
+//
+// Calls do not recurse on the Java stack. Frames live in one contiguous
+// long[] frame stack and activation records in an int[] control stack
+// (see Call Stack), so Call and Return just move pointers, and the
+// recursion depth is bounded only by the frame stack size (--stack=N).
+//
+// The loader also fuses the instruction sequences that IR1Gen/IRGen
+// emit over and over into superinstructions (see Superinstructions),
+// so each such sequence costs one dispatch.
+//
+import java.lang.invoke.*;
+import java.util.*;
+import ir.*;
+
+class IR1Code {
+
+  // One instance per IR1Interp: the string table, the lowered code, the
+  // frame and control stacks, and the engine's settings all live here,
+  // so independent interpreters can run side by side.
+  //
+  final IR1Interp interp;
+
+  IR1Code(IR1Interp interp) {
+    this.interp = interp;
+  }
+
+  //-----------------------------------------------------------------
+  // Instruction Encoding
+  //-----------------------------------------------------------------
+  //
+  // Operand conventions:
+  //  dst    -- frame slot
+  //  src    -- frame slot if >= 0; constant ~src in 'consts' if < 0
+  //  target -- absolute index into 'code'
+  //
+  //  ADD..GE    dst src1 src2      (one opcode per BOP)
+  //  NEG, NOT   dst src
+  //  MOVE       dst src
+  //  LOAD       dst base offset
+  //  STORE      base offset src
+  //  CALL       callee rdst nargs arg0 ... argN-1  (rdst is -1 if absent;
+  //             callee indexes the Code's 'callees')
+  //  MALLOC     dst src            (dst is -1 if absent)
+  //  PRINT      src                (_printInt, _printStr with an arg)
+  //  PRINTLN                       (_printStr with no arg)
+  //  RET        src                (src is NONE if absent)
+  //  JMP        target
+  //  CJEQ..CJGE src1 src2 target   (one opcode per ROP)
+  //  OSRRET                        return 'osrResult' (the last
+  //                                inst of every function; see jump())
+  //
+  // Superinstructions (each does exactly what its sequence does):
+  //
+  //  CBEQ..CBGE dst src1 src2 sense target
+  //             dst = src1 ROP src2; if dst == sense goto target
+  //             (sense is 0 or 1)
+  //  LDX        dst1 dst2 dst3 idx scale base offset
+  //             dst1 = idx * scale; dst2 = base + dst1; 
+  //             dst3 = [dst2 + offset]
+  //  STX        dst1 dst2 idx scale base offset src
+  //             dst1 = idx * scale; dst2 = base + dst1; 
+  //             [dst2 + offset] = src
+  //  MOVE2      dst1 src1 dst2 src2
+  //             dst1 = src1; dst2 = src2
+  //
+  static final int
+    ADD = 0, SUB = 1, MUL = 2, DIV = 3, AND = 4, OR = 5,
+    EQ = 6, NE = 7, LT = 8, LE = 9, GT = 10, GE = 11,
+    NEG = 12, NOT = 13, MOVE = 14, LOAD = 15, STORE = 16,
+    CALL = 17, RET = 18, JMP = 19,
+    CJEQ = 20, CJNE = 21, CJLT = 22, CJLE = 23, CJGT = 24, CJGE = 25,
+    OSRRET = 26,
+    CBEQ = 27, CBNE = 28, CBLT = 29, CBLE = 30, CBGT = 31, CBGE = 32,
+    LDX = 33, STX = 34, MOVE2 = 35,
+    MALLOC = 36, PRINT = 37, PRINTLN = 38;
+
+  static final int NONE = Integer.MIN_VALUE;	// absent operand
+
+  //-----------------------------------------------------------------
+  // Value Representation
+  //-----------------------------------------------------------------
+  //
+  //  bits 63..32 -- tag;  bits 31..0 -- payload
+  //
+  //  INT   payload is the int itself (tag 0, so an int value is just
+  //        its zero-extended bit pattern)
+  //  BOOL  payload is 0 or 1
+  //  STR   payload is an index into the 'strings' side table
+  //  UND   an undefined value: payload 0 is the tree-walker's UndVal
+  //        (an unset heap cell, or a call's missing return value), and
+  //        payload 1 (NUL) its null, the value of a variable not yet
+  //        set (new frames are filled with it) and of an operation the
+  //        tree-walker gives no result for (see interpret())
+  //  PTR   an int that came from _malloc (possibly offset by + or -);
+  //        the flag only matters to the garbage collector, otherwise a
+  //        pointer behaves exactly like its int payload
+  //
+  static final long PAYLOAD = 0xFFFFFFFFL;
+  static final long INT = 0L, BOOL = 1L << 32, STR = 2L << 32, UND = 3L << 32;
+  static final long PTR = 0x10L << 32;
+  static final long TRUE = BOOL | 1, FALSE = BOOL;
+  static final long NUL = UND | 1;
+
+  ArrayList<String> strings = new ArrayList<String>();	// string side table
+  HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+
+  static long mkInt(int i) { return i & PAYLOAD; }
+  static long mkBool(boolean b) { return b ? TRUE : FALSE; }
+  static long mkPtr(int p) { return PTR | (p & PAYLOAD); }
+  static long tag(long v) { return v & ~PAYLOAD & ~PTR; }
+  static boolean same(long v1, long v2) { return ((v1 ^ v2) & ~PTR) == 0; }
+  static boolean ints(long v1, long v2) { return ((v1 | v2) & UND) == INT; }
+  static boolean defined(long v1, long v2) { return (v1 & UND) != UND && (v2 & UND) != UND; }
+
+  long mkStr(String s) {
+    Integer idx = stringIds.get(s);
+    if (idx == null) {
+      idx = strings.size();
+      strings.add(s);
+      stringIds.put(s, idx);
+    }
+    return STR | idx;
+  }
+
+  // Same text as the corresponding Val's toString()
+  //
+  String show(long v) {
+    long t = tag(v);
+    if (t == INT)  return Integer.toString((int) v);
+    if (t == BOOL) return (v & 1) != 0 ? "true" : "false";
+    if (t == STR)  return strings.get((int) v);
+    return v == NUL ? "null" : "UndVal";
+  }
+
+  // Conversions to and from the tree-walker's boxed Vals
+  //
+  IR1Interp.Val box(long v) {
+    long t = tag(v);
+    if ((v & PTR) != 0) return new IR1Interp.PtrVal((int) v);
+    if (t == INT)  return new IR1Interp.IntVal((int) v);
+    if (t == BOOL) return new IR1Interp.BoolVal((v & 1) != 0);
+    if (t == STR)  return new IR1Interp.StrVal(strings.get((int) v));
+    return v == NUL ? null : new IR1Interp.UndVal();
+  }
+
+  long unbox(IR1Interp.Val val) {
+    if (val instanceof IR1Interp.PtrVal)  return mkPtr(((IR1Interp.PtrVal) val).i);
+    if (val instanceof IR1Interp.IntVal)  return mkInt(((IR1Interp.IntVal) val).i);
+    if (val instanceof IR1Interp.BoolVal) return mkBool(((IR1Interp.BoolVal) val).b);
+    if (val instanceof IR1Interp.StrVal)  return mkStr(((IR1Interp.StrVal) val).s);
+    return val == null ? NUL : UND;
+  }
+
+  // -- A lowered function
+  //
+  static class Code {
+    int id;			// index in 'codes'
+    String name;
+    int[] code;
+    long[] consts;
+    Code[] callees;		// call targets (see link())
+    IR1Interp.FuncInfo info;
+    int[] callSites;		// the call insts (in 'info') of 'callees'
+    int frameSize;
+    int[] paramSlots;
+    int hot;			// calls + backward jumps (for the JIT)
+    MethodHandle jit;		// compiled code, if any
+    boolean jitFailed;
+  }
+
+  //-----------------------------------------------------------------
+  // Loader
+  //-----------------------------------------------------------------
+  //
+
+  // Lower a function's code into a Code object, using the slot
+  // numbers from its FuncInfo. LabelDecs are dropped; each label
+  // resolves to the index of the next emitted instruction. A final
+  // RET covers falling off the end of the function.
+  //
+  Code lower(IR1Interp.FuncInfo info) throws Exception {
+    IR1.Func f = info.func;
+    // Pass 1: superinstructions ('fused[i]' is the superinstruction
+    // starting at inst i, or -1), and instruction offsets ('offset[i]'
+    // is where inst i, or the first real inst after a LabelDec at i,
+    // starts)
+    int[] fused = new int[f.code.length];
+    int[] offset = new int[f.code.length + 1];
+    int len = 0;
+    for (int i = 0; i < f.code.length; i++) {
+      fused[i] = fuse ? fusion(info, i) : -1;
+      offset[i] = len;
+      if (fused[i] < 0) {
+	len += size(f.code[i]);
+	continue;
+      }
+      len += superSize(fused[i]);
+      for (int k = superLength(fused[i]); k > 1; k--)
+	offset[++i] = len;
+    }
+    offset[f.code.length] = len;
+    len += 3;			// implicit "return" at the end, OSRRET
+
+    // Pass 2: emit
+    Code c = new Code();
+    c.name = f.gname.s;
+    c.info = info;
+    c.code = new int[len];
+    c.frameSize = info.frameSize;
+    c.paramSlots = info.paramSlots;
+    ArrayList<Long> consts = new ArrayList<Long>();
+    ArrayList<Integer> sites = new ArrayList<Integer>();
+    int[] code = c.code;
+    int pc = 0;
+    for (int i = 0; i < f.code.length; i++) {
+      IR1.Inst n = f.code[i];
+      int[] slots = info.slots[i];
+      if (fused[i] >= 0) {
+	pc = emitSuper(fused[i], info, i, code, pc, offset, consts);
+	i += superLength(fused[i]) - 1;
+      } else if (n instanceof IR1.Binop) {
+	IR1.Binop b = (IR1.Binop) n;
+	code[pc++] = binop(b.op);
+	code[pc++] = slots[0];
+	code[pc++] = src(b.src1, slots[1], consts);
+	code[pc++] = src(b.src2, slots[2], consts);
+      } else if (n instanceof IR1.Unop) {
+	IR1.Unop u = (IR1.Unop) n;
+	code[pc++] = (u.op == IR1.UOP.NEG) ? NEG : NOT;
+	code[pc++] = slots[0];
+	code[pc++] = src(u.src, slots[1], consts);
+      } else if (n instanceof IR1.Move) {
+	code[pc++] = MOVE;
+	code[pc++] = slots[0];
+	code[pc++] = src(((IR1.Move) n).src, slots[1], consts);
+      } else if (n instanceof IR1.Load) {
+	IR1.Load l = (IR1.Load) n;
+	code[pc++] = LOAD;
+	code[pc++] = slots[0];
+	code[pc++] = src(l.addr.base, slots[1], consts);
+	code[pc++] = l.addr.offset;
+      } else if (n instanceof IR1.Store) {
+	IR1.Store s = (IR1.Store) n;
+	code[pc++] = STORE;
+	code[pc++] = src(s.addr.base, slots[0], consts);
+	code[pc++] = s.addr.offset;
+	code[pc++] = src(s.src, slots[1], consts);
+      } else if (n instanceof IR1.Call) {
+	IR1.Call call = (IR1.Call) n;
+	int kind = info.callKinds[i];
+	if (kind == IR1Interp.MALLOC) {
+	  code[pc++] = MALLOC;
+	  code[pc++] = slots[0];
+	  code[pc++] = src(call.args[0], slots[1], consts);
+	  continue;
+	}
+	if (kind != IR1Interp.USER) {
+	  if (call.args.length == 0) {
+	    code[pc++] = PRINTLN;
+	  } else {
+	    code[pc++] = PRINT;
+	    code[pc++] = src(call.args[0], slots[1], consts);
+	  }
+	  continue;
+	}
+	code[pc++] = CALL;
+	code[pc++] = sites.size();
+	sites.add(i);
+	code[pc++] = slots[0];
+	code[pc++] = call.args.length;
+	for (int k = 0; k < call.args.length; k++)
+	  code[pc++] = src(call.args[k], slots[k+1], consts);
+      } else if (n instanceof IR1.Return) {
+	IR1.Return r = (IR1.Return) n;
+	code[pc++] = RET;
+	code[pc++] = (r.val == null) ? NONE : src(r.val, slots[0], consts);
+      } else if (n instanceof IR1.Jump) {
+	code[pc++] = JMP;
+	code[pc++] = offset[info.targets[i]];
+      } else if (n instanceof IR1.CJump) {
+	IR1.CJump j = (IR1.CJump) n;
+	code[pc++] = CJEQ + j.op.ordinal();
+	code[pc++] = src(j.src1, slots[0], consts);
+	code[pc++] = src(j.src2, slots[1], consts);
+	code[pc++] = offset[info.targets[i]];
+      } else if (!(n instanceof IR1.LabelDec)) {
+	throw new IR1Interp.IntException("Unknown Inst: " + n);
+      }
+    }
+    code[pc++] = RET;
+    code[pc++] = NONE;
+    code[pc++] = OSRRET;
+    c.consts = new long[consts.size()];
+    for (int k = 0; k < c.consts.length; k++)
+      c.consts[k] = consts.get(k);
+    c.callSites = new int[sites.size()];
+    for (int k = 0; k < c.callSites.length; k++)
+      c.callSites[k] = sites.get(k);
+    return c;
+  }
+
+  // Number of ints an instruction occupies in the stream
+  //
+  static int size(IR1.Inst n) {
+    if (n instanceof IR1.Binop)  return 4;
+    if (n instanceof IR1.Unop)   return 3;
+    if (n instanceof IR1.Move)   return 3;
+    if (n instanceof IR1.Load)   return 4;
+    if (n instanceof IR1.Store)  return 4;
+    if (n instanceof IR1.Call) {
+      IR1.Call call = (IR1.Call) n;
+      switch (IR1Interp.builtin(call.gname.s)) {
+      case IR1Interp.MALLOC: return 3;
+      case IR1Interp.USER:   return 4 + call.args.length;
+      default:               return call.args.length == 0 ? 1 : 2;
+      }
+    }
+    if (n instanceof IR1.Return) return 2;
+    if (n instanceof IR1.Jump)   return 2;
+    if (n instanceof IR1.CJump)  return 4;
+    return 0;
+  }
+
+  // Point a Code's call sites at their callees' Code (null for a
+  // callee not loaded yet; see resolve())
+  //
+  static void link(Code c) {
+    c.callees = new Code[c.callSites.length];
+    for (int k = 0; k < c.callees.length; k++) {
+      IR1Interp.FuncInfo callee = c.info.callees[c.callSites[k]];
+      c.callees[k] = callee == null ? null : callee.code;
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Superinstructions
+  //-----------------------------------------------------------------
+  //
+  // A sequence is fused only if it is straight-line (a LabelDec would
+  // sit between its insts) and each inst reads the previous one's dst
+  // in the shape IR1Gen produces:
+  //
+  //  t = a ROP b; if t == false goto L  (or == true, != false, != true)
+  //  t1 = i * 4;  t2 = a + t1;  t3 = [t2]     (or [t2] = s; + in 
+  //                                          either operand order)
+  //  x = y;  z = w                          (consecutive Moves)
+  //
+  // All dsts are still written, so no liveness information is needed.
+  //
+
+  boolean fuse = true;		// IR1Interp --fuse=off clears it
+  boolean fuseStats = false;	// count superinstruction runs
+  long[] fuseCounts = new long[MOVE2 - CBEQ + 1];	// by opcode
+
+  // The superinstruction starting at inst i, or -1
+  //
+  static int fusion(IR1Interp.FuncInfo info, int i) {
+    IR1.Inst[] code = info.func.code;
+    if (i + 1 >= code.length)
+      return -1;
+    IR1.Inst n = code[i], m = code[i+1];
+    if (n instanceof IR1.Move && m instanceof IR1.Move)
+      return MOVE2;
+    if (!(n instanceof IR1.Binop && info.slots[i][0] >= 0))
+      return -1;
+    IR1.Binop b = (IR1.Binop) n;
+    int dst = info.slots[i][0];
+    if (b.op instanceof IR1.ROP && m instanceof IR1.CJump) {
+      IR1.CJump j = (IR1.CJump) m;
+      if ((j.op == IR1.ROP.EQ || j.op == IR1.ROP.NE)
+	  && info.slots[i+1][0] == dst && j.src2 instanceof IR1.BoolLit)
+	return CBEQ + ((IR1.ROP) b.op).ordinal();
+      return -1;
+    }
+    if (b.op == IR1.AOP.MUL && b.src2 instanceof IR1.IntLit 
+	&& i + 2 < code.length && m instanceof IR1.Binop 
+	&& ((IR1.Binop) m).op == IR1.AOP.ADD) {
+      int[] add = info.slots[i+1];
+      if (add[1] != dst && add[2] != dst)
+	return -1;
+      if (code[i+2] instanceof IR1.Load && info.slots[i+2][1] == add[0])
+	return LDX;
+      if (code[i+2] instanceof IR1.Store && info.slots[i+2][0] == add[0])
+	return STX;
+    }
+    return -1;
+  }
+
+  // Number of IR1 insts a superinstruction replaces
+  //
+  static int superLength(int op) {
+    return (op == LDX || op == STX) ? 3 : 2;
+  }
+
+  // Number of ints a superinstruction occupies in the stream
+  //
+  static int superSize(int op) {
+    if (op == LDX || op == STX) return 8;
+    if (op == MOVE2) return 5;
+    return 6;
+  }
+
+  int emitSuper(int op, IR1Interp.FuncInfo info, int i, int[] code, 
+		       int pc, int[] offset, ArrayList<Long> consts) {
+    IR1.Inst[] insts = info.func.code;
+    int[][] slots = info.slots;
+    code[pc++] = op;
+    if (op == MOVE2) {
+      for (int k = 0; k < 2; k++) {
+	code[pc++] = slots[i+k][0];
+	code[pc++] = src(((IR1.Move) insts[i+k]).src, slots[i+k][1], consts);
+      }
+    } else if (op == LDX || op == STX) {
+      IR1.Binop mul = (IR1.Binop) insts[i], add = (IR1.Binop) insts[i+1];
+      // the add's other operand is the base
+      boolean first = slots[i+1][1] != slots[i][0];
+      IR1.Src base = first ? add.src1 : add.src2;
+      int baseSlot = first ? slots[i+1][1] : slots[i+1][2];
+      code[pc++] = slots[i][0];
+      code[pc++] = slots[i+1][0];
+      if (op == LDX)
+	code[pc++] = slots[i+2][0];
+      code[pc++] = src(mul.src1, slots[i][1], consts);
+      code[pc++] = ((IR1.IntLit) mul.src2).i;
+      code[pc++] = src(base, baseSlot, consts);
+      if (op == LDX) {
+	code[pc++] = ((IR1.Load) insts[i+2]).addr.offset;
+      } else {
+	IR1.Store st = (IR1.Store) insts[i+2];
+	code[pc++] = st.addr.offset;
+	code[pc++] = src(st.src, slots[i+2][1], consts);
+      }
+    } else {				// CBEQ..CBGE
+      IR1.Binop b = (IR1.Binop) insts[i];
+      IR1.CJump j = (IR1.CJump) insts[i+1];
+      boolean lit = ((IR1.BoolLit) j.src2).b;
+      code[pc++] = slots[i][0];
+      code[pc++] = src(b.src1, slots[i][1], consts);
+      code[pc++] = src(b.src2, slots[i][2], consts);
+      code[pc++] = (lit == (j.op == IR1.ROP.EQ)) ? 1 : 0;
+      code[pc++] = offset[info.targets[i+1]];
+    }
+    return pc;
+  }
+
+  // Superinstruction counts, one item per line
+  //
+  String fuseStats() {
+    String[] names = { "CBEQ", "CBNE", "CBLT", "CBLE", "CBGT", "CBGE", 
+		       "LDX", "STX", "MOVE2" };
+    long saved = 0;
+    String str = "";
+    for (int k = 0; k < fuseCounts.length; k++) {
+      long n = fuseCounts[k];
+      saved += n * (superLength(CBEQ + k) - 1);
+      if (n > 0)
+	str += String.format("%-6s %12d%n", names[k], n);
+    }
+    return str + "Dispatches saved: " + saved + "\n";
+  }
+
+  static int binop(IR1.BOP op) {
+    if (op instanceof IR1.AOP)
+      return ADD + ((IR1.AOP) op).ordinal();
+    return EQ + ((IR1.ROP) op).ordinal();
+  }
+
+  // Encode a Src operand: its slot, or a (negative) constant index
+  //
+  int src(IR1.Src n, int slot, ArrayList<Long> consts) {
+    if (slot >= 0)
+      return slot;
+    long val = UND;
+    if (n instanceof IR1.IntLit)  val = mkInt(((IR1.IntLit) n).i);
+    if (n instanceof IR1.BoolLit) val = mkBool(((IR1.BoolLit) n).b);
+    if (n instanceof IR1.StrLit)  val = mkStr(((IR1.StrLit) n).s);
+    consts.add(val);
+    return ~(consts.size() - 1);
+  }
+
+  //-----------------------------------------------------------------
+  // Interpreter Loop
+  //-----------------------------------------------------------------
+  //
+
+  // Lower every function (once; the Code is cached in its FuncInfo),
+  // link the call sites, then run '_main'. (With lazy loading, that is
+  // every function loaded so far; see resolve().)
+  //
+  void execute() throws Exception {
+    codes = new Code[Math.max(16, interp.funcMap.size())];
+    ncodes = 0;
+    for (IR1Interp.FuncInfo info: interp.funcMap.values())
+      add(info);
+    for (int id = 0; id < ncodes; id++)
+      link(codes[id]);
+    stack = new long[Math.min(1 << 12, maxStack)];
+    ctl = new int[64 * RECORD];
+    sp = csp = 0;
+    if (interp.gc)
+      interp.memory.roots = new StackRoots();
+    Code main = interp.funcMap.get("_main").code;
+    enter(main, pushFrame(main.frameSize));
+  }
+
+  // Lower a function and give it the next id
+  //
+  void add(IR1Interp.FuncInfo info) throws Exception {
+    if (info.code == null)
+      info.code = lower(info);
+    if (ncodes == codes.length)
+      codes = Arrays.copyOf(codes, 2 * ncodes);
+    info.code.id = ncodes;
+    codes[ncodes++] = info.code;
+  }
+
+  // The Code of the k-th callee of 'c', whose call site was left
+  // unlinked: its function is loaded (IR1Interp.callee()), lowered and
+  // linked now
+  //
+  Code resolve(Code c, int k) throws Exception {
+    IR1Interp.FuncInfo callee = interp.callee(c.info, c.callSites[k]);
+    if (callee.code == null) {
+      add(callee);
+      link(callee.code);
+    }
+    return c.callees[k] = callee.code;
+  }
+
+  //-----------------------------------------------------------------
+  // Call Stack
+  //-----------------------------------------------------------------
+  //
+  // A function's frame is the slice stack[bp .. bp+frameSize) (at least
+  // one slot, so that the frame stack bounds the call depth). Each
+  // active call below the innermost one has an activation record of
+  // RECORD ints in 'ctl', saving the caller's state:
+  //
+  //  ctl[r]    caller's Code id
+  //  ctl[r+1]  return pc (in the caller's code)
+  //  ctl[r+2]  caller's slot for the return value (-1 if none)
+  //  ctl[r+3]  caller's base pointer
+  //
+  static final int RECORD = 4;
+
+  // -- JIT settings and state (see IR1Jit)
+  //
+  int jitThreshold = 0;		// 0: JIT disabled
+  int jitCompiled = 0, jitFailures = 0;	// statistics
+  int jitDepth = 0;		// nesting of compiled-code calls
+
+  Code[] codes;			// lowered functions, by id
+  int ncodes;
+  long[] stack;			// frame stack
+  int sp;			// first free frame stack slot
+  int[] ctl;			// control stack
+  int csp;			// first free control stack entry
+  int maxStack = 1 << 22;	// frame stack limit (in slots)
+
+  // Push a frame of 'size' slots; returns its base pointer
+  //
+  int pushFrame(int size) throws Exception {
+    int bp = sp;
+    int top = bp + Math.max(1, size);
+    if (top > stack.length || top < 0) {
+      if (top > maxStack || top < 0)
+	throw new IR1Interp.IntException("Frame stack overflow (" + maxStack 
+					  + " slots); use --stack=N to raise it");
+      stack = Arrays.copyOf(stack, (int) Math.min(maxStack, 
+						   Math.max(top, 2L * stack.length)));
+    }
+    Arrays.fill(stack, bp, top, NUL);
+    sp = top;
+    return bp;
+  }
+
+  // The collector's roots: every slot of every active frame
+  //
+  class StackRoots implements IR1Heap.Roots {
+    public void scan(IR1Heap heap) {
+      for (int k = 0; k < sp; k++)
+	stack[k] = heap.root(stack[k]);
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Interpreter Loop
+  //-----------------------------------------------------------------
+  //
+
+  // Run a function in the (already pushed) frame at 'bp', compiled if
+  // the JIT has (or now gets) code for it; returns the function's
+  // return value (UND if none)
+  //
+  long enter(Code c, int bp) throws Exception {
+    if (jitThreshold > 0) {
+      if (++c.hot >= jitThreshold && c.jit == null && !c.jitFailed)
+	IR1Jit.compile(this, c);
+      if (c.jit != null && jitDepth < IR1Jit.MAX_DEPTH)
+	return callJit(c, bp, 0);
+    }
+    return run(c, bp);
+  }
+
+  long callJit(Code c, int bp, int entry) throws Exception {
+    jitDepth++;
+    try {
+      return (long) c.jit.invokeExact(this, bp, entry);
+    } catch (IR1Interp.LimitException e) {
+      e.stack.add(c.name);
+      throw e;
+    } catch (Exception | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new RuntimeException(e);
+    } finally {
+      jitDepth--;
+    }
+  }
+
+  // A taken jump from 'pc' to 'target' in the frame at 'bp'. A backward
+  // jump is a step (IR1Interp.tick()). When the
+  // JIT is enabled, backward jumps count toward compiling 'c'; once it
+  // is compiled, the rest of this invocation runs in the compiled code
+  // (entered at 'target', with the frame as its initial state), and the
+  // interpreter continues at OSRRET to return its result.
+  //
+  long osrResult;
+
+  int jump(Code c, int bp, int pc, int target, boolean jit) 
+    throws Exception {
+    if (target > pc)
+      return target;
+    try {
+      interp.tick();
+    } catch (IR1Interp.LimitException e) {
+      e.stack.add(c.name);
+      throw e;
+    }
+    if (jit) {
+      if (++c.hot >= jitThreshold && c.jit == null && !c.jitFailed)
+	IR1Jit.compile(this, c);
+      if (c.jit != null && jitDepth < IR1Jit.MAX_DEPTH) {
+	osrResult = callJit(c, bp, target);
+	return c.code.length - 1;
+      }
+    }
+    return target;
+  }
+
+  // Interpret a lowered function (and everything it calls) in the
+  // frame at 'bp'; returns the function's return value (UND if none).
+  // When a run limit stops it, the functions it has active are added
+  // to the stack of names: the innermost one by jump() or callJit(),
+  // its callers from the control stack.
+  //
+  long run(Code c, int bp) throws Exception {
+    int base = csp;
+    try {
+      return interpret(c, bp);
+    } catch (IR1Interp.LimitException e) {
+      for (int r = csp - RECORD; r >= base; r -= RECORD)
+	e.stack.add(codes[ctl[r]].name);
+      throw e;
+    }
+  }
+
+  // Undefined operands are handled as the tree-walker does: an
+  // arithmetic or relational operation gives NUL unless both operands
+  // are ints, and EQ, NE, AND and OR give NUL if either is undefined;
+  // a conditional jump on such operands is not taken. An undefined
+  // address, _malloc size, or NEG/NOT operand is an error.
+  //
+  long interpret(Code c, int bp) throws Exception {
+    int[] code = c.code;
+    long[] consts = c.consts;
+    IR1Heap memory = interp.memory;
+    IR1Out out = interp.out;
+    boolean jit = jitThreshold > 0;
+    int base = csp;
+    long[] stack = this.stack;
+    int pc = 0;
+    while (true) {
+      switch (code[pc]) {
+      case ADD: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = ints(v1, v2) 
+	  ? ((v1 + v2) & PAYLOAD) | ((v1 | v2) & PTR) : NUL;
+	pc += 4;
+	break;
+      }
+      case SUB: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = ints(v1, v2) 
+	  ? ((v1 - v2) & PAYLOAD) | (v1 & ~v2 & PTR) : NUL;
+	pc += 4;
+	break;
+      }
+      case MUL: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = ints(v1, v2) ? mkInt((int) v1 * (int) v2) : NUL;
+	pc += 4;
+	break;
+      }
+      case DIV: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = ints(v1, v2) ? mkInt((int) v1 / (int) v2) : NUL;
+	pc += 4;
+	break;
+      }
+      case AND: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = defined(v1, v2) ? BOOL | (v1 & v2 & 1) : NUL;
+	pc += 4;
+	break;
+      }
+      case OR: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = defined(v1, v2) ? BOOL | ((v1 | v2) & 1) : NUL;
+	pc += 4;
+	break;
+      }
+      case EQ: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = defined(v1, v2) ? mkBool(same(v1, v2)) : NUL;
+	pc += 4;
+	break;
+      }
+      case NE: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = defined(v1, v2) ? mkBool(!same(v1, v2)) : NUL;
+	pc += 4;
+	break;
+      }
+      case LT: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = ints(v1, v2) ? mkBool((int) v1 < (int) v2) : NUL;
+	pc += 4;
+	break;
+      }
+      case LE: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = ints(v1, v2) ? mkBool((int) v1 <= (int) v2) : NUL;
+	pc += 4;
+	break;
+      }
+      case GT: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = ints(v1, v2) ? mkBool((int) v1 > (int) v2) : NUL;
+	pc += 4;
+	break;
+      }
+      case GE: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	stack[bp+code[pc+1]] = ints(v1, v2) ? mkBool((int) v1 >= (int) v2) : NUL;
+	pc += 4;
+	break;
+      }
+      case NEG:
+	stack[bp+code[pc+1]] = mkInt(-i(stack, bp, consts, code[pc+2]));
+	pc += 3;
+	break;
+      case NOT:
+	stack[bp+code[pc+1]] = def(v(stack, bp, consts, code[pc+2])) ^ 1;
+	pc += 3;
+	break;
+      case MOVE:
+	stack[bp+code[pc+1]] = v(stack, bp, consts, code[pc+2]);
+	pc += 3;
+	break;
+      case LOAD:
+	stack[bp+code[pc+1]] = memory.load(i(stack, bp, consts, code[pc+2]) + code[pc+3]);
+	pc += 4;
+	break;
+      case STORE:
+	memory.store(i(stack, bp, consts, code[pc+1]) + code[pc+2],
+		     v(stack, bp, consts, code[pc+3]));
+	pc += 4;
+	break;
+      case MALLOC: {
+	long p = mkPtr(memory.malloc(i(stack, bp, consts, code[pc+2])));
+	if (code[pc+1] >= 0)
+	  stack[bp+code[pc+1]] = p;
+	pc += 3;
+	break;
+      }
+      case PRINT:
+	out.println(v(stack, bp, consts, code[pc+1]));
+	pc += 2;
+	break;
+      case PRINTLN:
+	out.newline();
+	pc += 1;
+	break;
+      case CALL: {
+	Code callee = c.callees[code[pc+1]];
+	if (callee == null)
+	  callee = resolve(c, code[pc+1]);
+	// set up the callee's frame (params first)
+	int nbp = pushFrame(callee.frameSize);
+	stack = this.stack;
+	for (int k = 0; k < callee.paramSlots.length; k++)
+	  stack[nbp + callee.paramSlots[k]] = v(stack, bp, consts, code[pc+4+k]);
+	// save the caller's state
+	if (csp + RECORD > ctl.length)
+	  ctl = Arrays.copyOf(ctl, ctl.length * 2);
+	ctl[csp]   = c.id;
+	ctl[csp+1] = pc + 4 + code[pc+3];
+	ctl[csp+2] = code[pc+2];
+	ctl[csp+3] = bp;
+	csp += RECORD;
+	interp.tick();
+	if (jit) {
+	  if (++callee.hot >= jitThreshold && callee.jit == null && !callee.jitFailed)
+	    IR1Jit.compile(this, callee);
+	  if (callee.jit != null && jitDepth < IR1Jit.MAX_DEPTH) {
+	    long result = callJit(callee, nbp, 0);
+	    csp -= RECORD;
+	    sp = nbp;
+	    stack = this.stack;
+	    if (code[pc+2] >= 0)
+	      stack[bp + code[pc+2]] = result;
+	    pc += 4 + code[pc+3];
+	    break;
+	  }
+	}
+	c = callee;
+	code = c.code;
+	consts = c.consts;
+	bp = nbp;
+	pc = 0;
+	break;
+      }
+      case RET: case OSRRET: {
+	stack = this.stack;		// compiled code (OSR) may have grown it
+	long result = code[pc] == OSRRET ? osrResult 
+	  : code[pc+1] == NONE ? UND : v(stack, bp, consts, code[pc+1]);
+	sp = bp;
+	if (csp == base)
+	  return result;
+	csp -= RECORD;
+	c = codes[ctl[csp]];
+	code = c.code;
+	consts = c.consts;
+	pc = ctl[csp+1];
+	bp = ctl[csp+3];
+	if (ctl[csp+2] >= 0)
+	  stack[bp + ctl[csp+2]] = result;
+	break;
+      }
+      case JMP:
+	pc = jump(c, bp, pc, code[pc+1], jit);
+	break;
+      case CJEQ: {
+	long v1 = v(stack, bp, consts, code[pc+1]), v2 = v(stack, bp, consts, code[pc+2]);
+	pc = defined(v1, v2) && same(v1, v2) ? jump(c, bp, pc, code[pc+3], jit) : pc + 4;
+	break;
+      }
+      case CJNE: {
+	long v1 = v(stack, bp, consts, code[pc+1]), v2 = v(stack, bp, consts, code[pc+2]);
+	pc = defined(v1, v2) && !same(v1, v2) ? jump(c, bp, pc, code[pc+3], jit) : pc + 4;
+	break;
+      }
+      case CJLT: {
+	long v1 = v(stack, bp, consts, code[pc+1]), v2 = v(stack, bp, consts, code[pc+2]);
+	pc = ints(v1, v2) && (int) v1 < (int) v2 ? jump(c, bp, pc, code[pc+3], jit) : pc + 4;
+	break;
+      }
+      case CJLE: {
+	long v1 = v(stack, bp, consts, code[pc+1]), v2 = v(stack, bp, consts, code[pc+2]);
+	pc = ints(v1, v2) && (int) v1 <= (int) v2 ? jump(c, bp, pc, code[pc+3], jit) : pc + 4;
+	break;
+      }
+      case CJGT: {
+	long v1 = v(stack, bp, consts, code[pc+1]), v2 = v(stack, bp, consts, code[pc+2]);
+	pc = ints(v1, v2) && (int) v1 > (int) v2 ? jump(c, bp, pc, code[pc+3], jit) : pc + 4;
+	break;
+      }
+      case CJGE: {
+	long v1 = v(stack, bp, consts, code[pc+1]), v2 = v(stack, bp, consts, code[pc+2]);
+	pc = ints(v1, v2) && (int) v1 >= (int) v2 ? jump(c, bp, pc, code[pc+3], jit) : pc + 4;
+	break;
+      }
+      case CBEQ: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	pc = defined(v1, v2) ? cb(c, stack, bp, pc, same(v1, v2), jit) : cbUndefined(c, stack, bp, pc);
+	break;
+      }
+      case CBNE: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	pc = defined(v1, v2) ? cb(c, stack, bp, pc, !same(v1, v2), jit) : cbUndefined(c, stack, bp, pc);
+	break;
+      }
+      case CBLT: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	pc = ints(v1, v2) ? cb(c, stack, bp, pc, (int) v1 < (int) v2, jit) : cbUndefined(c, stack, bp, pc);
+	break;
+      }
+      case CBLE: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	pc = ints(v1, v2) ? cb(c, stack, bp, pc, (int) v1 <= (int) v2, jit) : cbUndefined(c, stack, bp, pc);
+	break;
+      }
+      case CBGT: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	pc = ints(v1, v2) ? cb(c, stack, bp, pc, (int) v1 > (int) v2, jit) : cbUndefined(c, stack, bp, pc);
+	break;
+      }
+      case CBGE: {
+	long v1 = v(stack, bp, consts, code[pc+2]), v2 = v(stack, bp, consts, code[pc+3]);
+	pc = ints(v1, v2) ? cb(c, stack, bp, pc, (int) v1 >= (int) v2, jit) : cbUndefined(c, stack, bp, pc);
+	break;
+      }
+      case LDX: {
+	long v1 = mkInt(i(stack, bp, consts, code[pc+4]) * code[pc+5]);
+	stack[bp+code[pc+1]] = v1;
+	long b = def(v(stack, bp, consts, code[pc+6]));
+	long a = ((b + v1) & PAYLOAD) | (b & PTR);
+	stack[bp+code[pc+2]] = a;
+	stack[bp+code[pc+3]] = memory.load((int) a + code[pc+7]);
+	if (fuseStats) fuseCounts[LDX - CBEQ]++;
+	pc += 8;
+	break;
+      }
+      case STX: {
+	long v1 = mkInt(i(stack, bp, consts, code[pc+3]) * code[pc+4]);
+	stack[bp+code[pc+1]] = v1;
+	long b = def(v(stack, bp, consts, code[pc+5]));
+	long a = ((b + v1) & PAYLOAD) | (b & PTR);
+	stack[bp+code[pc+2]] = a;
+	memory.store((int) a + code[pc+6], v(stack, bp, consts, code[pc+7]));
+	if (fuseStats) fuseCounts[STX - CBEQ]++;
+	pc += 8;
+	break;
+      }
+      case MOVE2:
+	stack[bp+code[pc+1]] = v(stack, bp, consts, code[pc+2]);
+	stack[bp+code[pc+3]] = v(stack, bp, consts, code[pc+4]);
+	if (fuseStats) fuseCounts[MOVE2 - CBEQ]++;
+	pc += 5;
+	break;
+      default:
+	throw new IR1Interp.IntException("Bad opcode " + code[pc] + " in " + c.name);
+      }
+    }
+  }
+
+  // Rest of a CBxx at 'pc' whose relation evaluated to 'r': sets its
+  // dst, and returns the next pc
+  //
+  int cb(Code c, long[] stack, int bp, int pc, boolean r, boolean jit) 
+    throws Exception {
+    int[] code = c.code;
+    if (fuseStats) fuseCounts[code[pc] - CBEQ]++;
+    stack[bp+code[pc+1]] = mkBool(r);
+    return r == (code[pc+4] != 0) ? jump(c, bp, pc, code[pc+5], jit) : pc + 6;
+  }
+
+  // A CBxx at 'pc' on undefined operands: dst is NUL, and no branch
+  //
+  int cbUndefined(Code c, long[] stack, int bp, int pc) {
+    if (fuseStats) fuseCounts[c.code[pc] - CBEQ]++;
+    stack[bp+c.code[pc+1]] = NUL;
+    return pc + 6;
+  }
+
+  //-----------------------------------------------------------------
+  // Operand Access
+  //-----------------------------------------------------------------
+  //
+
+  static long v(long[] stack, int bp, long[] consts, int src) {
+    return src >= 0 ? stack[bp+src] : consts[~src];
+  }
+
+  static int i(long[] stack, int bp, long[] consts, int src) throws Exception {
+    return (int) def(src >= 0 ? stack[bp+src] : consts[~src]);
+  }
+
+  // 'v', which must not be undefined
+  //
+  static long def(long v) throws Exception {
+    if ((v & UND) == UND)
+      throw new IR1Interp.IntException("Undefined value");
+    return v;
+  }
+}
@@ -0,0 +1,313 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Heap memory for the IR1 interpreter.
+//
+// Cells live in a growable int[] handed out by a bump allocator. A side
+// bitmap marks the cells that are still undefined. In the (default)
+// tagged mode a parallel byte[] keeps each cell's value tag, so that
+// booleans and string pointers read back as what was stored; in raw
+// mode only the 32-bit payload is kept and every load yields an int.
+//
+// Values passed in and out use IR1Code's tagged-long representation.
+//
+// With a Roots provider installed (IR1Interp --gc), _malloc runs a
+// mark-compact collection before the heap would outgrow its threshold.
+// Pointers are recognized by their PTR tag (so collection needs the
+// tagged mode); a pointer into the middle of an object keeps the whole
+// object alive and is relocated along with it. Objects are not padded,
+// so a pointer one past an object's end (an array cursor that has run
+// off it) is also the next object's start, and a pointer to a zero-size
+// object the start of the one after it: such a pointer keeps all the
+// objects it could point into alive (see find()), which then slide
+// together and relocate it alike. (So a pointer to an object's start
+// also keeps the object before it alive, until it is itself dropped.)
+//
+import java.util.*;
+
+class IR1Heap {
+  int[] cells;
+  byte[] tags;		// null in raw mode
+  long[] undef;		// bit i set <=> cell i is undefined
+  int top = 0;		// next free cell
+
+  static final int MAX_CELLS = 1 << 30;
+
+  // -- Object table: start address of every object, in allocation
+  //    (= address) order; an object extends to the next one's start
+  //    (or to 'top')
+  //
+  int[] starts = new int[64];
+  int nobjs = 0;
+
+  // -- Root set provider (one per engine)
+  //
+  interface Roots {
+    // Pass every root value through heap.root(), storing back the result
+    void scan(IR1Heap heap) throws Exception;
+  }
+
+  Roots roots;			// null: never collect
+  int threshold = 1 << 16;	// collect when 'top' would pass this
+
+  // -- Collection statistics
+  //
+  int collections = 0;
+  long totalPause = 0, maxPause = 0;	// in ns
+  long collected = 0;			// cells reclaimed
+  int maxLive = 0;
+
+  // Invariant: every cell at or above 'top' has its undef bit set,
+  // so allocation only needs to bump 'top'.
+  //
+  IR1Heap(boolean tagged) {
+    cells = new int[1024];
+    tags = tagged ? new byte[cells.length] : null;
+    undef = new long[cells.length >>> 6];
+    Arrays.fill(undef, -1L);
+  }
+
+  // Allocate 'size' undefined cells; returns the first one's address
+  //
+  int malloc(int size) throws Exception {
+    if (size < 0)
+      throw new IR1Interp.IntException("Bad malloc size: " + size);
+    if (roots != null && (long) top + size > threshold) {
+      collect();
+      threshold = (int) Math.min(MAX_CELLS, Math.max(threshold, 2L * (top + size)));
+    }
+    int addr = top;
+    if ((long) top + size > cells.length)
+      grow((long) top + size);
+    top += size;
+    if (nobjs == starts.length)
+      starts = Arrays.copyOf(starts, nobjs * 2);
+    starts[nobjs++] = addr;
+    return addr;
+  }
+
+  long load(int addr) throws Exception {
+    if (addr < 0 || addr >= top)
+      throw new IR1Interp.IntException("Bad heap address: " + addr);
+    if ((undef[addr >>> 6] & (1L << addr)) != 0)
+      return IR1Code.UND;
+    if (tags == null)
+      return cells[addr] & IR1Code.PAYLOAD;
+    return ((long) tags[addr] << 32) | (cells[addr] & IR1Code.PAYLOAD);
+  }
+
+  void store(int addr, long v) throws Exception {
+    if (addr < 0 || addr >= top)
+      throw new IR1Interp.IntException("Bad heap address: " + addr);
+    if (IR1Code.tag(v) == IR1Code.UND) {
+      undef[addr >>> 6] |= 1L << addr;
+      return;
+    }
+    undef[addr >>> 6] &= ~(1L << addr);
+    cells[addr] = (int) v;
+    if (tags != null)
+      tags[addr] = (byte) (v >>> 32);
+  }
+
+  // Grow the cell array (by doubling) to hold at least 'need' cells
+  //
+  void grow(long need) throws Exception {
+    if (need > MAX_CELLS)
+      throw new IR1Interp.IntException("Out of heap memory");
+    int cap = cells.length;
+    while (cap < need)
+      cap *= 2;
+    cells = Arrays.copyOf(cells, cap);
+    if (tags != null)
+      tags = Arrays.copyOf(tags, cap);
+    int old = undef.length;
+    undef = Arrays.copyOf(undef, cap >>> 6);
+    Arrays.fill(undef, old, undef.length, -1L);
+  }
+
+  //-----------------------------------------------------------------
+  // Mark-Compact Collector
+  //-----------------------------------------------------------------
+  //
+
+  static final int MARK = 0, FIX = 1;
+  int phase;
+  long[] marked;		// bit k set <=> object k is live
+  int[] work;			// mark stack of object indices
+  int nwork;
+  int[] forward;		// new start of each live object
+
+  int end(int k) {
+    return k + 1 < nobjs ? starts[k+1] : top;
+  }
+
+  // Index of the first object k with starts[k] <= p <= end(k), its end
+  // included (-1 if none); the objects from there through last(p) are
+  // all the ones 'p' may point into
+  //
+  int find(int p) {
+    if (p < 0 || p > top || nobjs == 0)
+      return -1;
+    int lo = 0, hi = nobjs - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (end(mid) >= p)
+	hi = mid;
+      else
+	lo = mid + 1;
+    }
+    return starts[lo] <= p && p <= end(lo) ? lo : -1;
+  }
+
+  // Index of the last object starting at or below 'p'
+  //
+  int last(int p) {
+    int lo = 0, hi = nobjs - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (starts[mid] <= p)
+	lo = mid;
+      else
+	hi = mid - 1;
+    }
+    return lo;
+  }
+
+  // Mark every object address 'p' may point into
+  //
+  void markAt(int p) {
+    int k = find(p);
+    if (k >= 0)
+      for (int e = last(p); k <= e; k++)
+	mark(k);
+  }
+
+  // Root callback: marks the referenced object (MARK phase), or 
+  // returns the relocated value (FIX phase)
+  //
+  long root(long v) {
+    if ((v & IR1Code.PTR) == 0)
+      return v;
+    if (phase == MARK) {
+      markAt((int) v);
+      return v;
+    }
+    int k = find((int) v);
+    return k < 0 ? v : relocate(v, k);
+  }
+
+  long relocate(long v, int k) {
+    int p = (int) v - starts[k] + forward[k];
+    return (v & ~IR1Code.PAYLOAD) | (p & IR1Code.PAYLOAD);
+  }
+
+  void mark(int k) {
+    if ((marked[k >>> 6] & (1L << k)) != 0)
+      return;
+    marked[k >>> 6] |= 1L << k;
+    if (nwork == work.length)
+      work = Arrays.copyOf(work, nwork * 2);
+    work[nwork++] = k;
+  }
+
+  boolean isPtr(int c) {
+    return (undef[c >>> 6] & (1L << c)) == 0
+      && (tags[c] & (byte) (IR1Code.PTR >>> 32)) != 0;
+  }
+
+  void collect() throws Exception {
+    if (tags == null)
+      throw new IR1Interp.IntException("Garbage collection needs a tagged heap");
+    long t0 = System.nanoTime();
+
+    // Mark: from the roots, then transitively through heap pointers
+    marked = new long[(nobjs >>> 6) + 1];
+    work = new int[64];
+    nwork = 0;
+    phase = MARK;
+    roots.scan(this);
+    while (nwork > 0) {
+      int k = work[--nwork];
+      for (int c = starts[k], e = end(k); c < e; c++) {
+	if (isPtr(c))
+	  markAt(cells[c]);
+      }
+    }
+
+    // Compute forwarding addresses (live objects slide down in order)
+    forward = new int[nobjs];
+    int free = 0;
+    for (int k = 0; k < nobjs; k++) {
+      if ((marked[k >>> 6] & (1L << k)) != 0) {
+	forward[k] = free;
+	free += end(k) - starts[k];
+      }
+    }
+
+    // Rewrite pointers in the roots and in live objects
+    phase = FIX;
+    roots.scan(this);
+    for (int k = 0; k < nobjs; k++) {
+      if ((marked[k >>> 6] & (1L << k)) == 0)
+	continue;
+      for (int c = starts[k], e = end(k); c < e; c++) {
+	if (isPtr(c)) {
+	  int j = find(cells[c]);
+	  if (j >= 0)
+	    cells[c] = cells[c] - starts[j] + forward[j];
+	}
+      }
+    }
+
+    // Slide live objects down and rebuild the object table
+    int n = 0, oldTop = top;
+    for (int k = 0; k < nobjs; k++) {
+      if ((marked[k >>> 6] & (1L << k)) == 0)
+	continue;
+      int from = starts[k], to = forward[k], len = end(k) - from;
+      if (from != to) {
+	System.arraycopy(cells, from, cells, to, len);
+	System.arraycopy(tags, from, tags, to, len);
+	for (int i = 0; i < len; i++) {
+	  int s = from + i, d = to + i;
+	  if ((undef[s >>> 6] & (1L << s)) != 0)
+	    undef[d >>> 6] |= 1L << d;
+	  else
+	    undef[d >>> 6] &= ~(1L << d);
+	}
+      }
+      starts[n++] = to;
+    }
+    nobjs = n;
+    top = free;
+    for (int c = top; c < oldTop; c++)
+      undef[c >>> 6] |= 1L << c;
+    marked = null;
+    work = null;
+    forward = null;
+
+    long pause = System.nanoTime() - t0;
+    collections++;
+    totalPause += pause;
+    maxPause = Math.max(maxPause, pause);
+    collected += oldTop - top;
+    maxLive = Math.max(maxLive, top);
+  }
+
+  // Collector statistics, one item per line
+  //
+  String stats() {
+    return "GC collections:   " + collections + "\n"
+      + "GC total pause:   " + String.format("%.3f ms", totalPause / 1e6) + "\n"
+      + "GC max pause:     " + String.format("%.3f ms", maxPause / 1e6) + "\n"
+      + "GC avg pause:     " + String.format("%.3f ms", 
+          collections == 0 ? 0.0 : totalPause / 1e6 / collections) + "\n"
+      + "Cells reclaimed:  " + collected + "\n"
+      + "Max live cells:   " + maxLive + "\n"
+      + "Heap top:         " + top + " cells (" + nobjs + " objects)\n"
+      + "Heap capacity:    " + cells.length + " cells\n";
+  }
+}
@@ -6,6 +6,9 @@
 
 // IR1 interpreter. (A starter version)
 //
+// All run-time state lives in an IR1Interp instance (with the code
+// engine's in its IR1Code 'vm'), so several programs can be run at once
+// in one JVM, each by its own instance (see IR1Batch).
 //
 import java.util.*;
 import java.io.*;
@@ -17,6 +20,14 @@ public class IR1Interp {
     public IntException(String msg) { super(msg); }
   }
 
+  // -- A run stopped by --budget or --deadline; 'stack' holds the
+  //    names of the active functions, innermost first
+  //
+  static class LimitException extends IntException {
+    ArrayList<String> stack = new ArrayList<String>();
+    public LimitException(String msg) { super(msg); }
+  }
+
   //-----------------------------------------------------------------
   // Value Representation
   //-----------------------------------------------------------------
@@ -31,6 +42,13 @@ public class IR1Interp {
     public String toString() { return "" + i; }
   }
 
+  // -- Pointer values (ints returned by _malloc, or offset from one;
+  //    the garbage collector relocates them)
+  //
+  static class PtrVal extends IntVal {
+    PtrVal(int i) { super(i); }
+  }
+
   // -- Boolean values
   //
   static class BoolVal extends Val {
@@ -58,18 +76,174 @@ public class IR1Interp {
   //-----------------------------------------------------------------
   //
 
-  // -- Global heap memory
+  // -- Heap memory
   //
-  static ArrayList<Val> memory;
+  IR1Heap memory;
 
   // -- Environment for tracking var, temp, and param's values
   //    (one copy per fuction invocation)
   //
-  // Slides suggest putting both label and var maps within Env
-  // It also states using a single map for both variables and temps is ok.
-  static class Env extends HashMap<String,Val> {
+  // Vars and temps live in a plain array indexed by the slot numbers
+  // assigned in the function's FuncInfo; 'pc' is the index of the
+  // instruction being executed, so handlers can find their operands.
+  static class Env {
+    FuncInfo info;
+    Val[] frame;
+    int pc;
+
+    Env(FuncInfo info) { 
+      this.info = info; 
+      this.frame = new Val[info.frameSize];
+    }
+  }
+
+  // -- Load-time information of a function (one copy per IR1.Func,
+  //    built once and shared by all of its invocations)
+  //
+  // Every param, local, var and temp gets a dense slot number: params
+  // first (in order), then locals, then the remaining names in order of
+  // first appearance in the code. 'slots[i]' holds the operand slots of
+  // instruction i (-1 for a literal or a missing operand):
+  //   Binop:  {dst, src1, src2}    Unop/Move:  {dst, src}
+  //   Load:   {dst, base}          Store:      {base, src}
+  //   CJump:  {src1, src2}         Return:     {val}
+  //   Call:   {rdst, arg0, arg1, ...}
+  // 'targets[i]' is the resolved jump target of a Jump or CJump at i.
+  // 'callKinds[i]' is the kind of call at i (a builtin, or USER), and
+  // 'callees[i]' the called function's FuncInfo for a USER call; both
+  // are filled in by link(), once every function has its FuncInfo.
+  //
+  static class FuncInfo {
+    IR1.Func func;
+    HashMap<String, Integer> slotMap = new HashMap<String, Integer>();
     HashMap<String, Integer> labelMap = new HashMap<String, Integer>();
-    HashMap<String, Val> varMap = new HashMap<String, Val>();
+    int[][] slots;
+    int[] targets;
+    int[] callKinds;
+    FuncInfo[] callees;
+    int[] paramSlots;
+    int frameSize = 0;
+    IR1Code.Code code;		// lowered code (built by IR1Code)
+
+    // -- Profile counters (--profile only; see IR1Profile)
+    long[] counts;		// executions of each instruction
+    long[] taken;		// taken branches of each CJump
+    long calls, inclusive, start;
+    int active;			// activations on the call stack
+
+    // -- Memoization (--memo only; see IR1Memo)
+    boolean pure;		// result depends only on the arguments
+    long memoHits, memoMisses;
+
+    // -- Trace (--trace only; see IR1Trace)
+    int traceBase;		// number of its first instruction
+    int[] traceDst;		// dst slot of each instruction, or -1
+
+    FuncInfo(IR1.Func f) throws Exception {
+      func = f;
+      paramSlots = new int[f.params.length];
+      for (int i = 0; i < f.params.length; i++)
+        paramSlots[i] = slot(f.params[i]);
+      for (IR1.Id v: f.locals)
+        slot(v);
+      slots = new int[f.code.length][];
+      for (int i = 0; i < f.code.length; i++) {
+        slots[i] = operands(f.code[i]);
+        if (f.code[i] instanceof IR1.LabelDec)
+          labelMap.put(((IR1.LabelDec) f.code[i]).lab.name, i);
+      }
+      targets = new int[f.code.length];
+      for (int i = 0; i < f.code.length; i++) {
+        IR1.Label lab = null;
+        if (f.code[i] instanceof IR1.Jump)  lab = ((IR1.Jump) f.code[i]).lab;
+        if (f.code[i] instanceof IR1.CJump) lab = ((IR1.CJump) f.code[i]).lab;
+        targets[i] = (lab == null) ? -1 : target(lab);
+      }
+    }
+
+    // Resolve every call site; an unknown function or a wrong number
+    // of arguments is a load-time error. (With 'funcs' null, calls to
+    // user functions are left for resolve(), at their first run.)
+    //
+    void link(HashMap<String, FuncInfo> funcs) throws Exception {
+      IR1.Inst[] code = func.code;
+      callKinds = new int[code.length];
+      callees = new FuncInfo[code.length];
+      for (int i = 0; i < code.length; i++) {
+        if (!(code[i] instanceof IR1.Call))
+          continue;
+        IR1.Call c = (IR1.Call) code[i];
+        int nargs = c.args.length;
+        callKinds[i] = builtin(c.gname.s);
+        if (callKinds[i] == USER) {
+          if (funcs != null)
+            resolve(i, funcs.get(c.gname.s));
+        } else if (nargs != ((callKinds[i] == PRINTSTR && nargs == 0) ? 0 : 1))
+          throw new IntException("Wrong number of arguments to " + c.gname
+                                 + " (in " + func.gname + ")");
+      }
+    }
+
+    // Resolve the call at i to 'callee' (null if there is no such
+    // function)
+    //
+    FuncInfo resolve(int i, FuncInfo callee) throws Exception {
+      IR1.Call c = (IR1.Call) func.code[i];
+      if (callee == null)
+        throw new IntException("Unknown function: " + c.gname + " (in " 
+                               + func.gname + ")");
+      if (c.args.length != callee.paramSlots.length)
+        throw new IntException("Wrong number of arguments to " + c.gname
+                               + " (in " + func.gname + ")");
+      return callees[i] = callee;
+    }
+
+    int target(IR1.Label lab) throws Exception {
+      Integer idx = labelMap.get(lab.name);
+      if (idx == null)
+        throw new IntException("Undefined label: " + lab);
+      return idx;
+    }
+
+    int slot(Object n) {
+      if (!(n instanceof IR1.Id || n instanceof IR1.Temp))
+        return -1;
+      String name = n.toString();
+      Integer idx = slotMap.get(name);
+      if (idx == null) {
+        idx = frameSize++;
+        slotMap.put(name, idx);
+      }
+      return idx;
+    }
+
+    int[] operands(IR1.Inst n) {
+      if (n instanceof IR1.Binop) {
+        IR1.Binop b = (IR1.Binop) n;
+        return new int[] { slot(b.dst), slot(b.src1), slot(b.src2) };
+      }
+      if (n instanceof IR1.Unop) 
+        return new int[] { slot(((IR1.Unop) n).dst), slot(((IR1.Unop) n).src) };
+      if (n instanceof IR1.Move) 
+        return new int[] { slot(((IR1.Move) n).dst), slot(((IR1.Move) n).src) };
+      if (n instanceof IR1.Load) 
+        return new int[] { slot(((IR1.Load) n).dst), slot(((IR1.Load) n).addr.base) };
+      if (n instanceof IR1.Store) 
+        return new int[] { slot(((IR1.Store) n).addr.base), slot(((IR1.Store) n).src) };
+      if (n instanceof IR1.CJump) 
+        return new int[] { slot(((IR1.CJump) n).src1), slot(((IR1.CJump) n).src2) };
+      if (n instanceof IR1.Return) 
+        return new int[] { slot(((IR1.Return) n).val) };
+      if (n instanceof IR1.Call) {
+        IR1.Call c = (IR1.Call) n;
+        int[] s = new int[c.args.length + 1];
+        s[0] = slot(c.rdst);
+        for (int i = 0; i < c.args.length; i++)
+          s[i+1] = slot(c.args[i]);
+        return s;
+      }
+      return new int[0];
+    }
   }
 
   //-----------------------------------------------------------------
@@ -81,15 +255,46 @@ public class IR1Interp {
   //  functions and labels, or searching functions.
   //
 
+  // -- Call kinds (see FuncInfo.callKinds)
+  //
+  static final int USER = 0, MALLOC = 1, PRINTINT = 2, PRINTSTR = 3;
+
+  static int builtin(String name) {
+    if (name.equals("_malloc"))   return MALLOC;
+    if (name.equals("_printInt")) return PRINTINT;
+    if (name.equals("_printStr")) return PRINTSTR;
+    return USER;
+  }
+
   // -- Useful global variables
   //
   static final int CONTINUE = -1;	// execution status 
   static final int RETURN = -2;		// execution status
-  static Val retVal = null;             // for return value passing
+  Val retVal = null;                    // for return value passing
 
   // Added Data Structures
-  //static HashMap<String, Integer> labelMap;
-  static HashMap<String, IR1.Func> funcMap;
+  HashMap<String, FuncInfo> funcMap;
+
+  // -- Envs of the active calls, innermost last; together with 
+  //    'retVal' they are the garbage collector's root set
+  //
+  ArrayList<Env> envs;
+
+  class EnvRoots implements IR1Heap.Roots {
+    public void scan(IR1Heap heap) {
+      for (Env env: envs)
+        for (int i = 0; i < env.frame.length; i++)
+          env.frame[i] = root(heap, env.frame[i]);
+      retVal = root(heap, retVal);
+    }
+
+    Val root(IR1Heap heap, Val val) {
+      if (!(val instanceof PtrVal))
+        return val;
+      long v = heap.root(vm.unbox(val));
+      return (int) v == ((PtrVal) val).i ? val : new PtrVal((int) v);
+    }
+  }
 
  
 
@@ -99,17 +304,267 @@ public class IR1Interp {
   // The Main Method
   //-----------------------------------------------------------------
   //
+  // Usage: java IR1Interp [options] <file.ir>
+  //
+  // The program may also be in binary form (<file.irb>; see ir.IR1Bin).
+  //
+  // Options:
+  //  --engine=tree   walk the IR1 tree directly (default)
+  //  --engine=code   run the pre-decoded instruction stream (IR1Code)
+  //  --heap=tagged   heap cells keep their value tags (default)
+  //  --heap=raw      heap cells keep only 32-bit payloads; every load
+  //                  yields an int (strings read back as table indices)
+  //  --gc            collect garbage in the heap (needs a tagged heap)
+  //  --gcstats       --gc, and print collector statistics on exit
+  //  --stack=N       code engine's frame stack limit, in slots
+  //  --jit[=N]       code engine compiles a function to JVM bytecode
+  //                  once its calls + backward jumps reach N (1000)
+  //  --fuse=off      code engine does not form superinstructions
+  //  --fusestats     code engine counts superinstruction runs (not in
+  //                  JIT-compiled code) and prints them on exit
+  //  --flush=exit    flush program output when the buffer fills up and
+  //                  when the program ends (default)
+  //  --flush=line    also flush after every line
+  //  --outbuf=N      program output buffer size, in bytes (64K)
+  //  --profile[=F]   tree engine counts calls, instructions and branches;
+  //                  prints a report on exit and writes the profile to
+  //                  F (default: <file.ir>.prof)
+  //  --memo[=N]      tree engine memoizes the results of pure functions,
+  //                  keeping the N (4096) most recently used
+  //  --memostats     --memo, and print hit/miss counts on exit
+  //  --budget=N      abort the program after N steps (backward jumps
+  //                  and calls; see tick())
+  //  --deadline=MS   abort the program once it has run MS milliseconds
+  //  --lazy          load a function only when _main or a call first
+  //                  reaches it (see IR1Lazy)
+  //  --lazystats     --lazy, and print how many functions were loaded
+  //  --opt           optimize each function as it is loaded (see
+  //                  ir.IR1Opt); the profile lists the optimized code
+  //  --ssa           optimize each function in SSA form as it is loaded
+  //                  (see ir.ssa.SSAOpt); after --opt, if both are given
+  //  --trace[=N]     tree engine keeps the last N (64) instructions
+  //                  executed, and prints them if the run fails
+  //
+  static final int TREE = 0, CODE = 1;
+  int engine = TREE;
+  boolean taggedHeap = true;
+  boolean gc = false, gcStats = false;
+  boolean profile = false;
+  String profileFile = null;
+  int memoSize = 0;		// 0: no memoization
+  boolean memoStats = false;
+  IR1Memo memo;
+  long executed = 0;		// instructions executed (with --profile)
+  long budget = 0;		// --budget, in steps (0: no limit)
+  long timeLimit = 0;		// --deadline, in ms (0: no limit)
+  boolean lazy = false, lazyStats = false;
+  IR1Lazy source;		// where functions come from, if lazy
+  boolean optimize = false;	// --opt
+  boolean ssa = false;		// --ssa
+  int traceSize = 0;		// --trace (0: no trace)
+  IR1Trace trace;
+
+  final IR1Code vm = new IR1Code(this);	// code engine, string table
+  final IR1Out out = new IR1Out(vm);	// program output
+  OutputStream stdout = System.out;	// where 'out' goes
+
   public static void main(String [] args) throws Exception {
-    if (args.length == 1) {
-      FileInputStream stream = new FileInputStream(args[0]);
-      IR1.Program p = new IR1Parser(stream).Program();
-      stream.close();
-      IR1Interp.execute(p);
+    IR1Interp interp = new IR1Interp();
+    String file = null;
+    for (String arg: args) {
+      if (!arg.startsWith("--"))
+	file = arg;
+      else if (!interp.option(arg)) {
+	System.out.println("Unknown option: " + arg);
+	return;
+      }
+    }
+    String error = interp.checkOptions();
+    if (error != null) {
+      System.out.println(error);
+      return;
+    }
+    if (file != null) {
+      IR1.Program p = null;
+      IR1Lazy src = null;
+      if (interp.lazy)
+	src = new IR1Lazy(file);
+      else if (file.endsWith(".irb"))
+	p = IR1Bin.read(file);
+      else
+	p = IR1Bin.parse(file);
+      try {
+	if (src != null)
+	  interp.execute(src);
+	else
+	  interp.execute(p);
+      } catch (LimitException e) {
+	System.err.println("Aborted: " + e.getMessage());
+	for (String f: e.stack)
+	  System.err.println("  in " + f);
+	if (interp.trace != null)
+	  interp.trace.dump(interp.envs, System.err);
+	interp.printStats(src != null ? src.loadedProgram() : p, file, System.err);
+	System.exit(1);
+      } catch (Throwable e) {
+	if (interp.trace != null)
+	  interp.trace.dump(interp.envs, System.err);
+	throw e;
+      }
+      interp.printStats(src != null ? src.loadedProgram() : p, file, System.err);
     } else {
       System.out.println("You must provide an input file name.");
     }
   }
 
+  // Apply one option (see above); returns false if it is unknown
+  //
+  boolean option(String arg) {
+    if (arg.equals("--engine=tree"))
+      engine = TREE;
+    else if (arg.equals("--engine=code"))
+      engine = CODE;
+    else if (arg.equals("--heap=tagged"))
+      taggedHeap = true;
+    else if (arg.equals("--heap=raw"))
+      taggedHeap = false;
+    else if (arg.equals("--gc"))
+      gc = true;
+    else if (arg.equals("--gcstats"))
+      gc = gcStats = true;
+    else if (arg.startsWith("--stack="))
+      vm.maxStack = Integer.parseInt(arg.substring(8));
+    else if (arg.equals("--jit"))
+      vm.jitThreshold = 1000;
+    else if (arg.startsWith("--jit="))
+      vm.jitThreshold = Integer.parseInt(arg.substring(6));
+    else if (arg.equals("--fuse=off"))
+      vm.fuse = false;
+    else if (arg.equals("--fusestats"))
+      vm.fuseStats = true;
+    else if (arg.equals("--flush=exit"))
+      out.lineFlush = false;
+    else if (arg.equals("--flush=line"))
+      out.lineFlush = true;
+    else if (arg.startsWith("--outbuf="))
+      out.setSize(Integer.parseInt(arg.substring(9)));
+    else if (arg.equals("--profile"))
+      profile = true;
+    else if (arg.startsWith("--profile=")) {
+      profile = true;
+      profileFile = arg.substring(10);
+    } else if (arg.startsWith("--budget="))
+      budget = Long.parseLong(arg.substring(9));
+    else if (arg.startsWith("--deadline="))
+      timeLimit = Long.parseLong(arg.substring(11));
+    else if (arg.equals("--lazy"))
+      lazy = true;
+    else if (arg.equals("--lazystats"))
+      lazy = lazyStats = true;
+    else if (arg.equals("--opt"))
+      optimize = true;
+    else if (arg.equals("--ssa"))
+      ssa = true;
+    else if (arg.equals("--trace"))
+      traceSize = 64;
+    else if (arg.startsWith("--trace="))
+      traceSize = Integer.parseInt(arg.substring(8));
+    else if (arg.equals("--memo"))
+      memoSize = 4096;
+    else if (arg.startsWith("--memo="))
+      memoSize = Integer.parseInt(arg.substring(7));
+    else if (arg.equals("--memostats")) {
+      memoStats = true;
+      if (memoSize == 0)
+	memoSize = 4096;
+    } else
+      return false;
+    return true;
+  }
+
+  // Returns a message if the options do not go together
+  //
+  String checkOptions() {
+    if (gc && !taggedHeap)
+      return "--gc needs a tagged heap.";
+    if (profile && engine != TREE)
+      return "--profile needs the tree engine.";
+    if (memoSize > 0 && engine != TREE)
+      return "--memo needs the tree engine.";
+    if (memoSize > 0 && lazy)
+      return "--memo needs every function loaded (not --lazy).";
+    if (traceSize > 0 && engine != TREE)
+      return "--trace needs the tree engine.";
+    return null;
+  }
+
+  // Statistics asked for by the options (after a run of 'p', read
+  // from 'file'); the profile file is written as well
+  //
+  void printStats(IR1.Program p, String file, PrintStream err) throws Exception {
+    if (gcStats)
+      err.print(memory.stats());
+    if (vm.fuseStats && engine == CODE)
+      err.print(vm.fuseStats());
+    if (memoStats)
+      err.print(memo.stats(p, funcMap));
+    if (lazyStats)
+      err.print(source.stats());
+    if (profile) {
+      IR1Profile.report(p, funcMap, executed, err);
+      IR1Profile.write(p, funcMap, executed, 
+		       profileFile != null ? profileFile : file + ".prof");
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Run Limits
+  //-----------------------------------------------------------------
+  //
+  // Every engine calls tick() on each taken backward jump and each call
+  // (a "step"), and nowhere else: code between two steps runs at most
+  // once through each instruction of a function, so the step count
+  // bounds the instructions executed, and straight-line code pays
+  // nothing. tick() only counts down 'fuel'; when it runs out, limit()
+  // charges the steps used, checks the budget and the clock, and hands
+  // out the next batch (with a deadline, at most CLOCK_STEPS, so that
+  // the clock is read rarely). Without limits, the fuel never runs out.
+  //
+  static final long CLOCK_STEPS = 4096;
+
+  long fuel;			// steps left before the next check
+  long window;			// steps handed out at the last check
+  long steps;			// steps charged so far
+  long deadline;		// System.nanoTime() at which to stop
+
+  void startLimits() {
+    steps = 0;
+    deadline = System.nanoTime() + timeLimit * 1000000;
+    refill();
+  }
+
+  void refill() {
+    window = budget > 0 ? budget - steps : Long.MAX_VALUE;
+    if (timeLimit > 0)
+      window = Math.min(window, CLOCK_STEPS);
+    fuel = window;
+  }
+
+  void tick() throws LimitException {
+    if (--fuel <= 0)
+      limit();
+  }
+
+  void limit() throws LimitException {
+    steps += window;
+    if (budget > 0 && steps >= budget)
+      throw new LimitException("step budget of " + budget + " exhausted");
+    if (timeLimit > 0 && System.nanoTime() - deadline >= 0)
+      throw new LimitException("deadline of " + timeLimit + " ms passed (after "
+			       + steps + " steps)");
+    refill();
+  }
+
   //-----------------------------------------------------------------
   // Top-Level Nodes
   //-----------------------------------------------------------------
@@ -123,21 +578,112 @@ public class IR1Interp {
   // 2. Look up or search for function '_main'.
   // 3. Start interpreting from '_main' with an empty Env.
   //
-  public static void execute(IR1.Program n) throws Exception { 
+  public void execute(IR1.Program n) throws Exception { 
 
     // ... code needed ...
     // Created maps, lists, and environment
-    funcMap = new HashMap<String, IR1.Func>();
-    memory = new ArrayList<Val>(); 
+    funcMap = new HashMap<String, FuncInfo>();
+    source = null;
+    trace = traceSize > 0 ? new IR1Trace(vm, traceSize) : null;
+    // Loop gathering functions and their load-time info
+    for(IR1.Func f: n.funcs)
+      add(f);
+    for (FuncInfo info: funcMap.values())
+      info.link(funcMap);
+    if (funcMap.get("_main") == null)
+      throw new IntException("No _main function");
+    run();
+  }
+
+  // Run a lazily loaded program: a function gets its FuncInfo (and is
+  // linked) when it is first reached (see callee())
+  //
+  public void execute(IR1Lazy src) throws Exception {
+    funcMap = new HashMap<String, FuncInfo>();
+    source = src;
+    trace = traceSize > 0 ? new IR1Trace(vm, traceSize) : null;
+    if (load("_main") == null)
+      throw new IntException("No _main function");
+    run();
+  }
+
+  FuncInfo add(IR1.Func f) throws Exception {
+    if (optimize)
+      f = IR1Opt.optimize(f);
+    if (ssa)
+      f = ir.ssa.SSAOpt.optimize(f);
+    FuncInfo info = new FuncInfo(f);
+    if (profile)
+      IR1Profile.init(info);
+    if (trace != null)
+      trace.register(info);
+    funcMap.put(f.gname.s, info);
+    return info;
+  }
+
+  // Load function 'name' from 'source' (null if there is none)
+  //
+  FuncInfo load(String name) throws Exception {
+    IR1.Func f = source.func(name);
+    if (f == null)
+      return null;
+    FuncInfo info = add(f);
+    info.link(null);
+    return info;
+  }
+
+  // The callee of the (user function) call at i in 'info', loading it
+  // on first use
+  //
+  FuncInfo callee(FuncInfo info, int i) throws Exception {
+    if (info.callees[i] != null)
+      return info.callees[i];
+    String name = ((IR1.Call) info.func.code[i]).gname.s;
+    FuncInfo f = funcMap.get(name);
+    if (f == null && source != null)
+      f = load(name);
+    return info.resolve(i, f);
+  }
+
+  // Run '_main' (of the functions in 'funcMap')
+  //
+  void run() throws Exception {
+    memory = new IR1Heap(taggedHeap); 
+    vm.strings.clear();
+    vm.stringIds.clear();
     retVal = new UndVal();
-    Env env = new Env();
-    // Loop gathering functions
-    for(IR1.Func f: n.funcs) {
-      funcMap.put(f.gname.s, f);
+    memo = null;
+    if (memoSize > 0 && engine == TREE) {
+      IR1Memo.analyze(funcMap.values());
+      memo = new IR1Memo(memoSize);
+    }
+    executed = 0;
+    startLimits();
+    // Start main; program output is buffered until it ends
+    out.open(stdout);
+    try {
+      if (engine == CODE) {
+        vm.execute();
+        return;
+      }
+      FuncInfo main = funcMap.get("_main");
+      envs = new ArrayList<Env>();
+      if (gc)
+        memory.roots = new EnvRoots();
+      execute(main.func, new Env(main));
+    } catch (LimitException e) {
+      // the aborted calls' Envs are still on 'envs'
+      if (engine == TREE)
+        for (int i = envs.size() - 1; i >= 0; i--) {
+          FuncInfo info = envs.get(i).info;
+          e.stack.add(info.func.gname.s);
+          if (info.counts != null)
+            IR1Profile.exit(info, executed);
+        }
+      throw e;
+    } finally {
+      out.flush();
     }
-    // Start main.
-    execute(funcMap.get("_main"), env);
-
   }
 
   // Func ---
@@ -150,31 +696,51 @@ public class IR1Interp {
   //  - Implement the fetch-execute loop.
   //  - The parameter 'env' is the function's initial Env, which
   //    contains its parameters' values.
+  //  - Labels were resolved when the function's FuncInfo was built.
+  //  - With --profile, count the instruction (and a taken CJump).
+  //  - With --trace, record it (an assigned value was recorded where
+  //    it was assigned; see IR1Trace.value).
+  //  - A taken backward jump is a step (see tick()).
   //
-  static void execute(IR1.Func n, Env env) throws Exception {
-    // Gather the labels.
-    for(int i = 0; i < n.code.length; i++) {
-      if(n.code[i] instanceof IR1.LabelDec) {
-        env.labelMap.put(((IR1.LabelDec) n.code[i]).lab.name, i);
-      }
-    }
-
-    // Given Code 
+  void execute(IR1.Func n, Env env) throws Exception {
+    envs.add(env);
+    long[] counts = env.info.counts;
+    IR1Trace trace = this.trace;
+    int[] traceInsts = trace == null ? null : trace.insts;
+    int traceMask = trace == null ? 0 : trace.mask;
+    int traceBase = env.info.traceBase;
+    if (counts != null)
+      IR1Profile.enter(env.info, executed);
     int idx = 0;
     while (idx < n.code.length) {
+      env.pc = idx;
       int next = execute(n.code[idx], env);
+      if (traceInsts != null)
+        traceInsts[(int) trace.count++ & traceMask] = traceBase + idx;
+      if (counts != null) {
+        counts[idx]++;
+        executed++;
+        if (next >= 0 && n.code[idx] instanceof IR1.CJump)
+          env.info.taken[idx]++;
+      }
       if (next == CONTINUE)
 	idx++; 
       else if (next == RETURN)
         break;
-      else
+      else {
+        if (next <= idx)
+          tick();
 	idx = next;
+      }
     }
+    if (counts != null)
+      IR1Profile.exit(env.info, executed);
+    envs.remove(envs.size() - 1);
   }
 
   // Dispatch execution to an individual Inst node.
   //
-  static int execute(IR1.Inst n, Env env) throws Exception {
+  int execute(IR1.Inst n, Env env) throws Exception {
     if (n instanceof IR1.Binop)    return execute((IR1.Binop) n, env);
     if (n instanceof IR1.Unop) 	   return execute((IR1.Unop) n, env);
     if (n instanceof IR1.Move) 	   return execute((IR1.Move) n, env);
@@ -205,12 +771,13 @@ public class IR1Interp {
   // 1. Evaluate the operands, then perform the operation.
   // 2. Update 'dst's entry in the Env with operation's result.
   //
-  static int execute(IR1.Binop n, Env env) throws Exception {
+  int execute(IR1.Binop n, Env env) throws Exception {
 
     // ... code needed ...
     // Find the value of the left and right side of the BinOp
-    Val valOne = evaluate(n.src1, env);
-    Val valTwo = evaluate(n.src2, env);
+    int[] slots = env.info.slots[env.pc];
+    Val valOne = evaluate(n.src1, slots[1], env);
+    Val valTwo = evaluate(n.src2, slots[2], env);
 
 
     // The result of the operation.
@@ -244,9 +811,9 @@ public class IR1Interp {
       int one = ((IntVal)valOne).i;
       int two = ((IntVal)valTwo).i;
       if(one != two)
-        results = new BoolVal(false);
-      else
         results = new BoolVal(true);
+      else
+        results = new BoolVal(false);
     }
     else if(n.op == IR1.ROP.LT) {
       int one = ((IntVal)valOne).i;
@@ -285,12 +852,18 @@ public class IR1Interp {
     else if(n.op == IR1.AOP.ADD) {
       int one = ((IntVal)valOne).i;
       int two = ((IntVal)valTwo).i;
-      results = new IntVal(one + two);
+      if(valOne instanceof PtrVal || valTwo instanceof PtrVal)
+        results = new PtrVal(one + two);
+      else
+        results = new IntVal(one + two);
     }
     else if(n.op == IR1.AOP.SUB) {
       int one = ((IntVal)valOne).i;
       int two = ((IntVal)valTwo).i;
-      results = new IntVal(one - two);
+      if(valOne instanceof PtrVal && !(valTwo instanceof PtrVal))
+        results = new PtrVal(one - two);
+      else
+        results = new IntVal(one - two);
     }
     else if(n.op == IR1.AOP.DIV) {
       int one = ((IntVal)valOne).i;
@@ -306,7 +879,9 @@ public class IR1Interp {
     //else
       //throw new IntException("The OP is not the right Binop: "+n.op);
  
-    env.varMap.put(n.dst.toString(), results);
+    env.frame[slots[0]] = results;
+    if (trace != null)
+      trace.value(results);
     return CONTINUE;  
   }
 
@@ -319,10 +894,11 @@ public class IR1Interp {
   // 1. Evaluate the operand, then perform the operation.
   // 2. Update 'dst's entry in the Env with operation's result.
   //
-  static int execute(IR1.Unop n, Env env) throws Exception {
+  int execute(IR1.Unop n, Env env) throws Exception {
 
     // ... code needed ...
-    Val val = evaluate(n.src, env);
+    int[] slots = env.info.slots[env.pc];
+    Val val = evaluate(n.src, slots[1], env);
     Val results;
     if(n.op == IR1.UOP.NEG) {
       results = new IntVal(-((IntVal)val).i);
@@ -333,7 +909,9 @@ public class IR1Interp {
     else {
       throw new IntException("Bad Unop: "+n.op);
     }
-    env.varMap.put(n.dst.toString(), results);
+    env.frame[slots[0]] = results;
+    if (trace != null)
+      trace.value(results);
     return CONTINUE;  
   }
 
@@ -344,12 +922,15 @@ public class IR1Interp {
   // GUIDE:
   //  Evaluate 'src', then update 'dst's entry in the Env.
   //
-  static int execute(IR1.Move n, Env env) throws Exception {
+  int execute(IR1.Move n, Env env) throws Exception {
 
     // ... code needed ...
-    Val val = evaluate(n.src, env);
+    int[] slots = env.info.slots[env.pc];
+    Val val = evaluate(n.src, slots[1], env);
  
-    env.varMap.put(n.dst.toString(), val);
+    env.frame[slots[0]] = val;
+    if (trace != null)
+      trace.value(val);
 
     return CONTINUE;  
   }
@@ -362,12 +943,15 @@ public class IR1Interp {
   //  Evaluate 'addr' to a memory index, then retrieve the stored 
   //  value from memory and update 'dst's entry in the Env.
   //
-  static int execute(IR1.Load n, Env env) throws Exception {
+  int execute(IR1.Load n, Env env) throws Exception {
 
     // ... code needed ...
-    int dest = evaluate(n.addr, env);
-    Val val = memory.get(dest);
-    env.varMap.put(n.dst.toString(), val);
+    int[] slots = env.info.slots[env.pc];
+    int dest = evaluate(n.addr, slots[1], env);
+    Val val = vm.box(memory.load(dest));
+    env.frame[slots[0]] = val;
+    if (trace != null)
+      trace.value(val);
     return CONTINUE;  
   }
 
@@ -380,16 +964,17 @@ public class IR1Interp {
   // 2. Evaluate 'addr' to a memory index, then store the value
   //    to the memory entry.
   //
-  static int execute(IR1.Store n, Env env) throws Exception {
+  int execute(IR1.Store n, Env env) throws Exception {
 
     // ... code needed ...
     // Step 1 and 2
-    Val srcs = evaluate(n.src, env);
-    int addrs = evaluate(n.addr, env);   
+    int[] slots = env.info.slots[env.pc];
+    Val srcs = evaluate(n.src, slots[1], env);
+    int addrs = evaluate(n.addr, slots[0], env);   
 
  
     // Add to memory 
-    memory.set(addrs, srcs);
+    memory.store(addrs, vm.unbox(srcs));
 
     return CONTINUE;  
   }
@@ -404,62 +989,62 @@ public class IR1Interp {
   // 2. If cond is true, find and return the instruction index 
   //    of the jump target label; otherwise return CONTINUE.
   //
-  static int execute(IR1.CJump n, Env env) throws Exception {
+  int execute(IR1.CJump n, Env env) throws Exception {
 
     // ... code needed ...
-    Val valOne = evaluate(n.src1,env);
-    Val valTwo = evaluate(n.src2,env);
-    boolean cond = false;   
+    int[] slots = env.info.slots[env.pc];
+    Val valOne = evaluate(n.src1, slots[0], env);
+    Val valTwo = evaluate(n.src2, slots[1], env);
 
     if(n.op == IR1.ROP.NE) {
       if(valOne instanceof IntVal && valTwo instanceof IntVal) {
         if(((IntVal)valOne).i != ((IntVal)valTwo).i) {
-          return env.labelMap.get(n.lab.name);
+          return env.info.targets[env.pc];
         }
       }
       if(valOne instanceof BoolVal && valTwo instanceof BoolVal) {
         if(((BoolVal)valOne).b != ((BoolVal) valTwo).b) {
-          return env.labelMap.get(n.lab.name);
+          return env.info.targets[env.pc];
         }
       }
     }
     if(n.op == IR1.ROP.LT) {
       if(valOne instanceof IntVal && valTwo instanceof IntVal) {
         if(((IntVal) valOne).i < ((IntVal)valTwo).i) {
-          return env.labelMap.get(n.lab.name);
+          return env.info.targets[env.pc];
         }
       }
     }
     if(n.op == IR1.ROP.LE) {
       if(valOne instanceof IntVal && valTwo instanceof IntVal) {
         if(((IntVal)valOne).i <= ((IntVal)valTwo).i) {
-          return env.labelMap.get(n.lab.name);
+          return env.info.targets[env.pc];
         }
       }
     }
     if(n.op == IR1.ROP.GT) {
       if(valOne instanceof IntVal && valTwo instanceof IntVal) {
         if((((IntVal)valOne).i > ((IntVal)valTwo).i)) {
-          return env.labelMap.get(n.lab.name);
+          return env.info.targets[env.pc];
         }
       }
     }
     if(n.op == IR1.ROP.GE) {
       if(valOne instanceof IntVal && valTwo instanceof IntVal) {
         if((((IntVal) valOne).i >= ((IntVal)valTwo).i)) {
-          return env.labelMap.get(n.lab.name);
+          return env.info.targets[env.pc];
         }
       }
     }
     if(n.op == IR1.ROP.EQ) {
       if(valOne instanceof IntVal && valTwo instanceof IntVal) {
         if((((IntVal)valOne).i == ((IntVal)valTwo).i)){
-          return env.labelMap.get(n.lab.name);
+          return env.info.targets[env.pc];
         }
       }
       if(valOne instanceof BoolVal && valTwo instanceof BoolVal) {
         if((((BoolVal)valOne).b == ((BoolVal)valTwo).b)) {
-          return env.labelMap.get(n.lab.name);
+          return env.info.targets[env.pc];
         }
       }
     }
@@ -472,10 +1057,10 @@ public class IR1Interp {
   // GUIDE:
   //  Find and return the instruction index of the jump target label.
   //
-  static int execute(IR1.Jump n, Env env) throws Exception {
+  int execute(IR1.Jump n, Env env) throws Exception {
 
     // ... code needed ...
-    return env.labelMap.get(n.lab.name);
+    return env.info.targets[env.pc];
   }	
 
   // Call ---
@@ -490,12 +1075,15 @@ public class IR1Interp {
   // 3. Find callee's Func node and switch to execute it.
   // 4. If 'rdst' is not null, update its entry in the Env with
   //    the return value (should be avaiable in variable 'retVal').
+  //  (The target was resolved by FuncInfo.link().)
   //
-  static int execute(IR1.Call n, Env env) throws Exception {
+  int execute(IR1.Call n, Env env) throws Exception {
 
     // ... code needed ...
+    int[] slots = env.info.slots[env.pc];
+    int kind = env.info.callKinds[env.pc];
     // Case 1. Malloc
-    if(n.gname.s.equals("_malloc")) {
+    if(kind == MALLOC) {
 //      Val val = evaluate(n.args[0], env);
 //      int size = memory.size();
 //      memory = new ArrayList<>();
@@ -503,38 +1091,66 @@ public class IR1Interp {
 //        memory.add(new UndVal());
 //      env.varMap.put(((IR1.Temp)n.rdst).toString(), new IntVal(size));
 //      return size;
-      int size = ((IntVal) evaluate(n.args[0], env)).i;
-      int location = memory.size();
-      for(int i = 0; i < size; i++){
-        memory.add(new UndVal());
+      int size = ((IntVal) evaluate(n.args[0], slots[1], env)).i;
+      int location = memory.malloc(size);
+      if (slots[0] >= 0) {
+        env.frame[slots[0]] = new PtrVal(location);
+        if (trace != null)
+          trace.value(env.frame[slots[0]]);
       }
-      env.varMap.put(n.rdst.toString(), new IntVal(location));
     }
     // Case 2. printInt
-    else if(n.gname.s.equals("_printInt")) {
-      Val val = evaluate(n.args[0], env);
-      System.out.println(""+val);
+    else if(kind == PRINTINT) {
+      Val val = evaluate(n.args[0], slots[1], env);
+      out.println(val);
     }
     // Case 3. printStr
-    else if(n.gname.s.equals("_printStr")) {
+    else if(kind == PRINTSTR) {
       if(n.args == null || n.args.length == 0) {
-        System.out.println();
+        out.newline();
       }
       else {
-        Val val = evaluate(n.args[0], env);
-        System.out.println(""+val);
+        Val val = evaluate(n.args[0], slots[1], env);
+        out.println(val);
       }
     } else {
     // Case 4. The ELSE!
-      IR1.Func func = funcMap.get(n.gname.s);
-      Env tempEnv = new Env();
-      for (int i=0; i<func.params.length; i++) {
-        String paramName = ""+ func.params[i];
-        Val argVal = evaluate(n.args[i], env);
-        tempEnv.varMap.put(paramName, argVal);
+      FuncInfo func = env.info.callees[env.pc];
+      if (func == null)
+        func = callee(env.info, env.pc);
+      tick();
+      Env tempEnv = new Env(func);
+      for (int i=0; i<func.paramSlots.length; i++) {
+        Val argVal = evaluate(n.args[i], slots[i+1], env);
+        tempEnv.frame[func.paramSlots[i]] = argVal;
       }         
-      execute(func, tempEnv);
-      env.varMap.put(n.rdst.toString(), retVal);
+      // A pure function's result may be memoized (the args are kept
+      // apart from the frame, whose params the callee may overwrite)
+      IR1Memo.Key key = null;
+      if (memo != null && func.pure) {
+        Val[] args = new Val[func.paramSlots.length];
+        for (int i=0; i<args.length; i++)
+          args[i] = tempEnv.frame[func.paramSlots[i]];
+        key = IR1Memo.key(func, args);
+        Val v = key == null ? null : memo.get(key);
+        if (v != null) {
+          retVal = v;
+          if (n.rdst != null) {
+            env.frame[slots[0]] = retVal;
+            if (trace != null)
+              trace.value(retVal);
+          }
+          return CONTINUE;
+        }
+      }
+      execute(func.func, tempEnv);
+      if (key != null)
+        memo.put(key, retVal);
+      if (n.rdst != null) {
+        env.frame[slots[0]] = retVal;
+        if (trace != null)
+          trace.value(retVal);
+      }
     }
     return CONTINUE;
   }	
@@ -545,12 +1161,12 @@ public class IR1Interp {
   // GUIDE:
   //  If 'val' is not null, set it to the variable 'retVal'.
   // 
-  static int execute(IR1.Return n, Env env) throws Exception {
+  int execute(IR1.Return n, Env env) throws Exception {
 
     // ... code needed ...
     //Check for not null
     if(n.val != null) {
-      retVal = evaluate(n.val, env);
+      retVal = evaluate(n.val, env.info.slots[env.pc][0], env);
     }
     return RETURN;
   }
@@ -570,7 +1186,7 @@ public class IR1Interp {
   // 1. Evaluate 'base' to an integer, then add 'offset' to it.
   // 2. Return the result (which should be an index to memory).
   //
-  static int evaluate(IR1.Addr n, Env env) throws Exception {
+  int evaluate(IR1.Addr n, int slot, Env env) throws Exception {
 
     // ... code needed ...
     //Step 1. 
@@ -582,9 +1198,7 @@ public class IR1Interp {
     
 //    return mVal;
 
-    Val val = evaluate(n.base, env);
-    
-    int location = ((IntVal) evaluate(n.base,env)).i;
+    int location = ((IntVal) evaluate(n.base, slot, env)).i;
     return location + n.offset;
   }
 
@@ -593,14 +1207,13 @@ public class IR1Interp {
   //
   // GUIDE:
   //  In each case, the evaluate() routine returns a Val object.
-  //  - For Temp and Id, look up their value from the Env, wrap 
-  //    it in a Val and return.
+  //  - For Temp and Id, 'slot' is their frame slot in the Env.
   //  - For the literals, wrap their value in a Val and return.
   //
-  static Val evaluate(IR1.Src n, Env env) throws Exception {
+  Val evaluate(IR1.Src n, int slot, Env env) throws Exception {
+    if (slot >= 0)
+      return env.frame[slot];
     Val val = null;
-    if (n instanceof IR1.Temp)    val = env.varMap.get(n.toString());
-    if (n instanceof IR1.Id)      val = env.varMap.get(n.toString());
     if (n instanceof IR1.IntLit)  val = new IntVal(((IR1.IntLit) n).i);
     if (n instanceof IR1.BoolLit) val = new BoolVal(((IR1.BoolLit) n).b);
     if (n instanceof IR1.StrLit)  val = new StrVal(((IR1.StrLit) n).s);
@@ -613,17 +1226,11 @@ public class IR1Interp {
   // GUIDE:
   //  For both cases, look up their value from the Env, wrap it
   //  in a Val and return.
+  //  (Off the fast path -- goes through the FuncInfo's name table.)
   //
-  static Val evaluate(IR1.Dest n, Env env) throws Exception {
-    Val val = null;
-
-    // ... code needed ...
-    //Single step
-    if(n instanceof IR1.Temp)
-      val = env.varMap.get(((IR1.Temp)n).num);
-    if(n instanceof IR1.Id)
-      val = env.varMap.get(((IR1.Id)n).s);
-    return val;
+  Val evaluate(IR1.Dest n, Env env) throws Exception {
+    Integer slot = env.info.slotMap.get(n.toString());
+    return slot == null ? null : env.frame[slot];
   }
 
 }
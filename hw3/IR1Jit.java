@@ -0,0 +1,835 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// JIT tier for the IR1 code engine.
+//
+// The code engine counts calls and backward jumps per function; once a
+// function's count reaches the threshold (IR1Interp --jit=N), its
+// lowered Code is translated here into a JVM class with one method
+//
+//   static long run(IR1Code rt, int bp, int entry)
+//
+// which is loaded as a hidden class. Every IR1 var/temp becomes a JVM
+// long local (same tagged representation as the interpreter), Jump and
+// CJump become real branches, and heap access, builtins and calls go
+// through the static helpers at the end of this file (on the engine
+// instance 'rt' that runs the program). Later calls to the
+// function run the compiled method; a function that cannot be compiled
+// simply stays interpreted. 'entry' is 0 for a call; an invocation that
+// is still in the interpreter switches over at its next backward jump,
+// entering the compiled method at the jump's target (on-stack
+// replacement), which is why the method starts from the frame contents.
+//
+// A backward branch goes through a stub at the end of the method that
+// counts a step (IR1Interp.tick()) before jumping to the target, as
+// does a call (in invoke()), so run limits hold in compiled code too.
+//
+// The compiled method still owns its frame on the frame stack: the
+// frame holds the arguments on entry, and all locals are written back to
+// it around calls and _malloc, so the garbage collector sees them.
+//
+// The class file is emitted by hand (version 49, so no stack map frames
+// are needed).
+//
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+
+class IR1Jit {
+
+  // Compiled code calls back into the interpreter (and the interpreter
+  // into compiled code) on the Java stack; past this nesting depth
+  // (IR1Code.jitDepth) calls stay in the interpreter, which keeps its
+  // frames on its own stack.
+  static final int MAX_DEPTH = 1000;
+
+  // Compile 'c' (a function of 'rt') and install the result in c.jit;
+  // on failure, mark the function so that it is not tried again
+  //
+  static void compile(IR1Code rt, IR1Code.Code c) {
+    try {
+      for (int k = 0; k < c.callees.length; k++)	// (lazy loading)
+	if (c.callees[k] == null)
+	  rt.resolve(c, k);
+      byte[] bytes = new IR1Jit(c, rt.interp.gc).classFile();
+      MethodHandles.Lookup lookup = MethodHandles.lookup()
+	.defineHiddenClass(bytes, true);
+      c.jit = lookup.findStatic(lookup.lookupClass(), "run",
+				MethodType.methodType(long.class, IR1Code.class,
+						      int.class, int.class));
+      rt.jitCompiled++;
+    } catch (Throwable e) {
+      c.jitFailed = true;
+      rt.jitFailures++;
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Translation
+  //-----------------------------------------------------------------
+  //
+
+  // JVM local variables: 0 is 'rt', 1 is 'bp', 2 is 'entry'; IR1 slot
+  // k is the long pair at 3+2k; after those come a scratch int and a
+  // scratch long.
+  //
+  final IR1Code.Code c;
+  final int rtLocal = 0, bpLocal = 1, entryLocal = 2, nbpLocal, tmpLocal, maxLocals;
+  final boolean gc;
+
+  IR1Jit(IR1Code.Code c, boolean gc) {
+    this.c = c;
+    nbpLocal = 3 + 2 * c.frameSize;
+    tmpLocal = nbpLocal + 1;
+    maxLocals = tmpLocal + 2;
+    this.gc = gc;
+  }
+
+  static int local(int slot) { return 3 + 2 * slot; }
+
+  // Instruction size in the lowered stream
+  //
+  static int size(int[] code, int pc) throws Exception {
+    switch (code[pc]) {
+    case IR1Code.NEG: case IR1Code.NOT: case IR1Code.MOVE:
+      return 3;
+    case IR1Code.CALL:
+      return 4 + code[pc+3];
+    case IR1Code.RET: case IR1Code.JMP:
+      return 2;
+    case IR1Code.OSRRET: case IR1Code.PRINTLN:
+      return 1;
+    case IR1Code.PRINT:
+      return 2;
+    case IR1Code.MALLOC:
+      return 3;
+    case IR1Code.LDX: case IR1Code.STX: case IR1Code.MOVE2: 
+    case IR1Code.CBEQ: case IR1Code.CBNE: case IR1Code.CBLT:
+    case IR1Code.CBLE: case IR1Code.CBGT: case IR1Code.CBGE:
+      return IR1Code.superSize(code[pc]);
+    default:
+      if (code[pc] >= IR1Code.ADD && code[pc] <= IR1Code.CJGE)
+	return 4;
+      throw new IR1Interp.IntException("JIT: unsupported opcode " + code[pc]);
+    }
+  }
+
+  byte[] classFile() throws Exception {
+    int[] code = c.code;
+
+    // Labels: one per instruction start (only branch targets are used)
+    int[] label = new int[code.length + 1];
+    Arrays.fill(label, -1);
+    for (int pc = 0; pc < code.length; pc += size(code, pc))
+      label[pc] = newLabel();
+
+    // Prologue: load the whole frame into locals
+    for (int k = 0; k < c.frameSize; k++) {
+      frameAddr(bpLocal, k);
+      op(LALOAD);
+      lstore(local(k));
+    }
+    iconst(0);
+    istore(nbpLocal);
+    lconst(0);
+    lstore(tmpLocal);
+
+    // Entry points: the start, and every backward jump target
+    TreeMap<Integer, Integer> entries = new TreeMap<Integer, Integer>();
+    for (int pc = 0; pc < code.length; pc += size(code, pc)) {
+      int target = -1;
+      if (code[pc] == IR1Code.JMP)
+	target = code[pc+1];
+      else if (code[pc] >= IR1Code.CJEQ && code[pc] <= IR1Code.CJGE)
+	target = code[pc+3];
+      else if (code[pc] >= IR1Code.CBEQ && code[pc] <= IR1Code.CBGE)
+	target = code[pc+5];
+      if (target >= 0 && target <= pc)
+	entries.put(target, label[target]);
+    }
+    iload(entryLocal);
+    lookupswitch(label[0], entries);
+
+    for (int pc = 0; pc < code.length; pc += size(code, pc)) {
+      bind(label[pc]);
+      int op = code[pc];
+      switch (op) {
+      case IR1Code.ADD: {
+	int und = guard(true, code[pc+2], code[pc+3]);
+	add(code[pc+1], code[pc+2], code[pc+3]);
+	undefined(und, code[pc+1]);
+	break;
+      }
+      case IR1Code.SUB: {
+	int und = guard(true, code[pc+2], code[pc+3]);
+	src(code[pc+2]); src(code[pc+3]); op(LSUB);
+	lconst(IR1Code.PAYLOAD); op(LAND);
+	src(code[pc+3]); lconst(-1L); op(LXOR);		// ~v2
+	src(code[pc+2]); op(LAND);
+	lconst(IR1Code.PTR); op(LAND); op(LOR);
+	lstore(local(code[pc+1]));
+	undefined(und, code[pc+1]);
+	break;
+      }
+      case IR1Code.MUL: case IR1Code.DIV: {
+	int und = guard(true, code[pc+2], code[pc+3]);
+	isrc(code[pc+2]); isrc(code[pc+3]);
+	op(op == IR1Code.MUL ? IMUL : IDIV);
+	toInt();
+	lstore(local(code[pc+1]));
+	undefined(und, code[pc+1]);
+	break;
+      }
+      case IR1Code.AND: case IR1Code.OR: {
+	int und = guard(false, code[pc+2], code[pc+3]);
+	src(code[pc+2]); src(code[pc+3]);
+	op(op == IR1Code.AND ? LAND : LOR);
+	lconst(1); op(LAND);
+	lconst(IR1Code.BOOL); op(LOR);
+	lstore(local(code[pc+1]));
+	undefined(und, code[pc+1]);
+	break;
+      }
+      case IR1Code.EQ: case IR1Code.NE: case IR1Code.LT:
+      case IR1Code.LE: case IR1Code.GT: case IR1Code.GE: {
+	int und = guard(op >= IR1Code.LT, code[pc+2], code[pc+3]);
+	int f = newLabel(), done = newLabel();
+	// branch to 'f' if the relation does not hold
+	cmp(op - IR1Code.EQ, code[pc+2], code[pc+3], f, true);
+	lconst(IR1Code.TRUE);
+	jump(GOTO, done);
+	bind(f);
+	lconst(IR1Code.FALSE);
+	bind(done);
+	lstore(local(code[pc+1]));
+	undefined(und, code[pc+1]);
+	break;
+      }
+      case IR1Code.NEG:
+	need(code[pc+2]);
+	isrc(code[pc+2]); op(INEG); toInt();
+	lstore(local(code[pc+1]));
+	break;
+      case IR1Code.NOT:
+	need(code[pc+2]);
+	src(code[pc+2]); lconst(1); op(LXOR);
+	lstore(local(code[pc+1]));
+	break;
+      case IR1Code.MOVE:
+	src(code[pc+2]);
+	lstore(local(code[pc+1]));
+	break;
+      case IR1Code.LOAD:
+	need(code[pc+2]);
+	load(code[pc+1], code[pc+2], code[pc+3]);
+	break;
+      case IR1Code.STORE:
+	need(code[pc+1]);
+	store(code[pc+1], code[pc+2], code[pc+3]);
+	break;
+      case IR1Code.MOVE2:
+	src(code[pc+2]);
+	lstore(local(code[pc+1]));
+	src(code[pc+4]);
+	lstore(local(code[pc+3]));
+	break;
+      case IR1Code.LDX:
+	need(code[pc+4]);
+	need(code[pc+6]);
+	index(code[pc+1], code[pc+2], code[pc+4], code[pc+5], code[pc+6]);
+	load(code[pc+3], code[pc+2], code[pc+7]);
+	break;
+      case IR1Code.STX:
+	need(code[pc+3]);
+	need(code[pc+5]);
+	index(code[pc+1], code[pc+2], code[pc+3], code[pc+4], code[pc+5]);
+	store(code[pc+2], code[pc+6], code[pc+7]);
+	break;
+      case IR1Code.CBEQ: case IR1Code.CBNE: case IR1Code.CBLT:
+      case IR1Code.CBLE: case IR1Code.CBGT: case IR1Code.CBGE: {
+	// dst = relation; then branch on it without re-testing dst (an
+	// undefined relation sets dst to NUL and does not branch)
+	int und = guard(op >= IR1Code.CBLT, code[pc+2], code[pc+3]);
+	int f = newLabel(), next = newLabel(), target = branch(label, code[pc+5], pc);
+	boolean sense = code[pc+4] != 0;
+	cmp(op - IR1Code.CBEQ, code[pc+2], code[pc+3], f, true);
+	lconst(IR1Code.TRUE);
+	lstore(local(code[pc+1]));
+	jump(GOTO, sense ? target : next);
+	bind(f);
+	lconst(IR1Code.FALSE);
+	lstore(local(code[pc+1]));
+	if (!sense)
+	  jump(GOTO, target);
+	if (und >= 0) {
+	  if (sense)
+	    jump(GOTO, next);
+	  bind(und);
+	  lconst(IR1Code.NUL);
+	  lstore(local(code[pc+1]));
+	}
+	bind(next);
+	break;
+      }
+      case IR1Code.CALL:
+	call(code, pc);
+	break;
+      case IR1Code.MALLOC:
+	if (gc)
+	  spill();
+	need(code[pc+2]);
+	rt();
+	isrc(code[pc+2]);
+	invoke("malloc", "(I)J");
+	if (code[pc+1] >= 0) {
+	  lstore(tmpLocal);
+	  if (gc)
+	    reload();
+	  lload(tmpLocal);
+	  lstore(local(code[pc+1]));
+	} else {
+	  op(POP2);
+	  if (gc)
+	    reload();
+	}
+	break;
+      case IR1Code.PRINT:
+	rt();
+	src(code[pc+1]);
+	invoke("print", "(J)V");
+	break;
+      case IR1Code.PRINTLN:
+	rt();
+	invoke("println", "()V");
+	break;
+      case IR1Code.RET:
+	if (code[pc+1] == IR1Code.NONE)
+	  lconst(IR1Code.UND);
+	else
+	  src(code[pc+1]);
+	op(LRETURN);
+	break;
+      case IR1Code.JMP:
+	jump(GOTO, branch(label, code[pc+1], pc));
+	break;
+      case IR1Code.OSRRET:		// interpreter only
+	break;
+      default: {		// CJEQ..CJGE (not taken if undefined)
+	int und = guard(op >= IR1Code.CJLT, code[pc+1], code[pc+2]);
+	cmp(op - IR1Code.CJEQ, code[pc+1], code[pc+2], 
+	    branch(label, code[pc+3], pc), false);
+	if (und >= 0)
+	  bind(und);
+	break;
+      }
+      }
+    }
+    // Undefined-value stub
+    if (undefinedStub >= 0) {
+      bind(undefinedStub);
+      rt();
+      invoke("undefined", "()J");
+      op(LRETURN);
+    }
+    // Backward branch stubs
+    for (Map.Entry<Integer, Integer> e: backStubs.entrySet()) {
+      bind(e.getValue());
+      rt();
+      invoke("tick", "()V");
+      jump(GOTO, label[e.getKey()]);
+    }
+    resolve();
+    return assemble();
+  }
+
+  // The label to branch to for a jump from 'pc' to 'target': the
+  // target's own, or for a backward jump its stub (one per target)
+  //
+  TreeMap<Integer, Integer> backStubs = new TreeMap<Integer, Integer>();
+
+  int branch(int[] label, int target, int pc) {
+    if (target > pc)
+      return label[target];
+    Integer stub = backStubs.get(target);
+    if (stub == null) {
+      stub = newLabel();
+      backStubs.put(target, stub);
+    }
+    return stub;
+  }
+
+  // Undefined operands (see IR1Code.interpret()). guard() branches to
+  // a new label, which it returns, if s1 and s2 are not both ints (or,
+  // if not 'ints', if either is undefined); -1 if no operand needs the
+  // test (a constant that passes it). undefined() then ends the guarded
+  // operation: dst is NUL on the branch. need() checks an operand that
+  // must be defined, going to a stub that throws if it is not.
+  //
+  int undefinedStub = -1;
+
+  int guard(boolean ints, int s1, int s2) {
+    int und = -1;
+    if (ints) {
+      boolean t1 = passes(s1, true), t2 = passes(s2, true);
+      if (t1 && t2)
+	return -1;
+      und = newLabel();
+      src(t1 ? s2 : s1);
+      if (!t1 && !t2) {
+	src(s2); op(LOR);
+      }
+      lconst(IR1Code.UND); op(LAND);
+      lconst(0); op(LCMP);
+      jump(IFNE, und);
+      return und;
+    }
+    for (int s: new int[] { s1, s2 })
+      if (!passes(s, false)) {
+	if (und < 0)
+	  und = newLabel();
+	isUndefined(s);
+	jump(IFEQ, und);
+      }
+    return und;
+  }
+
+  void undefined(int und, int dst) {
+    if (und < 0)
+      return;
+    int next = newLabel();
+    jump(GOTO, next);
+    bind(und);
+    lconst(IR1Code.NUL);
+    lstore(local(dst));
+    bind(next);
+  }
+
+  void need(int s) {
+    if (passes(s, false))
+      return;
+    if (undefinedStub < 0)
+      undefinedStub = newLabel();
+    isUndefined(s);
+    jump(IFEQ, undefinedStub);
+  }
+
+  // Push 0 (then IFEQ) if operand 's' is undefined
+  //
+  void isUndefined(int s) {
+    src(s);
+    lconst(IR1Code.UND); op(LAND);
+    lconst(IR1Code.UND); op(LCMP);
+  }
+
+  // Whether 's' is a constant that is an int (or, if not 'ints',
+  // defined)
+  //
+  boolean passes(int s, boolean ints) {
+    if (s >= 0)
+      return false;
+    long v = c.consts[~s] & IR1Code.UND;
+    return ints ? v == IR1Code.INT : v != IR1Code.UND;
+  }
+
+  // dst = s1 + s2 (keeping a pointer's PTR flag)
+  //
+  void add(int dst, int s1, int s2) {
+    src(s1); src(s2); op(LADD);
+    lconst(IR1Code.PAYLOAD); op(LAND);
+    src(s1); src(s2); op(LOR);
+    lconst(IR1Code.PTR); op(LAND); op(LOR);
+    lstore(local(dst));
+  }
+
+  // dst1 = idx * scale; dst2 = base + dst1
+  //
+  void index(int dst1, int dst2, int idx, int scale, int base) {
+    isrc(idx); iconst(scale); op(IMUL);
+    toInt();
+    lstore(local(dst1));
+    add(dst2, base, dst1);
+  }
+
+  // dst = [base + offset]
+  //
+  void load(int dst, int base, int offset) {
+    rt();
+    isrc(base); iconst(offset); op(IADD);
+    invoke("load", "(I)J");
+    lstore(local(dst));
+  }
+
+  // [base + offset] = src
+  //
+  void store(int base, int offset, int s) {
+    rt();
+    isrc(base); iconst(offset); op(IADD);
+    src(s);
+    invoke("store", "(IJ)V");
+  }
+
+  // Compare two operands with ROP 'rop' and branch to 'target' if the
+  // relation holds (or, if 'negate', if it does not)
+  //
+  void cmp(int rop, int s1, int s2, int target, boolean negate) {
+    if (rop <= 1) {			// EQ, NE: compare ignoring PTR
+      src(s1); src(s2); op(LXOR);
+      lconst(~IR1Code.PTR); op(LAND);
+      lconst(0); op(LCMP);
+      boolean eq = (rop == 0) != negate;
+      jump(eq ? IFEQ : IFNE, target);
+      return;
+    }
+    isrc(s1); isrc(s2);
+    int[] branch = { IF_ICMPLT, IF_ICMPLE, IF_ICMPGT, IF_ICMPGE };
+    int[] inverse = { IF_ICMPGE, IF_ICMPGT, IF_ICMPLE, IF_ICMPLT };
+    jump(negate ? inverse[rop - 2] : branch[rop - 2], target);
+  }
+
+  // Call ---
+  //  The callee gets its frame pushed with the args in place, and is
+  //  entered through invoke(). Locals are spilled to our frame before,
+  //  and reloaded after, the call (which may collect garbage).
+  //
+  void call(int[] code, int pc) throws Exception {
+    IR1Code.Code callee = c.callees[code[pc+1]];
+    int rdst = code[pc+2];
+    spill();
+    rt();
+    iconst(callee.frameSize);
+    invoke("enter", "(I)I");
+    istore(nbpLocal);
+    for (int k = 0; k < callee.paramSlots.length; k++) {
+      frameAddr(nbpLocal, callee.paramSlots[k]);
+      src(code[pc+4+k]);
+      op(LASTORE);
+    }
+    rt();
+    iconst(callee.id);
+    iload(nbpLocal);
+    invoke("invoke", "(II)J");
+    lstore(tmpLocal);
+    reload();
+    if (rdst >= 0) {
+      lload(tmpLocal);
+      lstore(local(rdst));
+    }
+  }
+
+  void spill() {
+    for (int k = 0; k < c.frameSize; k++) {
+      frameAddr(bpLocal, k);
+      lload(local(k));
+      op(LASTORE);
+    }
+  }
+
+  void reload() {
+    for (int k = 0; k < c.frameSize; k++) {
+      frameAddr(bpLocal, k);
+      op(LALOAD);
+      lstore(local(k));
+    }
+  }
+
+  // Push rt.stack and the index of slot 'k' of the frame at the base
+  // pointer held in int local 'bp'
+  //
+  void frameAddr(int bp, int k) {
+    rt();
+    getfield("IR1Code", "stack", "[J");
+    iload(bp);
+    iconst(k);
+    op(IADD);
+  }
+
+  // Push a Src operand as a (tagged) long, or as its int payload
+  //
+  void src(int s) {
+    if (s >= 0)
+      lload(local(s));
+    else
+      lconst(c.consts[~s]);
+  }
+
+  void isrc(int s) {
+    if (s >= 0) {
+      lload(local(s));
+      op(L2I);
+    } else {
+      iconst((int) c.consts[~s]);
+    }
+  }
+
+  // int on the stack -> INT value
+  //
+  void toInt() {
+    op(I2L);
+    lconst(IR1Code.PAYLOAD);
+    op(LAND);
+  }
+
+  //-----------------------------------------------------------------
+  // Bytecode Emission
+  //-----------------------------------------------------------------
+  //
+
+  static final int
+    ALOAD_0 = 0x2a, LCONST_0 = 0x09, LCONST_1 = 0x0a, BIPUSH = 0x10, SIPUSH = 0x11,
+    LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15, LLOAD = 0x16, LALOAD = 0x2f,
+    ISTORE = 0x36, LSTORE = 0x37, LASTORE = 0x50,
+    IADD = 0x60, LADD = 0x61, LSUB = 0x65, IMUL = 0x68, IDIV = 0x6c,
+    INEG = 0x74, LAND = 0x7f, LOR = 0x81, LXOR = 0x83, I2L = 0x85, L2I = 0x88,
+    POP2 = 0x58, LCMP = 0x94, IFEQ = 0x99, IFNE = 0x9a,
+    IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4,
+    GOTO = 0xa7, LOOKUPSWITCH = 0xab, LRETURN = 0xad, GETFIELD = 0xb4, INVOKESTATIC = 0xb8,
+    WIDE = 0xc4;
+
+  ByteArrayOutputStream body = new ByteArrayOutputStream();
+  ArrayList<Integer> labelPos = new ArrayList<Integer>();
+  ArrayList<int[]> fixups = new ArrayList<int[]>();	// {branch pc, label}
+
+  void op(int b) { body.write(b); }
+  void u2(int v) { body.write(v >>> 8); body.write(v); }
+
+  int newLabel() { labelPos.add(-1); return labelPos.size() - 1; }
+  void bind(int lab) { labelPos.set(lab, body.size()); }
+
+  void jump(int opcode, int lab) {
+    fixups.add(new int[] { body.size(), lab });
+    op(opcode);
+    u2(0);
+  }
+
+  // lookupswitch on the int on the stack: key -> label
+  //
+  void lookupswitch(int dflt, SortedMap<Integer, Integer> cases) {
+    int at = body.size();
+    op(LOOKUPSWITCH);
+    while (body.size() % 4 != 0)
+      op(0);
+    fixups.add(new int[] { at, dflt, body.size() });
+    u4(0);
+    u4(cases.size());
+    for (Map.Entry<Integer, Integer> e: cases.entrySet()) {
+      u4(e.getKey());
+      fixups.add(new int[] { at, e.getValue(), body.size() });
+      u4(0);
+    }
+  }
+
+  void u4(int v) { u2(v >>> 16); u2(v & 0xFFFF); }
+
+  // Patch branch offsets: {branch pc, label} is a 16-bit offset right
+  // after the opcode; {switch pc, label, pos} a 32-bit offset at 'pos'.
+  // A branch too far for 16 bits fails the compile (the function stays
+  // interpreted), as a method too large does.
+  //
+  void resolve() throws Exception {
+    byte[] b = body.toByteArray();
+    if (b.length >= 65535)
+      throw new IR1Interp.IntException("JIT: method too large");
+    for (int[] f: fixups) {
+      int off = labelPos.get(f[1]) - f[0];
+      if (f.length == 3) {
+	for (int k = 0; k < 4; k++)
+	  b[f[2]+k] = (byte) (off >>> (24 - 8 * k));
+	continue;
+      }
+      if (off < Short.MIN_VALUE || off > Short.MAX_VALUE)
+	throw new IR1Interp.IntException("JIT: branch offset too large");
+      b[f[0]+1] = (byte) (off >>> 8);
+      b[f[0]+2] = (byte) off;
+    }
+    body.reset();
+    body.write(b, 0, b.length);
+  }
+
+  void local(int opcode, int idx) {
+    if (idx > 255) {
+      op(WIDE); op(opcode); u2(idx);
+    } else {
+      op(opcode); op(idx);
+    }
+  }
+
+  void iload(int idx)  { local(ILOAD, idx); }
+  void istore(int idx) { local(ISTORE, idx); }
+  void lload(int idx)  { local(LLOAD, idx); }
+  void lstore(int idx) { local(LSTORE, idx); }
+
+  void iconst(int v) {
+    if (v >= -128 && v <= 127) {
+      op(BIPUSH); op(v);
+    } else if (v >= -32768 && v <= 32767) {
+      op(SIPUSH); u2(v);
+    } else {
+      op(LDC_W); u2(cpInt(v));
+    }
+  }
+
+  void lconst(long v) {
+    if (v == 0) op(LCONST_0);
+    else if (v == 1) op(LCONST_1);
+    else { op(LDC2_W); u2(cpLong(v)); }
+  }
+
+  void getfield(String cls, String name, String desc) {
+    op(GETFIELD);
+    u2(cpRef(9, cls, name, desc));
+  }
+
+  void rt() { op(ALOAD_0); }
+
+  // Call helper 'name'; 'desc' leaves out the IR1Code first argument
+  //
+  void invoke(String name, String desc) {
+    op(INVOKESTATIC);
+    u2(cpRef(10, "IR1Jit", name, "(LIR1Code;" + desc.substring(1)));
+  }
+
+  //-----------------------------------------------------------------
+  // Constant Pool and Class File
+  //-----------------------------------------------------------------
+  //
+
+  ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  DataOutputStream cp = new DataOutputStream(pool);
+  HashMap<String, Integer> cpIndex = new HashMap<String, Integer>();
+  int cpCount = 1;
+
+  int cpEntry(String key, int slots, byte[] bytes) {
+    Integer idx = cpIndex.get(key);
+    if (idx == null) {
+      idx = cpCount;
+      cpCount += slots;
+      pool.write(bytes, 0, bytes.length);
+      cpIndex.put(key, idx);
+    }
+    return idx;
+  }
+
+  static byte[] bytes(int tag, Object... items) {
+    try {
+      ByteArrayOutputStream bo = new ByteArrayOutputStream();
+      DataOutputStream o = new DataOutputStream(bo);
+      o.writeByte(tag);
+      for (Object x: items) {
+	if (x instanceof String)  o.writeUTF((String) x);
+	if (x instanceof Integer) o.writeShort((Integer) x);
+	if (x instanceof Long)    o.writeLong((Long) x);
+      }
+      return bo.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  int cpUtf8(String s) { return cpEntry("U" + s, 1, bytes(1, s)); }
+  int cpClass(String s) { return cpEntry("C" + s, 1, bytes(7, cpUtf8(s))); }
+
+  int cpInt(int v) {
+    byte[] b = { 3, (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+    return cpEntry("I" + v, 1, b);
+  }
+
+  int cpLong(long v) { return cpEntry("J" + v, 2, bytes(5, v)); }
+
+  int cpRef(int tag, String cls, String name, String desc) {
+    int c = cpClass(cls);
+    int nt = cpEntry("N" + name + desc, 1, bytes(12, cpUtf8(name), cpUtf8(desc)));
+    return cpEntry("R" + tag + cls + name + desc, 1, bytes(tag, c, nt));
+  }
+
+  byte[] assemble() throws Exception {
+    int thisClass = cpClass("IR1Jit$" + c.name);
+    int superClass = cpClass("java/lang/Object");
+    int name = cpUtf8("run"), desc = cpUtf8("(LIR1Code;II)J"), codeAttr = cpUtf8("Code");
+    byte[] insts = body.toByteArray();
+
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    DataOutputStream o = new DataOutputStream(bo);
+    o.writeInt(0xCAFEBABE);
+    o.writeShort(0);			// minor version
+    o.writeShort(49);			// major version
+    o.writeShort(cpCount);
+    pool.writeTo(o);
+    o.writeShort(0x0010 | 0x0020);	// ACC_FINAL | ACC_SUPER
+    o.writeShort(thisClass);
+    o.writeShort(superClass);
+    o.writeShort(0);			// interfaces
+    o.writeShort(0);			// fields
+    o.writeShort(1);			// methods
+    o.writeShort(0x0008);		// ACC_STATIC
+    o.writeShort(name);
+    o.writeShort(desc);
+    o.writeShort(1);			// attributes
+    o.writeShort(codeAttr);
+    o.writeInt(12 + insts.length);
+    o.writeShort(16);			// max stack
+    o.writeShort(maxLocals);
+    o.writeInt(insts.length);
+    o.write(insts);
+    o.writeShort(0);			// exception table
+    o.writeShort(0);			// code attributes
+    o.writeShort(0);			// class attributes
+    return bo.toByteArray();
+  }
+
+  //-----------------------------------------------------------------
+  // Runtime Helpers (called from compiled code)
+  //-----------------------------------------------------------------
+  //
+
+  static long load(IR1Code rt, int addr) throws Exception {
+    return rt.interp.memory.load(addr);
+  }
+
+  static void store(IR1Code rt, int addr, long v) throws Exception {
+    rt.interp.memory.store(addr, v);
+  }
+
+  static long malloc(IR1Code rt, int size) throws Exception {
+    return IR1Code.mkPtr(rt.interp.memory.malloc(size));
+  }
+
+  static void print(IR1Code rt, long v) throws Exception {
+    rt.interp.out.println(v);
+  }
+
+  static long undefined(IR1Code rt) throws Exception {
+    throw new IR1Interp.IntException("Undefined value");
+  }
+
+  static void println(IR1Code rt) throws Exception {
+    rt.interp.out.newline();
+  }
+
+  static int enter(IR1Code rt, int size) throws Exception {
+    return rt.pushFrame(size);
+  }
+
+  static void tick(IR1Code rt) throws Exception {
+    rt.interp.tick();
+  }
+
+  // Run function 'id' in the frame at 'bp' (already holding its args),
+  // compiled if possible; pops the frame
+  //
+  static long invoke(IR1Code rt, int id, int bp) throws Throwable {
+    IR1Code.Code callee = rt.codes[id];
+    long result;
+    rt.interp.tick();
+    rt.jitDepth++;
+    try {
+      result = rt.enter(callee, bp);
+    } finally {
+      rt.jitDepth--;
+    }
+    rt.sp = bp;
+    return result;
+  }
+}
@@ -0,0 +1,110 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Lazy program loading for the IR1 interpreter (IR1Interp --lazy).
+//
+// Opening a program only finds where each function is: for a text
+// file, by scanning for the lines that start a function (those whose
+// first non-blank character is the '_' of a <Global>); for a binary
+// file, from its function index (see ir.IR1Bin). A function's body is
+// parsed or decoded the first time it is asked for, which the
+// interpreter does when _main starts and when a call first reaches it.
+//
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import ir.*;
+
+class IR1Lazy {
+  String file;
+  byte[] text;				// a text file's contents
+  IR1Bin bin;				// or its binary form
+  LinkedHashMap<String, Integer> index = new LinkedHashMap<String, Integer>();
+  int[] start, end;			// text of the i-th function
+  IR1.Func[] funcs;			// materialized functions, by index
+
+  IR1Lazy(String file) throws IOException {
+    this.file = file;
+    if (file.endsWith(".irb")) {
+      bin = new IR1Bin(file);
+      funcs = new IR1.Func[bin.funcCount()];
+      for (int i = 0; i < funcs.length; i++)
+	index.put(bin.funcName(i), i);
+      return;
+    }
+    text = Files.readAllBytes(Paths.get(file));
+    ArrayList<Integer> starts = new ArrayList<Integer>();
+    for (int p = 0; p < text.length; ) {
+      int q = p;
+      while (q < text.length && (text[q] == ' ' || text[q] == '\t'))
+	q++;
+      if (q < text.length && text[q] == '_') {
+	int e = q;
+	while (e < text.length && (Character.isLetterOrDigit(text[e]) || text[e] == '_'))
+	  e++;
+	String name = new String(text, q, e - q);
+	if (index.containsKey(name))
+	  throw new IOException(file + ": function " + name + " defined twice");
+	index.put(name, starts.size());
+	starts.add(p);
+      }
+      while (p < text.length && text[p++] != '\n')
+	;
+    }
+    funcs = new IR1.Func[starts.size()];
+    start = new int[funcs.length];
+    end = new int[funcs.length];
+    for (int i = 0; i < funcs.length; i++) {
+      start[i] = starts.get(i);
+      end[i] = i + 1 < funcs.length ? starts.get(i + 1) : text.length;
+    }
+  }
+
+  int count() { return funcs.length; }
+
+  int loaded() {
+    int n = 0;
+    for (IR1.Func f: funcs)
+      if (f != null)
+	n++;
+    return n;
+  }
+
+  // The function named 'name', materialized (null if there is none)
+  //
+  IR1.Func func(String name) throws Exception {
+    Integer i = index.get(name);
+    if (i == null)
+      return null;
+    if (funcs[i] == null) {
+      if (bin != null) {
+	funcs[i] = bin.func(i);
+      } else {
+	InputStream stream = new ByteArrayInputStream(text, start[i], end[i] - start[i]);
+	IR1.Program p = IR1Bin.parse(stream);
+	if (p.funcs.length != 1)
+	  throw new IOException(file + ": cannot parse " + name + " by itself");
+	funcs[i] = p.funcs[0];
+      }
+    }
+    return funcs[i];
+  }
+
+  // The functions materialized so far, in file order
+  //
+  IR1.Program loadedProgram() {
+    ArrayList<IR1.Func> list = new ArrayList<IR1.Func>();
+    for (IR1.Func f: funcs)
+      if (f != null)
+	list.add(f);
+    return new IR1.Program(list);
+  }
+
+  String stats() {
+    return "# Lazy loading: " + loaded() + " of " + count()
+      + " functions materialized\n";
+  }
+}
@@ -0,0 +1,188 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Memoization of pure functions for the IR1 interpreter (IR1Interp --memo).
+//
+// A function is pure if its result depends only on its arguments and
+// calling it has no effect but returning that result:
+//
+//  - it has no Store, no Load (memory may change between calls), and
+//    no call to _malloc, _printInt or _printStr;
+//  - every function it calls is pure (found as the greatest fixed point,
+//    so recursive functions such as fib qualify);
+//  - every Return has a value and the code ends with a Return (the tree
+//    engine leaves 'retVal' alone on a bare return, so the caller would
+//    see a value that does not come from the arguments).
+//
+// The tree engine looks up each call of a pure function in one table,
+// keyed by the function and its argument values, and runs the function
+// only on a miss. The table holds at most 'capacity' results, dropping
+// the least recently used one when full. Calls with pointer arguments
+// or results are not memoized, since the collector may move them.
+//
+import java.util.*;
+import ir.*;
+
+class IR1Memo {
+
+  // -- Table key: a function and its argument values
+  //
+  static class Key {
+    IR1Interp.FuncInfo func;
+    IR1Interp.Val[] args;
+    int hash;
+
+    Key(IR1Interp.FuncInfo func, IR1Interp.Val[] args) {
+      this.func = func;
+      this.args = args;
+      hash = System.identityHashCode(func);
+      for (IR1Interp.Val v: args)
+	hash = hash * 31 + hash(v);
+    }
+
+    public int hashCode() { return hash; }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+	return false;
+      Key k = (Key) o;
+      if (k.func != func || k.hash != hash)
+	return false;
+      for (int i = 0; i < args.length; i++)
+	if (!same(args[i], k.args[i]))
+	  return false;
+      return true;
+    }
+  }
+
+  static int hash(IR1Interp.Val v) {
+    if (v instanceof IR1Interp.IntVal)  return ((IR1Interp.IntVal) v).i;
+    if (v instanceof IR1Interp.BoolVal) return ((IR1Interp.BoolVal) v).b ? 1231 : 1237;
+    if (v instanceof IR1Interp.StrVal)  return ((IR1Interp.StrVal) v).s.hashCode();
+    return 0;
+  }
+
+  static boolean same(IR1Interp.Val a, IR1Interp.Val b) {
+    if (a instanceof IR1Interp.IntVal && b instanceof IR1Interp.IntVal)
+      return ((IR1Interp.IntVal) a).i == ((IR1Interp.IntVal) b).i;
+    if (a instanceof IR1Interp.BoolVal && b instanceof IR1Interp.BoolVal)
+      return ((IR1Interp.BoolVal) a).b == ((IR1Interp.BoolVal) b).b;
+    if (a instanceof IR1Interp.StrVal && b instanceof IR1Interp.StrVal)
+      return ((IR1Interp.StrVal) a).s.equals(((IR1Interp.StrVal) b).s);
+    return a instanceof IR1Interp.UndVal && b instanceof IR1Interp.UndVal;
+  }
+
+  final int capacity;
+  final LinkedHashMap<Key, IR1Interp.Val> table;
+
+  IR1Memo(int capacity) {
+    this.capacity = capacity;
+    table = new LinkedHashMap<Key, IR1Interp.Val>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key, IR1Interp.Val> e) {
+	return size() > IR1Memo.this.capacity;
+      }
+    };
+  }
+
+  //-----------------------------------------------------------------
+  // Purity Analysis
+  //-----------------------------------------------------------------
+  //
+
+  // Set 'pure' in every function's FuncInfo (after link())
+  //
+  static void analyze(Collection<IR1Interp.FuncInfo> funcs) {
+    for (IR1Interp.FuncInfo info: funcs)
+      info.pure = local(info);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (IR1Interp.FuncInfo info: funcs) {
+	if (!info.pure)
+	  continue;
+	for (IR1Interp.FuncInfo callee: info.callees)
+	  if (callee != null && !callee.pure) {
+	    info.pure = false;
+	    changed = true;
+	    break;
+	  }
+      }
+    }
+  }
+
+  // The conditions on a function's own code
+  //
+  static boolean local(IR1Interp.FuncInfo info) {
+    IR1.Inst[] code = info.func.code;
+    if (code.length == 0 || !(code[code.length-1] instanceof IR1.Return))
+      return false;
+    for (int i = 0; i < code.length; i++) {
+      IR1.Inst n = code[i];
+      if (n instanceof IR1.Store || n instanceof IR1.Load)
+	return false;
+      if (n instanceof IR1.Call && info.callKinds[i] != IR1Interp.USER)
+	return false;
+      if (n instanceof IR1.Return && ((IR1.Return) n).val == null)
+	return false;
+    }
+    return true;
+  }
+
+  //-----------------------------------------------------------------
+  // Table
+  //-----------------------------------------------------------------
+  //
+
+  // The key of a call of pure function 'func' with 'args' (null if
+  // the call cannot be memoized)
+  //
+  static Key key(IR1Interp.FuncInfo func, IR1Interp.Val[] args) {
+    for (IR1Interp.Val v: args)
+      if (v instanceof IR1Interp.PtrVal)
+	return null;
+    return new Key(func, args);
+  }
+
+  // The memoized result of a call (null if none); counts a hit or a miss
+  //
+  IR1Interp.Val get(Key key) {
+    IR1Interp.Val v = table.get(key);
+    if (v != null)
+      key.func.memoHits++;
+    else
+      key.func.memoMisses++;
+    return v;
+  }
+
+  void put(Key key, IR1Interp.Val result) {
+    if (result != null && !(result instanceof IR1Interp.PtrVal))
+      table.put(key, result);
+  }
+
+  // Hit/miss counts of the pure functions of 'p'
+  //
+  String stats(IR1.Program p, Map<String, IR1Interp.FuncInfo> funcs) {
+    StringBuilder sb = new StringBuilder();
+    int pure = 0;
+    for (IR1.Func f: p.funcs)
+      if (funcs.get(f.gname.s).pure)
+	pure++;
+    sb.append("# Memo: " + pure + " pure functions, " + table.size() + "/"
+	      + capacity + " entries\n");
+    sb.append(String.format("%-20s %12s %12s %7s%n", "function", "hits", "misses",
+			    "hit%"));
+    for (IR1.Func f: p.funcs) {
+      IR1Interp.FuncInfo info = funcs.get(f.gname.s);
+      if (!info.pure)
+	continue;
+      long calls = info.memoHits + info.memoMisses;
+      sb.append(String.format("%-20s %12d %12d %6.1f%%%n", f.gname, info.memoHits,
+			      info.memoMisses,
+			      calls == 0 ? 0.0 : 100.0 * info.memoHits / calls));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,147 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Program output for the IR1 interpreter (_printInt and _printStr).
+//
+// Each interpreter has its own IR1Out, so each program's output can go
+// to its own stream. Both engines (and compiled code) print through it
+// instead of calling System.out.println per line. Output is encoded
+// straight into one byte buffer -- ints digit by digit, without
+// building Strings -- and handed to the underlying stream in one write
+// when the buffer fills up, when the program ends (normally or not),
+// or, with the "line" policy (IR1Interp --flush=line), after every line.
+//
+// The bytes written are the same as println's (for the ASCII output of
+// IR1 programs, and with the platform line separator).
+//
+import java.io.*;
+
+class IR1Out {
+  static final byte[] NEWLINE = System.lineSeparator().getBytes();
+  static final byte[] TRUE = "true".getBytes(), FALSE = "false".getBytes();
+
+  byte[] buf = new byte[1 << 16];
+  int pos = 0;
+  OutputStream sink = System.out;
+  boolean lineFlush = false;	// flush policy: after every line
+
+  final byte[] digits = new byte[11];	// scratch for writeInt
+  final IR1Code vm;			// for string values
+
+  IR1Out(IR1Code vm) {
+    this.vm = vm;
+  }
+
+  // Start writing to 'out' (discarding anything unflushed)
+  //
+  void open(OutputStream out) {
+    sink = out;
+    pos = 0;
+  }
+
+  // Set the buffer size (in bytes, at least 16)
+  //
+  void setSize(int size) {
+    buf = new byte[Math.max(16, size)];
+    pos = 0;
+  }
+
+  // Write out the buffered bytes
+  //
+  void flush() throws IOException {
+    if (pos > 0)
+      sink.write(buf, 0, pos);
+    pos = 0;
+    sink.flush();
+  }
+
+  // Make room for 'n' more bytes (n <= buf.length)
+  //
+  void room(int n) throws IOException {
+    if (buf.length - pos < n) {
+      sink.write(buf, 0, pos);
+      pos = 0;
+    }
+  }
+
+  void write(byte[] b) throws IOException {
+    if (b.length > buf.length) {
+      flush();
+      sink.write(b);
+      return;
+    }
+    room(b.length);
+    System.arraycopy(b, 0, buf, pos, b.length);
+    pos += b.length;
+  }
+
+  void writeInt(int i) throws IOException {
+    room(digits.length);
+    long v = i;
+    if (v < 0) {
+      buf[pos++] = '-';
+      v = -v;
+    }
+    int k = digits.length;
+    do {
+      digits[--k] = (byte) ('0' + v % 10);
+      v /= 10;
+    } while (v != 0);
+    System.arraycopy(digits, k, buf, pos, digits.length - k);
+    pos += digits.length - k;
+  }
+
+  void writeStr(String s) throws IOException {
+    int n = s.length();
+    for (int k = 0; k < n; k++) {
+      if (s.charAt(k) >= 0x80) {	// let the platform encode it
+	write(s.getBytes());
+	return;
+      }
+    }
+    if (n > buf.length) {
+      write(s.getBytes());
+      return;
+    }
+    room(n);
+    for (int k = 0; k < n; k++)
+      buf[pos++] = (byte) s.charAt(k);
+  }
+
+  void newline() throws IOException {
+    write(NEWLINE);
+    if (lineFlush)
+      flush();
+  }
+
+  // -- Printing a value and a newline (one _printInt/_printStr)
+  //
+
+  // A code-engine (tagged) value
+  //
+  void println(long v) throws IOException {
+    long t = IR1Code.tag(v);
+    if (t == IR1Code.INT)
+      writeInt((int) v);
+    else if (t == IR1Code.BOOL)
+      write((v & 1) != 0 ? TRUE : FALSE);
+    else
+      writeStr(vm.show(v));
+    newline();
+  }
+
+  // A tree-engine value
+  //
+  void println(IR1Interp.Val v) throws IOException {
+    if (v instanceof IR1Interp.IntVal)
+      writeInt(((IR1Interp.IntVal) v).i);
+    else if (v instanceof IR1Interp.BoolVal)
+      write(((IR1Interp.BoolVal) v).b ? TRUE : FALSE);
+    else
+      writeStr("" + v);
+    newline();
+  }
+}
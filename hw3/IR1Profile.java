@@ -0,0 +1,119 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Execution profile for the IR1 interpreter (IR1Interp --profile).
+//
+// The counters live in each function's FuncInfo as plain arrays indexed
+// by instruction index, and are bumped by the tree engine's fetch-execute
+// loop, which also keeps the running total of instructions executed
+// (IR1Interp.executed); this class only totals them up and writes them
+// out:
+//
+//  - a report (on stderr): per-function calls and inclusive/exclusive
+//    instruction counts, followed by the program listing with each
+//    instruction's index and execution count, and the taken/not-taken
+//    counts of every CJump;
+//
+//  - a profile file, one record per line, tab-separated:
+//
+//      func    <name> <calls> <inclusive> <exclusive>
+//      inst    <name> <index> <count>
+//      branch  <name> <index> <taken> <not-taken>
+//
+//    with '#' starting a comment line. Instruction indices are those
+//    of IR1.Func.code (labels included), as in the report's listing.
+//
+import java.io.*;
+import java.util.*;
+import ir.*;
+
+class IR1Profile {
+
+  // Allocate (or clear) the counters of 'info'
+  //
+  static void init(IR1Interp.FuncInfo info) {
+    info.counts = new long[info.func.code.length];
+    info.taken = new long[info.func.code.length];
+    info.calls = info.inclusive = 0;
+    info.active = 0;
+  }
+
+  // Function entry and exit; only the outermost activation of a
+  // recursive function adds to its inclusive count
+  //
+  static void enter(IR1Interp.FuncInfo info, long executed) {
+    info.calls++;
+    if (info.active++ == 0)
+      info.start = executed;
+  }
+
+  static void exit(IR1Interp.FuncInfo info, long executed) {
+    if (--info.active == 0)
+      info.inclusive += executed - info.start;
+  }
+
+  static long exclusive(IR1Interp.FuncInfo info) {
+    long n = 0;
+    for (long c: info.counts)
+      n += c;
+    return n;
+  }
+
+  // Human-readable report
+  //
+  static void report(IR1.Program p, Map<String, IR1Interp.FuncInfo> funcs,
+		     long executed, PrintStream out) {
+    List<IR1Interp.FuncInfo> infos = new ArrayList<IR1Interp.FuncInfo>();
+    for (IR1.Func f: p.funcs)
+      infos.add(funcs.get(f.gname.s));
+    List<IR1Interp.FuncInfo> sorted = new ArrayList<IR1Interp.FuncInfo>(infos);
+    sorted.sort((a, b) -> Long.compare(exclusive(b), exclusive(a)));
+
+    out.println("# Profile: " + executed + " instructions");
+    out.printf("%-20s %10s %12s %12s %6s%n",
+	       "function", "calls", "inclusive", "exclusive", "excl%");
+    for (IR1Interp.FuncInfo info: sorted) {
+      long excl = exclusive(info);
+      out.printf("%-20s %10d %12d %12d %5.1f%%%n", info.func.gname,
+		 info.calls, info.inclusive, excl,
+		 executed == 0 ? 0.0 : 100.0 * excl / executed);
+    }
+    for (IR1Interp.FuncInfo info: infos) {
+      IR1.Func f = info.func;
+      out.print("\n" + f.header());
+      for (int i = 0; i < f.code.length; i++) {
+	String inst = f.code[i].toString();
+	inst = inst.substring(0, inst.length() - 1);	// drop "\n"
+	out.printf("%12d  %3d. %s", info.counts[i], i, inst);
+	if (f.code[i] instanceof IR1.CJump)
+	  out.printf("    [taken %d, not taken %d]",
+		     info.taken[i], info.counts[i] - info.taken[i]);
+	out.println();
+      }
+    }
+  }
+
+  // Machine-readable profile file
+  //
+  static void write(IR1.Program p, Map<String, IR1Interp.FuncInfo> funcs,
+		    long executed, String file) throws IOException {
+    PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+    out.println("# IR1 profile\t" + executed);
+    for (IR1.Func g: p.funcs) {
+      IR1Interp.FuncInfo info = funcs.get(g.gname.s);
+      IR1.Func f = info.func;
+      out.println("func\t" + f.gname + "\t" + info.calls + "\t"
+		  + info.inclusive + "\t" + exclusive(info));
+      for (int i = 0; i < f.code.length; i++) {
+	out.println("inst\t" + f.gname + "\t" + i + "\t" + info.counts[i]);
+	if (f.code[i] instanceof IR1.CJump)
+	  out.println("branch\t" + f.gname + "\t" + i + "\t" + info.taken[i]
+		      + "\t" + (info.counts[i] - info.taken[i]));
+      }
+    }
+    out.close();
+  }
+}
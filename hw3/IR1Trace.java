@@ -0,0 +1,120 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Execution trace for the IR1 interpreter (IR1Interp --trace).
+//
+// The tree engine records every instruction it completes in a ring
+// buffer of the last N (rounded up to a power of two): the function,
+// the instruction index, and the value the instruction assigned (to
+// its Binop/Unop/Move/Load dst or Call rdst). The buffer is two
+// parallel primitive arrays, indexed by the count of instructions
+// recorded, masked: the instruction, numbered across the whole program
+// (function i's instruction pc is bases[i] + pc), and the value, in the
+// code engine's tagged form (see IR1Code.unbox). IR1Interp's fetch-
+// execute loop stores the instruction after executing it; the value is
+// stored before that, by the instruction, where it assigns it (see
+// value()), so the loop does not read it back from the frame. Nothing
+// is allocated, and no references are stored (with their GC write
+// barriers, they would cost more than the conversion).
+//
+// When a run ends abnormally (an error in the program or in the
+// interpreter, or a --budget/--deadline abort), the buffer is dumped
+// with each instruction's IR1 source line, in the order the
+// instructions completed (so a call comes after its callee's
+// instructions), followed by the instructions that did not complete:
+// the calls still on the stack and, last, the one that failed.
+//
+//   # Trace: last 4 of 1234 instructions (oldest first)
+//   _fib              5. t3 = t1 + t2                 => 13
+//   _fib              6. return t3
+//   # Unfinished:
+//   _main             2. t4 = call _fib(7)
+//   _fib              7. t5 = -t3
+//
+import java.io.*;
+import java.util.*;
+import ir.*;
+
+class IR1Trace {
+  final IR1Code vm;			// for the tagged value form
+  final int size, mask;
+  final int[] insts;			// program-wide instruction numbers
+  final long[] values;			// assigned values, tagged
+  long count = 0;			// instructions recorded
+  final ArrayList<IR1Interp.FuncInfo> infos = new ArrayList<IR1Interp.FuncInfo>();
+  int[] bases = new int[16];		// first instruction number of each
+  int total = 0;			// instructions registered
+
+  IR1Trace(IR1Code vm, int n) {
+    this.vm = vm;
+    size = Integer.highestOneBit(Math.max(n, 1) * 2 - 1);
+    mask = size - 1;
+    insts = new int[size];
+    values = new long[size];
+  }
+
+  // Number the instructions of 'info', and find the dst slot of each
+  // (-1 if none)
+  //
+  void register(IR1Interp.FuncInfo info) {
+    IR1.Inst[] code = info.func.code;
+    if (infos.size() == bases.length)
+      bases = Arrays.copyOf(bases, bases.length * 2);
+    bases[infos.size()] = total;
+    info.traceBase = total;
+    total += code.length;
+    info.traceDst = new int[code.length];
+    for (int i = 0; i < code.length; i++) {
+      IR1.Inst n = code[i];
+      boolean dst = n instanceof IR1.Binop || n instanceof IR1.Unop
+	|| n instanceof IR1.Move || n instanceof IR1.Load || n instanceof IR1.Call;
+      info.traceDst[i] = dst ? info.slots[i][0] : -1;
+    }
+    infos.add(info);
+  }
+
+  // Record the value the instruction being executed assigned (it goes
+  // in the entry that the instruction will be recorded in)
+  //
+  void value(IR1Interp.Val v) {
+    values[(int) count & mask] = v != null && v.getClass() == IR1Interp.IntVal.class
+      ? IR1Code.mkInt(((IR1Interp.IntVal) v).i) : vm.unbox(v);
+  }
+
+  void dump(List<IR1Interp.Env> envs, PrintStream out) {
+    long n = Math.min(count, size);
+    out.println("# Trace: last " + n + " of " + count + " instructions (oldest first)");
+    for (long s = count - n; s < count; s++) {
+      int k = (int) s & mask;
+      int f = Arrays.binarySearch(bases, 0, infos.size(), insts[k]);
+      if (f < 0)
+	f = -f - 2;
+      while (f + 1 < infos.size() && bases[f+1] == insts[k])	// skip empty functions
+	f++;
+      IR1Interp.FuncInfo info = infos.get(f);
+      int pc = insts[k] - bases[f];
+      String line = line(info.func, pc);
+      if (info.traceDst[pc] >= 0)
+	line = String.format("%-48s => %s", line, vm.box(values[k]));
+      out.println(line);
+    }
+    if (envs == null || envs.isEmpty())
+      return;
+    out.println("# Unfinished:");
+    for (IR1Interp.Env env: envs)
+      out.println(line(env.info.func, env.pc));
+  }
+
+  String dump(List<IR1Interp.Env> envs) {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    dump(envs, new PrintStream(buf, true));
+    return buf.toString();
+  }
+
+  static String line(IR1.Func f, int pc) {
+    return String.format("%-16s %3d. %s", f.gname, pc, f.code[pc].toString().trim());
+  }
+}
@@ -0,0 +1,32 @@
+#!/bin/sh
+
+# Generates a large IR1 program, for load-time benchmarks.
+#
+# Usage:
+#   sh bench/big.sh [N] > big.ir  -- N functions of 100 instructions
+#                                    each, plus _main (N = 1000)
+#
+# Each function calls the one before it, except every tenth, so a run
+# reaches only _main and the last ten functions.
+#
+awk -v n=${1:-1000} 'BEGIN {
+  print "# IR1 Program"
+  t = 0
+  for (k = 0; k < n; k++) {
+    printf "\n_f%d (a, b)\n(x, y)\n{\n x = a\n y = 0\n", k
+    for (j = 0; j < 23; j++) {
+      printf " t%d = x + %d\n", ++t, j
+      printf " t%d = t%d * 2\n", t+1, t; t++
+      printf " y = y + t%d\n", t
+      printf " x = y - b\n"
+    }
+    printf " t%d = y\n", ++t
+    printf " if b < 0 goto L%d\n", k
+    if (k % 10 != 0)
+      printf " t%d = call _f%d(x, b)\n", t, k-1
+    else
+      printf " t%d = x / 7\n", t
+    printf "L%d:\n return t%d\n}\n", k, t
+  }
+  printf "\n_main ()\n{\n t%d = call _f%d(1, 2)\n call _printInt(t%d)\n return \n}\n", ++t, n-1, t
+}'
@@ -0,0 +1,483 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Binary encoding of IR1 programs.
+//
+// Usage: java ir.IR1Bin <file.ir> <file.irb>     (convert)
+//        java ir.IR1Bin -bench <file.ir> ...     (load-time benchmark)
+//
+// A .irb file holds the same program as its .ir text, but is loaded
+// without the parser, and one function at a time if need be: the file
+// is mapped into memory, and a function is decoded only when asked for.
+//
+// Layout (u4: 4-byte big-endian int; vN: unsigned LEB128 varint;
+// sN: zigzag-encoded signed varint):
+//
+//   header     u4 magic "IR1B", u4 version,
+//              u4 #strings, u4 offset of string index,
+//              u4 #funcs, u4 offset of function index
+//   strings    UTF-8 bytes of every string, back to back
+//   string idx u4 start offset of each string, then the end offset
+//   functions  each:  vN #params {vN param}  vN #locals {vN local}
+//                     vN #insts {inst}
+//   func idx   for each function: u4 name, u4 offset
+//
+// Names (functions, vars, labels) and string literals are indices into
+// the string table. An instruction is an opcode byte and its operands;
+// an operand (Src or Dest) is one varint holding a kind in its low three
+// bits (see the K* constants) and the value above them:
+//
+//   BINOP  op dst src1 src2     (op: AOP ordinal, or 6 + ROP ordinal)
+//   UNOP   op dst src           MOVE   dst src
+//   LOAD   dst base sN:offset   STORE  base sN:offset src
+//   CALL   vN:name dst vN:#args {src}   (dst of kind KNONE if absent)
+//   RETURN src                  (KNONE if absent)
+//   CJUMP  op src1 src2 vN:label        JUMP   vN:label
+//   LABEL  vN:label
+//
+package ir;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import ir.IR1.*;
+
+public class IR1Bin {
+  static final int MAGIC = 0x49523142;		// "IR1B"
+  static final int VERSION = 1;
+  static final int HEADER = 24;
+
+  static final int BINOP = 0, UNOP = 1, MOVE = 2, LOAD = 3, STORE = 4,
+    CALL = 5, RETURN = 6, CJUMP = 7, JUMP = 8, LABEL = 9;
+
+  static final int KID = 0, KTEMP = 1, KINT = 2, KBOOL = 3, KSTR = 4, KNONE = 5;
+
+  //-----------------------------------------------------------------
+  // Writer
+  //-----------------------------------------------------------------
+  //
+
+  public static void write(Program p, String file) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    write(p, out);
+    out.close();
+  }
+
+  public static void write(Program p, OutputStream os) throws IOException {
+    Encoder w = new Encoder();
+    int[] names = new int[p.funcs.length];
+    int[] offsets = new int[p.funcs.length];
+    ByteArrayOutputStream funcs = new ByteArrayOutputStream();
+    for (int i = 0; i < p.funcs.length; i++) {
+      names[i] = w.str(p.funcs[i].gname.s);
+      offsets[i] = funcs.size();
+      w.func(p.funcs[i]);
+      w.buf.writeTo(funcs);
+      w.buf.reset();
+    }
+    ByteArrayOutputStream strings = new ByteArrayOutputStream();
+    int[] starts = new int[w.strs.size() + 1];
+    int k = 0;
+    for (String s: w.strs.keySet()) {
+      starts[k++] = HEADER + strings.size();
+      strings.write(s.getBytes("UTF-8"));
+    }
+    starts[k] = HEADER + strings.size();
+    int funcBase = starts[k] + 4 * starts.length;
+    int funcIdx = funcBase + funcs.size();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(w.strs.size());
+    out.writeInt(starts[k]);
+    out.writeInt(p.funcs.length);
+    out.writeInt(funcIdx);
+    strings.writeTo(out);
+    for (int s: starts)
+      out.writeInt(s);
+    funcs.writeTo(out);
+    for (int i = 0; i < p.funcs.length; i++) {
+      out.writeInt(names[i]);
+      out.writeInt(funcBase + offsets[i]);
+    }
+    out.flush();
+  }
+
+  static class Encoder {
+    LinkedHashMap<String, Integer> strs = new LinkedHashMap<String, Integer>();
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+    int str(String s) {
+      Integer id = strs.get(s);
+      if (id == null) {
+	id = strs.size();
+	strs.put(s, id);
+      }
+      return id;
+    }
+
+    void u(long v) {
+      while ((v & ~0x7FL) != 0) {
+	buf.write((int) (v & 0x7F) | 0x80);
+	v >>>= 7;
+      }
+      buf.write((int) v);
+    }
+
+    void s(long v) { u((v << 1) ^ (v >> 63)); }
+
+    void func(Func f) {
+      u(f.params.length);
+      for (Id v: f.params)
+	u(str(v.s));
+      u(f.locals.length);
+      for (Id v: f.locals)
+	u(str(v.s));
+      u(f.code.length);
+      for (Inst n: f.code)
+	inst(n);
+    }
+
+    void inst(Inst n) {
+      if (n instanceof Binop) {
+	Binop b = (Binop) n;
+	buf.write(BINOP);
+	buf.write(b.op instanceof AOP ? ((AOP) b.op).ordinal()
+		  : 6 + ((ROP) b.op).ordinal());
+	opnd(b.dst); opnd(b.src1); opnd(b.src2);
+      } else if (n instanceof Unop) {
+	Unop u = (Unop) n;
+	buf.write(UNOP);
+	buf.write(u.op.ordinal());
+	opnd(u.dst); opnd(u.src);
+      } else if (n instanceof Move) {
+	buf.write(MOVE);
+	opnd(((Move) n).dst); opnd(((Move) n).src);
+      } else if (n instanceof Load) {
+	Load l = (Load) n;
+	buf.write(LOAD);
+	opnd(l.dst); opnd(l.addr.base); s(l.addr.offset);
+      } else if (n instanceof Store) {
+	Store s = (Store) n;
+	buf.write(STORE);
+	opnd(s.addr.base); s(s.addr.offset); opnd(s.src);
+      } else if (n instanceof Call) {
+	Call c = (Call) n;
+	buf.write(CALL);
+	u(str(c.gname.s));
+	opnd(c.rdst);
+	u(c.args.length);
+	for (Src a: c.args)
+	  opnd(a);
+      } else if (n instanceof Return) {
+	buf.write(RETURN);
+	opnd(((Return) n).val);
+      } else if (n instanceof CJump) {
+	CJump c = (CJump) n;
+	buf.write(CJUMP);
+	buf.write(c.op.ordinal());
+	opnd(c.src1); opnd(c.src2);
+	u(str(c.lab.name));
+      } else if (n instanceof Jump) {
+	buf.write(JUMP);
+	u(str(((Jump) n).lab.name));
+      } else {
+	buf.write(LABEL);
+	u(str(((LabelDec) n).lab.name));
+      }
+    }
+
+    void opnd(Object o) {
+      if (o == null)
+	u(KNONE);
+      else if (o instanceof Id)
+	u((long) str(((Id) o).s) << 3 | KID);
+      else if (o instanceof Temp)
+	u((long) ((Temp) o).num << 3 | KTEMP);
+      else if (o instanceof IntLit) {
+	long i = ((IntLit) o).i;
+	u(((i << 1) ^ (i >> 63)) << 3 | KINT);
+      } else if (o instanceof BoolLit)
+	u((((BoolLit) o).b ? 1 : 0) << 3 | KBOOL);
+      else
+	u((long) str(((StrLit) o).s) << 3 | KSTR);
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Loader
+  //-----------------------------------------------------------------
+  //
+
+  final ByteBuffer buf;
+  final String[] strings;		// decoded on first use
+  final Func[] funcs;			// decoded on first use
+  final int stringIdx, funcIdx;
+  HashMap<String, Integer> funcMap;	// built on first lookup by name
+
+  // Map 'file' (nothing is decoded yet)
+  //
+  public IR1Bin(String file) throws IOException {
+    FileChannel ch = new RandomAccessFile(file, "r").getChannel();
+    buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+    ch.close();
+    if (buf.limit() < HEADER || buf.getInt(0) != MAGIC)
+      throw new IOException(file + ": not an IR1 binary file");
+    if (buf.getInt(4) != VERSION)
+      throw new IOException(file + ": IR1 binary version " + buf.getInt(4));
+    strings = new String[buf.getInt(8)];
+    stringIdx = buf.getInt(12);
+    funcs = new Func[buf.getInt(16)];
+    funcIdx = buf.getInt(20);
+  }
+
+  // Load a whole program
+  //
+  public static Program read(String file) throws IOException {
+    return new IR1Bin(file).program();
+  }
+
+  public Program program() {
+    for (int i = 0; i < funcs.length; i++)
+      func(i);
+    return new Program(funcs.clone());
+  }
+
+  public int funcCount() { return funcs.length; }
+
+  public String funcName(int i) { return str(buf.getInt(funcIdx + 8 * i)); }
+
+  // The function named 'name' (null if there is none)
+  //
+  public Func func(String name) {
+    if (funcMap == null) {
+      funcMap = new HashMap<String, Integer>();
+      for (int i = 0; i < funcs.length; i++)
+	funcMap.put(funcName(i), i);
+    }
+    Integer i = funcMap.get(name);
+    return i == null ? null : func(i);
+  }
+
+  // The i-th function
+  //
+  public Func func(int i) {
+    if (funcs[i] == null)
+      funcs[i] = new Decoder(buf.getInt(funcIdx + 8 * i + 4)).func(funcName(i));
+    return funcs[i];
+  }
+
+  // Number of functions decoded so far
+  //
+  public int loaded() {
+    int n = 0;
+    for (Func f: funcs)
+      if (f != null)
+	n++;
+    return n;
+  }
+
+  String str(int i) {
+    if (strings[i] == null) {
+      int start = buf.getInt(stringIdx + 4 * i), end = buf.getInt(stringIdx + 4 * i + 4);
+      byte[] b = new byte[end - start];
+      for (int k = 0; k < b.length; k++)
+	b[k] = buf.get(start + k);
+      try {
+	strings[i] = new String(b, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+	throw new RuntimeException(e);
+      }
+    }
+    return strings[i];
+  }
+
+  class Decoder {
+    int pos;
+
+    Decoder(int pos) { this.pos = pos; }
+
+    long u() {
+      long v = 0;
+      int shift = 0, b;
+      do {
+	b = buf.get(pos++);
+	v |= (long) (b & 0x7F) << shift;
+	shift += 7;
+      } while ((b & 0x80) != 0);
+      return v;
+    }
+
+    int s() { long v = u(); return (int) ((v >>> 1) ^ -(v & 1)); }
+
+    int op() { return buf.get(pos++); }
+
+    Id[] ids() {
+      Id[] ids = new Id[(int) u()];
+      for (int i = 0; i < ids.length; i++)
+	ids[i] = new Id(str((int) u()));
+      return ids;
+    }
+
+    Func func(String name) {
+      Id[] params = ids();
+      Id[] locals = ids();
+      Inst[] code = new Inst[(int) u()];
+      for (int i = 0; i < code.length; i++)
+	code[i] = inst();
+      return new Func(new Global(name), params, locals, code);
+    }
+
+    Inst inst() {
+      switch (op()) {
+      case BINOP: {
+	int o = op();
+	BOP bop = o < 6 ? AOP.values()[o] : ROP.values()[o - 6];
+	Dest d = (Dest) opnd();
+	Src s1 = (Src) opnd();
+	return new Binop(bop, d, s1, (Src) opnd());
+      }
+      case UNOP: {
+	UOP uop = UOP.values()[op()];
+	Dest d = (Dest) opnd();
+	return new Unop(uop, d, (Src) opnd());
+      }
+      case MOVE: {
+	Dest d = (Dest) opnd();
+	return new Move(d, (Src) opnd());
+      }
+      case LOAD: {
+	Dest d = (Dest) opnd();
+	Src base = (Src) opnd();
+	return new Load(d, new Addr(base, s()));
+      }
+      case STORE: {
+	Src base = (Src) opnd();
+	Addr a = new Addr(base, s());
+	return new Store(a, (Src) opnd());
+      }
+      case CALL: {
+	Global g = new Global(str((int) u()));
+	Dest d = (Dest) opnd();
+	Src[] args = new Src[(int) u()];
+	for (int i = 0; i < args.length; i++)
+	  args[i] = (Src) opnd();
+	return new Call(g, args, d);
+      }
+      case RETURN: {
+	Src s = (Src) opnd();
+	return s == null ? new Return() : new Return(s);
+      }
+      case CJUMP: {
+	ROP rop = ROP.values()[op()];
+	Src s1 = (Src) opnd();
+	Src s2 = (Src) opnd();
+	return new CJump(rop, s1, s2, new Label(str((int) u())));
+      }
+      case JUMP:
+	return new Jump(new Label(str((int) u())));
+      case LABEL:
+	return new LabelDec(new Label(str((int) u())));
+      }
+      throw new IllegalStateException("bad IR1 binary opcode at " + (pos - 1));
+    }
+
+    Object opnd() {
+      long v = u();
+      long x = v >>> 3;
+      switch ((int) (v & 7)) {
+      case KID:   return new Id(str((int) x));
+      case KTEMP: return new Temp((int) x);
+      case KINT:  return new IntLit((int) ((x >>> 1) ^ -(x & 1)));
+      case KBOOL: return x != 0 ? IR1.TRUE : IR1.FALSE;
+      case KSTR:  return new StrLit(str((int) x));
+      }
+      return null;
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Main (conversion and benchmark)
+  //-----------------------------------------------------------------
+  //
+
+  public static void main(String [] args) throws Exception {
+    if (args.length == 2 && !args[0].equals("-bench")) {
+      write(parse(args[0]), args[1]);
+    } else if (args.length >= 2) {
+      for (int i = 1; i < args.length; i++)
+	bench(args[i]);
+    } else {
+      System.out.println("Usage: java ir.IR1Bin <file.ir> <file.irb>\n" +
+			 "       java ir.IR1Bin -bench <file.ir> ...");
+    }
+  }
+
+  static boolean parsed = false;	// the parser is static
+
+  public static Program parse(String file) throws Exception {
+    FileInputStream stream = new FileInputStream(file);
+    Program p = parse(stream);
+    stream.close();
+    return p;
+  }
+
+  // Parse IR1 text from 'stream'. The JavaCC parser is static, so it
+  // is constructed only once, and re-initialized after that; all
+  // parsing goes through here.
+  //
+  public static Program parse(InputStream stream) throws Exception {
+    if (!parsed)
+      new IR1Parser(stream);
+    else
+      IR1Parser.ReInit(stream);
+    parsed = true;
+    return IR1Parser.Program();
+  }
+
+  // Time parsing 'file' against loading its binary form, whole and
+  // one function (the last) at a time; best of 10 runs after a warm-up
+  //
+  static void bench(String file) throws Exception {
+    Program p = parse(file);
+    int insts = 0;
+    for (Func f: p.funcs)
+      insts += f.code.length;
+    File bin = File.createTempFile("ir1", ".irb");
+    bin.deleteOnExit();
+    write(p, bin.getPath());
+    String last = p.funcs[p.funcs.length - 1].gname.s;
+    Program q = read(bin.getPath());
+    for (int i = 0; i < p.funcs.length; i++)
+      if (!p.funcs[i].toString().equals(q.funcs[i].toString()))
+	throw new IOException(file + ": binary form of " + p.funcs[i].gname
+			      + " does not read back the same");
+
+    long parse = Long.MAX_VALUE, load = Long.MAX_VALUE, lazy = Long.MAX_VALUE;
+    for (int i = 0; i <= 10; i++) {
+      long t0 = System.nanoTime();
+      parse(file);
+      long t1 = System.nanoTime();
+      read(bin.getPath());
+      long t2 = System.nanoTime();
+      new IR1Bin(bin.getPath()).func(last);
+      long t3 = System.nanoTime();
+      if (i > 0) {
+	parse = Math.min(parse, t1 - t0);
+	load = Math.min(load, t2 - t1);
+	lazy = Math.min(lazy, t3 - t2);
+      }
+    }
+    System.out.printf("%s: %d funcs, %d insts; %d bytes of text, %d binary%n",
+		      file, p.funcs.length, insts, new File(file).length(),
+		      bin.length());
+    System.out.printf("  parse text     %9.2f ms%n", parse / 1e6);
+    System.out.printf("  load binary    %9.2f ms  (%.1fx)%n", load / 1e6,
+		      (double) parse / load);
+    System.out.printf("  load one func  %9.2f ms%n", lazy / 1e6);
+  }
+}
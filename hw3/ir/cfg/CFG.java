@@ -0,0 +1,145 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Control-flow graph of an IR1 function.
+//
+// A basic block is a maximal run of instructions entered only at its
+// first and left only at its last: a block starts at the function's
+// first instruction, at a label (a run of labels starts one block), and
+// after a Jump, CJump or Return; it ends before the next block starts.
+// Its successors are the target of a final Jump, both the target and
+// the next block of a final CJump, none after a Return, and otherwise
+// the next block. blocks[0] is the entry (an empty one, if the function
+// has no code).
+//
+// See Dominators, Loops and Liveness for the analyses over it, and
+// CFGBench for their build times.
+//
+package ir.cfg;
+import java.util.*;
+import ir.*;
+
+public class CFG {
+  public final IR1.Func func;
+  public final Block[] blocks;		// in code order
+  public final int[] blockOf;		// instruction index -> block id
+
+  public static class Block {
+    public final int id;
+    public final int start, end;	// code[start] .. code[end-1]
+    public final List<Block> preds = new ArrayList<Block>();
+    public final List<Block> succs = new ArrayList<Block>();
+
+    Block(int id, int start, int end) {
+      this.id = id;
+      this.start = start;
+      this.end = end;
+    }
+
+    public int size() { return end - start; }
+    public String toString() { return "B" + id + "[" + start + "," + end + ")"; }
+  }
+
+  public CFG(IR1.Func f) {
+    func = f;
+    IR1.Inst[] code = f.code;
+    int n = code.length;
+    boolean[] leader = new boolean[n + 1];
+    leader[0] = true;
+    for (int i = 0; i < n; i++) {
+      IR1.Inst c = code[i];
+      if (c instanceof IR1.LabelDec && (i == 0 || !(code[i-1] instanceof IR1.LabelDec)))
+	leader[i] = true;
+      if (c instanceof IR1.Jump || c instanceof IR1.CJump || c instanceof IR1.Return)
+	leader[i+1] = true;
+    }
+    List<Block> list = new ArrayList<Block>();
+    blockOf = new int[n];
+    for (int i = 0; i < n || list.isEmpty(); ) {
+      int j = i + 1;
+      while (j < n && !leader[j])
+	j++;
+      j = Math.min(j, n);
+      Block b = new Block(list.size(), i, j);
+      for (int k = i; k < j; k++)
+	blockOf[k] = b.id;
+      list.add(b);
+      i = j;
+    }
+    blocks = list.toArray(new Block[0]);
+
+    HashMap<String, Block> labels = new HashMap<String, Block>();
+    for (int i = 0; i < n; i++)
+      if (code[i] instanceof IR1.LabelDec)
+	labels.put(((IR1.LabelDec) code[i]).lab.name, blocks[blockOf[i]]);
+    for (Block b: blocks) {
+      IR1.Inst last = b.size() > 0 ? code[b.end-1] : null;
+      Block next = b.id + 1 < blocks.length ? blocks[b.id+1] : null;
+      if (last instanceof IR1.Jump) {
+	edge(b, target(labels, ((IR1.Jump) last).lab));
+      } else if (last instanceof IR1.CJump) {
+	if (next != null)
+	  edge(b, next);
+	edge(b, target(labels, ((IR1.CJump) last).lab));
+      } else if (!(last instanceof IR1.Return) && next != null) {
+	edge(b, next);
+      }
+    }
+  }
+
+  static Block target(HashMap<String, Block> labels, IR1.Label lab) {
+    Block b = labels.get(lab.name);
+    if (b == null)
+      throw new IllegalArgumentException("Undefined label: " + lab);
+    return b;
+  }
+
+  static void edge(Block from, Block to) {
+    if (!from.succs.contains(to)) {
+      from.succs.add(to);
+      to.preds.add(from);
+    }
+  }
+
+  public int size() { return blocks.length; }
+
+  public Block entry() { return blocks[0]; }
+
+  // The blocks reachable from the entry, in reverse postorder (each
+  // block before its successors, back edges aside)
+  //
+  public Block[] rpo() {
+    int[] state = new int[blocks.length];	// 0 new, 1 on stack, 2 done
+    int[] next = new int[blocks.length];	// next successor to visit
+    Block[] order = new Block[blocks.length];
+    int k = blocks.length;
+    ArrayDeque<Block> stack = new ArrayDeque<Block>();
+    stack.push(entry());
+    state[0] = 1;
+    while (!stack.isEmpty()) {
+      Block b = stack.peek();
+      if (next[b.id] < b.succs.size()) {
+	Block s = b.succs.get(next[b.id]++);
+	if (state[s.id] == 0) {
+	  state[s.id] = 1;
+	  stack.push(s);
+	}
+      } else {
+	stack.pop();
+	state[b.id] = 2;
+	order[--k] = b;
+      }
+    }
+    return Arrays.copyOfRange(order, k, blocks.length);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder(func.gname + ":\n");
+    for (Block b: blocks)
+      sb.append("  " + b + " preds " + b.preds + " succs " + b.succs + "\n");
+    return sb.toString();
+  }
+}
@@ -0,0 +1,118 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Build-time benchmark for the ir.cfg analyses.
+//
+// Usage: java ir.cfg.CFGBench [-n <insts>] [-r <runs>] [-d <depth>]
+//
+// Generates one function of about <insts> (100000) instructions, in the
+// shape IR1Gen gives a loop-heavy program: loop nests <depth> (3) deep,
+// each loop body a few short blocks of temps feeding a handful of
+// locals, with an if-then inside. Then builds, <runs> (10) times, the
+// CFG, the dominators, the loop forest and the liveness, and reports
+// the best time of each (after one warm-up run).
+//
+package ir.cfg;
+import java.util.*;
+import ir.*;
+
+public class CFGBench {
+  static List<IR1.Inst> code = new ArrayList<IR1.Inst>();
+  static int temps = 0, labels = 0;
+
+  public static void main(String [] args) {
+    int insts = 100000, runs = 10, depth = 3;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("-n")) insts = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-r")) runs = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-d")) depth = Integer.parseInt(args[i+1]);
+    }
+    IR1.Func f = generate(insts, depth);
+
+    long[] best = new long[4];
+    Arrays.fill(best, Long.MAX_VALUE);
+    CFG cfg = null;
+    Dominators dom = null;
+    Loops loops = null;
+    Liveness live = null;
+    for (int r = 0; r <= runs; r++) {
+      long t0 = System.nanoTime();
+      cfg = new CFG(f);
+      long t1 = System.nanoTime();
+      dom = new Dominators(cfg);
+      long t2 = System.nanoTime();
+      loops = new Loops(cfg, dom);
+      long t3 = System.nanoTime();
+      live = new Liveness(cfg);
+      long t4 = System.nanoTime();
+      if (r > 0) {
+	best[0] = Math.min(best[0], t1 - t0);
+	best[1] = Math.min(best[1], t2 - t1);
+	best[2] = Math.min(best[2], t3 - t2);
+	best[3] = Math.min(best[3], t4 - t3);
+      }
+    }
+    int maxDepth = 0;
+    for (CFG.Block b: cfg.blocks)
+      maxDepth = Math.max(maxDepth, loops.depth(b));
+    System.out.printf("%d insts, %d blocks, %d loops (depth %d), %d vars (%d global)%n",
+		      f.code.length, cfg.size(), loops.loops.size(), maxDepth,
+		      live.vars.size(), live.globals);
+    System.out.printf("  cfg        %8.2f ms%n", best[0] / 1e6);
+    System.out.printf("  dominators %8.2f ms  (%d passes)%n", best[1] / 1e6, dom.passes);
+    System.out.printf("  loops      %8.2f ms%n", best[2] / 1e6);
+    System.out.printf("  liveness   %8.2f ms  (%d block visits)%n", best[3] / 1e6, live.visits);
+    System.out.printf("  total      %8.2f ms%n", (best[0] + best[1] + best[2] + best[3]) / 1e6);
+  }
+
+  // A function of about n instructions
+  //
+  static IR1.Func generate(int n, int depth) {
+    code.clear();
+    IR1.Id a = new IR1.Id("a"), b = new IR1.Id("b"), x = new IR1.Id("x"), y = new IR1.Id("y");
+    IR1.Id[] is = new IR1.Id[depth];
+    List<IR1.Id> locals = new ArrayList<IR1.Id>(Arrays.asList(x, y));
+    for (int d = 0; d < depth; d++)
+      locals.add(is[d] = new IR1.Id("i" + d));
+    code.add(new IR1.Move(x, new IR1.IntLit(0)));
+    code.add(new IR1.Move(y, new IR1.IntLit(1)));
+    while (code.size() < n)
+      nest(depth, is, a, b, x, y);
+    code.add(new IR1.Return(x));
+    return new IR1.Func(new IR1.Global("_bench"), new IR1.Id[] { a, b },
+			locals.toArray(new IR1.Id[0]), code.toArray(new IR1.Inst[0]));
+  }
+
+  static void nest(int d, IR1.Id[] is, IR1.Id a, IR1.Id b, IR1.Id x, IR1.Id y) {
+    if (d == 0) {
+      IR1.Temp t1 = temp(), t2 = temp(), t3 = temp();
+      IR1.Label skip = label();
+      code.add(new IR1.Binop(IR1.AOP.ADD, t1, a, is[0]));
+      code.add(new IR1.Binop(IR1.AOP.MUL, t2, t1, b));
+      code.add(new IR1.Binop(IR1.AOP.ADD, x, x, t2));
+      code.add(new IR1.CJump(IR1.ROP.LT, t2, new IR1.IntLit(5), skip));
+      code.add(new IR1.Binop(IR1.AOP.SUB, t3, x, y));
+      code.add(new IR1.Move(y, t3));
+      code.add(new IR1.LabelDec(skip));
+      return;
+    }
+    IR1.Id i = is[d-1];
+    IR1.Label head = label(), exit = label();
+    code.add(new IR1.Move(i, new IR1.IntLit(0)));
+    code.add(new IR1.LabelDec(head));
+    code.add(new IR1.CJump(IR1.ROP.GE, i, new IR1.IntLit(10), exit));
+    nest(d - 1, is, a, b, x, y);
+    nest(d - 1, is, a, b, x, y);
+    IR1.Temp t = temp();
+    code.add(new IR1.Binop(IR1.AOP.ADD, t, i, new IR1.IntLit(1)));
+    code.add(new IR1.Move(i, t));
+    code.add(new IR1.Jump(head));
+    code.add(new IR1.LabelDec(exit));
+  }
+
+  static IR1.Temp temp() { return new IR1.Temp(++temps); }
+  static IR1.Label label() { return new IR1.Label("L" + labels++); }
+}
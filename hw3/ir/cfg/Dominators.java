@@ -0,0 +1,143 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Dominators of a CFG.
+//
+// Immediate dominators are found by the iterative algorithm of Cooper,
+// Harvey and Kennedy ("A Simple, Fast Dominance Algorithm"): blocks are
+// visited in reverse postorder, each block's idom being the nearest
+// common dominator of its processed predecessors, until nothing
+// changes. The dominator tree is then numbered in preorder and
+// postorder, so that dominates() is a constant-time test, and dominance
+// frontiers are found from the join points (Cytron et al., as
+// simplified by Cooper et al.). Blocks unreachable from the entry have
+// no idom, dominate nothing, and are dominated by nothing.
+//
+package ir.cfg;
+import java.util.*;
+import ir.cfg.CFG.Block;
+
+public class Dominators {
+  public final CFG cfg;
+  final int[] idom;			// block id -> idom's id (-1: none)
+  final int[] rpoNum;			// block id -> reverse postorder index
+  final int[] pre, post;		// dominator tree numbering
+  final List<List<Block>> children = new ArrayList<List<Block>>();
+  final List<List<Block>> frontier = new ArrayList<List<Block>>();
+  public int passes = 0;		// iterations until no change
+
+  public Dominators(CFG cfg) {
+    this.cfg = cfg;
+    int n = cfg.size();
+    Block[] rpo = cfg.rpo();
+    idom = new int[n];
+    rpoNum = new int[n];
+    Arrays.fill(idom, -1);
+    Arrays.fill(rpoNum, -1);
+    for (int i = 0; i < rpo.length; i++)
+      rpoNum[rpo[i].id] = i;
+    idom[0] = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      passes++;
+      for (int i = 1; i < rpo.length; i++) {
+	Block b = rpo[i];
+	int d = -1;
+	for (Block p: b.preds)
+	  if (idom[p.id] >= 0)
+	    d = d < 0 ? p.id : intersect(p.id, d);
+	if (d != idom[b.id]) {
+	  idom[b.id] = d;
+	  changed = true;
+	}
+      }
+    }
+
+    for (int i = 0; i < n; i++) {
+      children.add(new ArrayList<Block>());
+      frontier.add(new ArrayList<Block>());
+    }
+    for (Block b: rpo)
+      if (b.id != 0)
+	children.get(idom[b.id]).add(b);
+    pre = new int[n];
+    post = new int[n];
+    Arrays.fill(pre, -1);
+    Arrays.fill(post, -1);
+    number();
+
+    for (Block b: rpo) {
+      if (b.preds.size() < 2)
+	continue;
+      for (Block p: b.preds) {
+	if (idom[p.id] < 0)
+	  continue;
+	for (int r = p.id; r != idom[b.id]; r = idom[r]) {
+	  List<Block> df = frontier.get(r);
+	  if (df.isEmpty() || df.get(df.size() - 1) != b)
+	    df.add(b);
+	}
+      }
+    }
+  }
+
+  int intersect(int a, int b) {
+    while (a != b) {
+      while (rpoNum[a] > rpoNum[b])
+	a = idom[a];
+      while (rpoNum[b] > rpoNum[a])
+	b = idom[b];
+    }
+    return a;
+  }
+
+  // Number the dominator tree in preorder and postorder (iteratively,
+  // as it can be as deep as the function is long)
+  //
+  void number() {
+    int[] next = new int[cfg.size()];
+    ArrayDeque<Block> stack = new ArrayDeque<Block>();
+    int clock = 0;
+    stack.push(cfg.entry());
+    pre[0] = clock++;
+    while (!stack.isEmpty()) {
+      Block b = stack.peek();
+      List<Block> cs = children.get(b.id);
+      if (next[b.id] < cs.size()) {
+	Block c = cs.get(next[b.id]++);
+	pre[c.id] = clock++;
+	stack.push(c);
+      } else {
+	post[b.id] = clock++;
+	stack.pop();
+      }
+    }
+  }
+
+  // The immediate dominator (null for the entry, or if unreachable)
+  //
+  public Block idom(Block b) {
+    return b.id == 0 || idom[b.id] < 0 ? null : cfg.blocks[idom[b.id]];
+  }
+
+  public boolean reachable(Block b) { return idom[b.id] >= 0; }
+
+  // Whether a dominates b (every block dominates itself)
+  //
+  public boolean dominates(Block a, Block b) {
+    return pre[a.id] >= 0 && pre[b.id] >= 0
+      && pre[a.id] <= pre[b.id] && post[b.id] <= post[a.id];
+  }
+
+  // The blocks b immediately dominates
+  //
+  public List<Block> children(Block b) { return children.get(b.id); }
+
+  // b's dominance frontier: the blocks where b's dominance ends
+  //
+  public List<Block> frontier(Block b) { return frontier.get(b.id); }
+}
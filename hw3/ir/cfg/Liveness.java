@@ -0,0 +1,224 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Live variables of a CFG, as bit vectors.
+//
+// Every var (Id or Temp) of the function gets a dense index. The vars
+// that are read in some block before being set there (the only ones
+// that can be live across a block boundary) are numbered first, so the
+// per-block sets -- upward-exposed uses, defs, live-in and live-out --
+// only ever span the first 'globals' indices; the many temps that live
+// and die within one block are numbered after them.
+//
+// The solver is a worklist one: all blocks start on it, in postorder
+// (so a block tends to come after its successors), and a block whose
+// live-in set changes puts its predecessors back on it.
+//
+//   live-out(b) = union of live-in(s), over b's successors s
+//   live-in(b)  = use(b) + (live-out(b) - def(b))
+//
+// liveOut(pc) gives the vars live after one instruction, by walking
+// back from its block's live-out set.
+//
+package ir.cfg;
+import java.util.*;
+import ir.*;
+import ir.cfg.CFG.Block;
+
+public class Liveness {
+  public final CFG cfg;
+  public final List<Object> vars = new ArrayList<Object>();	// index -> var
+  final HashMap<Object, Integer> index = new HashMap<Object, Integer>();
+  public int globals;			// vars live across some block boundary
+  public final BitSet[] use, def, in, out;	// by block id
+  public int visits = 0;		// blocks processed by the solver
+
+  public Liveness(CFG cfg) {
+    this.cfg = cfg;
+    IR1.Func f = cfg.func;
+    IR1.Inst[] code = f.code;
+
+    // number the vars in order of appearance, and find the global ones
+    HashMap<Object, Integer> first = new HashMap<Object, Integer>();
+    List<Object> all = new ArrayList<Object>();
+    for (IR1.Id v: f.params)
+      number(first, all, v);
+    for (IR1.Id v: f.locals)
+      number(first, all, v);
+    List<Integer> stamp = new ArrayList<Integer>();	// block that last set var
+    BitSet global = new BitSet();
+    List<IR1.Src> uses = new ArrayList<IR1.Src>();
+    for (Block b: cfg.blocks) {
+      for (int i = b.start; i < b.end; i++) {
+	uses.clear();
+	uses(code[i], uses);
+	for (IR1.Src s: uses) {
+	  int v = number(first, all, s);
+	  if (v >= stamp.size() || stamp.get(v) != b.id)
+	    global.set(v);
+	}
+	IR1.Dest d = def(code[i]);
+	if (d != null) {
+	  int v = number(first, all, d);
+	  while (stamp.size() <= v)
+	    stamp.add(-1);
+	  stamp.set(v, b.id);
+	}
+      }
+    }
+    for (int v = global.nextSetBit(0); v >= 0; v = global.nextSetBit(v + 1))
+      add(all.get(v));
+    globals = vars.size();
+    for (int v = 0; v < all.size(); v++)
+      if (!global.get(v))
+	add(all.get(v));
+
+    // the blocks' upward-exposed uses and defs, of the global vars
+    int n = cfg.size();
+    use = new BitSet[n];
+    def = new BitSet[n];
+    in = new BitSet[n];
+    out = new BitSet[n];
+    for (Block b: cfg.blocks) {
+      BitSet u = new BitSet(globals), d = new BitSet(globals);
+      for (int i = b.start; i < b.end; i++) {
+	uses.clear();
+	uses(code[i], uses);
+	for (IR1.Src s: uses) {
+	  int v = index.get(s);
+	  if (v < globals && !d.get(v))
+	    u.set(v);
+	}
+	IR1.Dest dst = def(code[i]);
+	if (dst != null && index.get(dst) < globals)
+	  d.set(index.get(dst));
+      }
+      use[b.id] = u;
+      def[b.id] = d;
+      in[b.id] = (BitSet) u.clone();
+      out[b.id] = new BitSet(globals);
+    }
+    solve();
+  }
+
+  static int number(HashMap<Object, Integer> first, List<Object> all, Object v) {
+    Integer k = first.get(v);
+    if (k == null) {
+      k = all.size();
+      all.add(v);
+      first.put(v, k);
+    }
+    return k;
+  }
+
+  void add(Object v) {
+    index.put(v, vars.size());
+    vars.add(v);
+  }
+
+  void solve() {
+    Block[] rpo = cfg.rpo();
+    ArrayDeque<Block> work = new ArrayDeque<Block>();
+    BitSet queued = new BitSet();
+    for (Block b: rpo) {		// popped last to first: postorder
+      work.push(b);
+      queued.set(b.id);
+    }
+    BitSet tmp = new BitSet(globals);
+    while (!work.isEmpty()) {
+      Block b = work.pop();
+      queued.clear(b.id);
+      visits++;
+      BitSet o = out[b.id];
+      for (Block s: b.succs)
+	o.or(in[s.id]);
+      tmp.clear();
+      tmp.or(o);
+      tmp.andNot(def[b.id]);
+      tmp.or(use[b.id]);
+      if (!tmp.equals(in[b.id])) {
+	in[b.id].or(tmp);
+	for (Block p: b.preds)
+	  if (!queued.get(p.id)) {
+	    queued.set(p.id);
+	    work.push(p);
+	  }
+      }
+    }
+  }
+
+  // The index of a var (-1 if not a var of this function)
+  //
+  public int index(Object v) {
+    Integer k = index.get(v);
+    return k == null ? -1 : k;
+  }
+
+  public BitSet liveIn(Block b) { return in[b.id]; }
+  public BitSet liveOut(Block b) { return out[b.id]; }
+
+  // The vars live after instruction pc
+  //
+  public BitSet liveOut(int pc) {
+    Block b = cfg.blocks[cfg.blockOf[pc]];
+    BitSet live = (BitSet) out[b.id].clone();
+    List<IR1.Src> uses = new ArrayList<IR1.Src>();
+    for (int i = b.end - 1; i > pc; i--) {
+      IR1.Inst c = cfg.func.code[i];
+      IR1.Dest d = def(c);
+      if (d != null)
+	live.clear(index.get(d));
+      uses.clear();
+      uses(c, uses);
+      for (IR1.Src s: uses)
+	live.set(index.get(s));
+    }
+    return live;
+  }
+
+  // The var an instruction sets (null if none)
+  //
+  public static IR1.Dest def(IR1.Inst n) {
+    if (n instanceof IR1.Binop) return ((IR1.Binop) n).dst;
+    if (n instanceof IR1.Unop)  return ((IR1.Unop) n).dst;
+    if (n instanceof IR1.Move)  return ((IR1.Move) n).dst;
+    if (n instanceof IR1.Load)  return ((IR1.Load) n).dst;
+    if (n instanceof IR1.Call)  return ((IR1.Call) n).rdst;
+    return null;
+  }
+
+  // Add the vars an instruction reads to 'uses'
+  //
+  public static void uses(IR1.Inst n, List<IR1.Src> uses) {
+    if (n instanceof IR1.Binop) {
+      use(((IR1.Binop) n).src1, uses);
+      use(((IR1.Binop) n).src2, uses);
+    } else if (n instanceof IR1.Unop) {
+      use(((IR1.Unop) n).src, uses);
+    } else if (n instanceof IR1.Move) {
+      use(((IR1.Move) n).src, uses);
+    } else if (n instanceof IR1.Load) {
+      use(((IR1.Load) n).addr.base, uses);
+    } else if (n instanceof IR1.Store) {
+      use(((IR1.Store) n).addr.base, uses);
+      use(((IR1.Store) n).src, uses);
+    } else if (n instanceof IR1.Call) {
+      for (IR1.Src a: ((IR1.Call) n).args)
+	use(a, uses);
+    } else if (n instanceof IR1.Return) {
+      if (((IR1.Return) n).val != null)
+	use(((IR1.Return) n).val, uses);
+    } else if (n instanceof IR1.CJump) {
+      use(((IR1.CJump) n).src1, uses);
+      use(((IR1.CJump) n).src2, uses);
+    }
+  }
+
+  static void use(IR1.Src s, List<IR1.Src> uses) {
+    if (s instanceof IR1.Id || s instanceof IR1.Temp)
+      uses.add(s);
+  }
+}
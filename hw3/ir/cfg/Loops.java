@@ -0,0 +1,99 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Loop nesting forest of a CFG.
+//
+// An edge t -> h is a back edge when h dominates t; the natural loop
+// of header h is h and every block that reaches one of its back edges'
+// tails without passing through h (the back edges to one header make
+// one loop). Natural loops are either disjoint or nested, so, taking
+// them from largest to smallest, a loop's parent is the innermost loop
+// already found that contains its header. Retreating edges that are not
+// back edges (of irreducible flow) make no loop.
+//
+package ir.cfg;
+import java.util.*;
+import ir.cfg.CFG.Block;
+
+public class Loops {
+  public final CFG cfg;
+  public final List<Loop> loops = new ArrayList<Loop>();	// outer before inner
+  public final List<Loop> roots = new ArrayList<Loop>();	// outermost loops
+  final Loop[] loopOf;			// block id -> innermost loop
+
+  public static class Loop {
+    public final Block header;
+    public final BitSet blocks = new BitSet();	// block ids, header included
+    public Loop parent;
+    public final List<Loop> children = new ArrayList<Loop>();
+    public int depth = 1;		// 1 for an outermost loop
+
+    Loop(Block header) { this.header = header; }
+
+    public boolean contains(Block b) { return blocks.get(b.id); }
+    public String toString() { return "loop@" + header + " " + blocks; }
+  }
+
+  public Loops(CFG cfg, Dominators dom) {
+    this.cfg = cfg;
+    loopOf = new Loop[cfg.size()];
+    HashMap<Block, Loop> byHeader = new HashMap<Block, Loop>();
+    for (Block t: cfg.blocks) {
+      if (!dom.reachable(t))
+	continue;
+      for (Block h: t.succs) {
+	if (!dom.dominates(h, t))
+	  continue;
+	Loop l = byHeader.get(h);
+	if (l == null) {
+	  l = new Loop(h);
+	  l.blocks.set(h.id);
+	  byHeader.put(h, l);
+	  loops.add(l);
+	}
+	body(l, t);
+      }
+    }
+
+    loops.sort((a, b) -> b.blocks.cardinality() - a.blocks.cardinality());
+    for (Loop l: loops) {
+      Loop p = loopOf[l.header.id];
+      if (p != null) {
+	l.parent = p;
+	l.depth = p.depth + 1;
+	p.children.add(l);
+      } else {
+	roots.add(l);
+      }
+      for (int b = l.blocks.nextSetBit(0); b >= 0; b = l.blocks.nextSetBit(b + 1))
+	loopOf[b] = l;
+    }
+  }
+
+  // Add to l the blocks that reach t without passing its header
+  //
+  static void body(Loop l, Block t) {
+    ArrayDeque<Block> work = new ArrayDeque<Block>();
+    if (!l.blocks.get(t.id)) {
+      l.blocks.set(t.id);
+      work.push(t);
+    }
+    while (!work.isEmpty())
+      for (Block p: work.pop().preds)
+	if (!l.blocks.get(p.id)) {
+	  l.blocks.set(p.id);
+	  work.push(p);
+	}
+  }
+
+  // The innermost loop containing b (null if none)
+  //
+  public Loop loopOf(Block b) { return loopOf[b.id]; }
+
+  // The number of loops containing b
+  //
+  public int depth(Block b) { return loopOf[b.id] == null ? 0 : loopOf[b.id].depth; }
+}
@@ -0,0 +1,179 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Global value numbering on SSA, by dominator-tree walk (Briggs,
+// Cooper and Simpson's DVNT).
+//
+// Each SSA name is given a value: the name itself, or an earlier name
+// or literal known to be equal to it. Walking the dominator tree in
+// preorder with a scoped table of expressions, keyed by operator and
+// the values of its operands (in a canonical order for the commutative
+// ones), a Binop or Unop whose key is already in the table is
+// redundant, and takes the value of the dominating name that computed
+// it; a Move takes its source's value (copy and constant propagation);
+// operations on literals are folded as IR1Opt does. A phi whose args
+// all have one value takes it, and so does a phi with the same args as
+// an earlier phi of its block. Loads and Calls are not numbered (memory
+// may have changed), but their operands are rewritten like all others.
+//
+// Uses are rewritten to their values (an address's base only to a var);
+// the redundant defs are left for SSA.removeDead to delete.
+//
+package ir.ssa;
+import java.util.*;
+import ir.*;
+import ir.cfg.*;
+import ir.cfg.CFG.Block;
+
+public class GVN {
+  final SSA ssa;
+  final HashMap<Object, IR1.Src> vn = new HashMap<Object, IR1.Src>();	// name -> value
+  final HashMap<String, IR1.Src> table = new HashMap<String, IR1.Src>();
+  public int redundant = 0;
+
+  GVN(SSA ssa) {
+    this.ssa = ssa;
+  }
+
+  // Run on 'ssa'; return the pass (for its counts)
+  //
+  public static GVN run(SSA ssa) {
+    GVN p = new GVN(ssa);
+    p.walk();
+    p.rewrite();
+    return p;
+  }
+
+  // The value of an operand
+  //
+  IR1.Src value(IR1.Src s) {
+    IR1.Src v;
+    while (SSA.isVar(s) && (v = vn.get(s)) != null && v != s)
+      s = v;
+    return s;
+  }
+
+  static String key(IR1.Src s) {
+    if (s instanceof IR1.IntLit) return "#" + s;
+    if (s instanceof IR1.BoolLit) return "#" + s;
+    if (s instanceof IR1.StrLit) return "\"" + System.identityHashCode(s);
+    if (s instanceof IR1.Id) return "%" + s;
+    return s.toString();
+  }
+
+  static boolean commutes(IR1.BOP op) {
+    return op == IR1.AOP.ADD || op == IR1.AOP.MUL || op == IR1.AOP.AND
+      || op == IR1.AOP.OR || op == IR1.ROP.EQ || op == IR1.ROP.NE;
+  }
+
+  // Walk the dominator tree (iteratively), undoing each block's table
+  // entries on the way back up
+  //
+  void walk() {
+    ArrayDeque<Block> stack = new ArrayDeque<Block>();
+    ArrayDeque<List<String>> added = new ArrayDeque<List<String>>();
+    int[] next = new int[ssa.cfg.size()];
+    stack.push(ssa.cfg.entry());
+    added.push(visit(ssa.cfg.entry()));
+    while (!stack.isEmpty()) {
+      Block b = stack.peek();
+      List<Block> kids = ssa.dom.children(b);
+      if (next[b.id] < kids.size()) {
+	Block c = kids.get(next[b.id]++);
+	stack.push(c);
+	added.push(ssa.dead[c.id] ? new ArrayList<String>() : visit(c));
+      } else {
+	stack.pop();
+	for (String k: added.pop())
+	  table.remove(k);
+      }
+    }
+  }
+
+  List<String> visit(Block b) {
+    List<String> added = new ArrayList<String>();
+    HashMap<String, IR1.Src> phiKeys = new HashMap<String, IR1.Src>();
+    for (SSA.Phi p: ssa.phis.get(b.id)) {
+      IR1.Src same = null;
+      StringBuilder key = new StringBuilder("phi");
+      boolean meaningless = true;
+      for (IR1.Src a: p.args) {
+	if (a == null)
+	  continue;
+	IR1.Src v = value(a);
+	key.append(" " + key(v));
+	if (v.equals(p.dst))
+	  continue;			// the phi's own value, around a loop
+	if (same == null)
+	  same = v;
+	else if (!key(same).equals(key(v)))
+	  meaningless = false;
+      }
+      if (meaningless && same != null) {
+	vn.put(p.dst, same);
+	redundant++;
+      } else if (phiKeys.containsKey(key.toString())) {
+	vn.put(p.dst, phiKeys.get(key.toString()));
+	redundant++;
+      } else {
+	phiKeys.put(key.toString(), (IR1.Src) p.dst);
+      }
+    }
+    for (IR1.Inst c: ssa.code.get(b.id)) {
+      if (c instanceof IR1.Move) {
+	vn.put(((IR1.Move) c).dst, value(((IR1.Move) c).src));
+      } else if (c instanceof IR1.Binop || c instanceof IR1.Unop) {
+	IR1.Dest d;
+	IR1.Src v;
+	String k;
+	if (c instanceof IR1.Binop) {
+	  IR1.Binop n = (IR1.Binop) c;
+	  IR1.Src a = value(n.src1), e = value(n.src2);
+	  d = n.dst;
+	  v = IR1Opt.fold(n.op, a, e);
+	  String ka = key(a), ke = key(e);
+	  if (commutes(n.op) && ka.compareTo(ke) > 0) {
+	    String t = ka;
+	    ka = ke;
+	    ke = t;
+	  }
+	  k = ka + " " + n.op + " " + ke;
+	} else {
+	  IR1.Unop n = (IR1.Unop) c;
+	  IR1.Src a = value(n.src);
+	  d = n.dst;
+	  v = IR1Opt.fold(n.op, a);
+	  k = n.op + " " + key(a);
+	}
+	if (v == null)
+	  v = table.get(k);
+	if (v != null) {
+	  vn.put(d, v);
+	  redundant++;
+	} else {
+	  table.put(k, (IR1.Src) d);
+	  added.add(k);
+	}
+      }
+    }
+    return added;
+  }
+
+  void rewrite() {
+    for (Block b: ssa.cfg.blocks) {
+      if (ssa.dead[b.id])
+	continue;
+      for (SSA.Phi p: ssa.phis.get(b.id))
+	for (int k = 0; k < p.args.length; k++)
+	  if (p.args[k] != null)
+	    p.args[k] = value(p.args[k]);
+      List<IR1.Inst> insts = ssa.code.get(b.id);
+      for (int i = 0; i < insts.size(); i++)
+	if (insts.get(i) != null)
+	  insts.set(i, SSA.map(insts.get(i), this::value, Liveness.def(insts.get(i))));
+    }
+  }
+}
@@ -0,0 +1,440 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// SSA form of an IR1 function.
+//
+// Construction (Cytron et al.) works on the function's CFG (see
+// ir.cfg). A var that is live across blocks gets a phi in each block
+// of the iterated dominance frontier of its defining blocks where it is
+// live on entry (pruned SSA). Renaming then walks the dominator tree:
+// every def, phi or instruction, gets a new temp, and every use the
+// name of the def that reaches it. A var's value on entry to the
+// function keeps the var's own name, so params and locals stay as
+// declared. A phi has one arg per predecessor of its block, in the
+// order of the block's preds; the entry block's phis have one more,
+// last, for entering the function.
+//
+// Blocks the entry cannot reach are marked dead and left as they are.
+// The optimizations (see SCCP, GVN) rewrite instructions in place, set
+// deleted ones to null, mark more blocks dead, and set the phi args of
+// edges that can no longer be taken to null.
+//
+// Destruction (toFunc) puts each phi's copy on the edge it belongs to,
+// all of an edge's copies as one parallel copy, turned into a sequence
+// of Moves (with a new temp to break each cycle). The copies of an edge
+// from a block ending in a Jump go before the Jump; from a CJump, on
+// the fall-through edge they go right after it, and on the taken edge
+// right before it if the target does not dominate the block (the
+// target's phis cannot be live past it then), or else in a new block,
+// added at the end of the function, that the CJump is redirected to
+// and that then jumps to the original target. So no copy is ever on a
+// path where it overwrites a value still needed (no lost copies) and
+// each edge's copies read the values from before any of them (no swap
+// problem).
+//
+package ir.ssa;
+import java.util.*;
+import java.util.function.Function;
+import ir.*;
+import ir.cfg.*;
+import ir.cfg.CFG.Block;
+
+public class SSA {
+  public final IR1.Func func;
+  public final CFG cfg;
+  public final Dominators dom;
+  public final List<List<Phi>> phis = new ArrayList<List<Phi>>();	  // by block id
+  public final List<List<IR1.Inst>> code = new ArrayList<List<IR1.Inst>>(); // null: deleted
+  public final boolean[] dead;		// blocks that cannot be reached
+  final HashMap<String, Block> labels = new HashMap<String, Block>();
+  int temps = 0;			// highest temp number used
+  public int phiCount = 0;		// phis placed
+
+  public static class Phi {
+    public final IR1.Dest var;		// the var it merges
+    public IR1.Dest dst;
+    public final IR1.Src[] args;	// by pred (null: edge gone)
+
+    Phi(IR1.Dest var, int n) {
+      this.var = var;
+      args = new IR1.Src[n];
+    }
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder(dst + " = phi(");
+      for (int k = 0; k < args.length; k++)
+	sb.append((k > 0 ? ", " : "") + args[k]);
+      return sb.append(")").toString();
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Construction
+  //-----------------------------------------------------------------
+  //
+
+  public SSA(IR1.Func f) {
+    func = f;
+    cfg = new CFG(f);
+    dom = new Dominators(cfg);
+    Liveness live = new Liveness(cfg);
+    int n = cfg.size();
+    dead = new boolean[n];
+    for (Block b: cfg.blocks) {
+      dead[b.id] = !dom.reachable(b);
+      code.add(new ArrayList<IR1.Inst>(Arrays.asList(f.code).subList(b.start, b.end)));
+      phis.add(new ArrayList<Phi>());
+      for (int i = b.start; i < b.end; i++) {
+	IR1.Inst c = f.code[i];
+	if (c instanceof IR1.LabelDec)
+	  labels.put(((IR1.LabelDec) c).lab.name, b);
+	IR1.Dest d = Liveness.def(c);
+	if (d instanceof IR1.Temp)
+	  temps = Math.max(temps, ((IR1.Temp) d).num);
+      }
+    }
+
+    // place phis
+    int g = live.globals;
+    List<BitSet> defBlocks = new ArrayList<BitSet>();
+    for (int v = 0; v < g; v++)
+      defBlocks.add(new BitSet());
+    for (Block b: cfg.blocks) {
+      if (dead[b.id])
+	continue;
+      for (int i = b.start; i < b.end; i++) {
+	IR1.Dest d = Liveness.def(f.code[i]);
+	if (d != null && live.index(d) < g)
+	  defBlocks.get(live.index(d)).set(b.id);
+      }
+    }
+    ArrayDeque<Block> work = new ArrayDeque<Block>();
+    for (int v = 0; v < g; v++) {
+      BitSet has = new BitSet(), queued = (BitSet) defBlocks.get(v).clone();
+      for (int b = queued.nextSetBit(0); b >= 0; b = queued.nextSetBit(b + 1))
+	work.push(cfg.blocks[b]);
+      while (!work.isEmpty())
+	for (Block y: dom.frontier(work.pop())) {
+	  if (has.get(y.id) || !live.liveIn(y).get(v))
+	    continue;
+	  has.set(y.id);
+	  phis.get(y.id).add(new Phi((IR1.Dest) live.vars.get(v), nargs(y)));
+	  phiCount++;
+	  if (!queued.get(y.id)) {
+	    queued.set(y.id);
+	    work.push(y);
+	  }
+	}
+    }
+    for (Phi p: phis.get(0))
+      p.args[p.args.length - 1] = (IR1.Src) p.var;
+    rename();
+  }
+
+  int nargs(Block b) {
+    return b.preds.size() + (b.id == 0 ? 1 : 0);
+  }
+
+  // Rename, walking the dominator tree (iteratively, as it can be as
+  // deep as the function is long)
+  //
+  void rename() {
+    HashMap<Object, ArrayDeque<IR1.Src>> stacks = new HashMap<Object, ArrayDeque<IR1.Src>>();
+    Function<IR1.Src, IR1.Src> top = s -> {
+      ArrayDeque<IR1.Src> st = stacks.get(s);
+      return st == null || st.isEmpty() ? s : st.peek();
+    };
+    ArrayDeque<Block> walk = new ArrayDeque<Block>();
+    ArrayDeque<List<IR1.Dest>> pushed = new ArrayDeque<List<IR1.Dest>>();
+    int[] next = new int[cfg.size()];
+    walk.push(cfg.entry());
+    pushed.push(enter(cfg.entry(), stacks, top));
+    while (!walk.isEmpty()) {
+      Block b = walk.peek();
+      List<Block> kids = dom.children(b);
+      if (next[b.id] < kids.size()) {
+	Block c = kids.get(next[b.id]++);
+	walk.push(c);
+	pushed.push(enter(c, stacks, top));
+      } else {
+	walk.pop();
+	for (IR1.Dest v: pushed.pop())
+	  stacks.get(v).pop();
+      }
+    }
+  }
+
+  // Rename block b's defs and uses, and its successors' phi args;
+  // return the vars given new names
+  //
+  List<IR1.Dest> enter(Block b, HashMap<Object, ArrayDeque<IR1.Src>> stacks,
+		       Function<IR1.Src, IR1.Src> top) {
+    List<IR1.Dest> pushed = new ArrayList<IR1.Dest>();
+    for (Phi p: phis.get(b.id)) {
+      p.dst = fresh();
+      push(stacks, pushed, p.var, p.dst);
+    }
+    List<IR1.Inst> insts = code.get(b.id);
+    for (int i = 0; i < insts.size(); i++) {
+      IR1.Inst c = insts.get(i);
+      IR1.Dest d = Liveness.def(c);
+      IR1.Temp t = d == null ? null : fresh();
+      insts.set(i, map(c, top, t));
+      if (d != null)
+	push(stacks, pushed, d, t);
+    }
+    for (Block s: b.succs) {
+      int k = s.preds.indexOf(b);
+      for (Phi p: phis.get(s.id))
+	p.args[k] = top.apply((IR1.Src) p.var);
+    }
+    return pushed;
+  }
+
+  static void push(HashMap<Object, ArrayDeque<IR1.Src>> stacks, List<IR1.Dest> pushed,
+		   IR1.Dest v, IR1.Dest name) {
+    stacks.computeIfAbsent(v, k -> new ArrayDeque<IR1.Src>()).push((IR1.Src) name);
+    pushed.add(v);
+  }
+
+  IR1.Temp fresh() {
+    return new IR1.Temp(++temps);
+  }
+
+  // Rebuild an instruction with its uses mapped by 'use' and its def
+  // (if any) replaced by 'dst'. An address's base is only ever replaced
+  // by a var.
+  //
+  public static IR1.Inst map(IR1.Inst n, Function<IR1.Src, IR1.Src> use, IR1.Dest dst) {
+    if (n instanceof IR1.Binop) {
+      IR1.Binop b = (IR1.Binop) n;
+      return new IR1.Binop(b.op, dst, use.apply(b.src1), use.apply(b.src2));
+    } else if (n instanceof IR1.Unop) {
+      IR1.Unop u = (IR1.Unop) n;
+      return new IR1.Unop(u.op, dst, use.apply(u.src));
+    } else if (n instanceof IR1.Move) {
+      return new IR1.Move(dst, use.apply(((IR1.Move) n).src));
+    } else if (n instanceof IR1.Load) {
+      return new IR1.Load(dst, addr(((IR1.Load) n).addr, use));
+    } else if (n instanceof IR1.Store) {
+      IR1.Store s = (IR1.Store) n;
+      return new IR1.Store(addr(s.addr, use), use.apply(s.src));
+    } else if (n instanceof IR1.Call) {
+      IR1.Call c = (IR1.Call) n;
+      IR1.Src[] args = new IR1.Src[c.args.length];
+      for (int i = 0; i < args.length; i++)
+	args[i] = use.apply(c.args[i]);
+      return new IR1.Call(c.gname, args, c.rdst == null ? null : dst);
+    } else if (n instanceof IR1.Return) {
+      IR1.Return r = (IR1.Return) n;
+      return r.val == null ? r : new IR1.Return(use.apply(r.val));
+    } else if (n instanceof IR1.CJump) {
+      IR1.CJump j = (IR1.CJump) n;
+      return new IR1.CJump(j.op, use.apply(j.src1), use.apply(j.src2), j.lab);
+    }
+    return n;
+  }
+
+  static IR1.Addr addr(IR1.Addr a, Function<IR1.Src, IR1.Src> use) {
+    IR1.Src b = use.apply(a.base);
+    return isVar(b) ? new IR1.Addr(b, a.offset) : a;
+  }
+
+  public static boolean isVar(Object s) {
+    return s instanceof IR1.Id || s instanceof IR1.Temp;
+  }
+
+  // The block a CJump or Jump goes to
+  //
+  public Block target(IR1.Label lab) {
+    return labels.get(lab.name);
+  }
+
+  // The pred index of the edge from b to s
+  //
+  public static int edge(Block b, Block s) {
+    return s.preds.indexOf(b);
+  }
+
+  //-----------------------------------------------------------------
+  // Dead Code
+  //-----------------------------------------------------------------
+  //
+
+  // Delete the phis, Moves, Unops and (non-trapping) Binops whose
+  // results are never used; return how many were deleted
+  //
+  public int removeDead() {
+    HashMap<Object, Integer> uses = new HashMap<Object, Integer>();
+    List<IR1.Src> srcs = new ArrayList<IR1.Src>();
+    for (Block b: cfg.blocks) {
+      if (dead[b.id])
+	continue;
+      for (Phi p: phis.get(b.id))
+	for (IR1.Src a: p.args)
+	  if (isVar(a))
+	    uses.merge(a, 1, Integer::sum);
+      for (IR1.Inst c: code.get(b.id))
+	if (c != null) {
+	  srcs.clear();
+	  Liveness.uses(c, srcs);
+	  for (IR1.Src s: srcs)
+	    uses.merge(s, 1, Integer::sum);
+	}
+    }
+    int removed = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Block b: cfg.blocks) {
+	if (dead[b.id])
+	  continue;
+	for (Iterator<Phi> it = phis.get(b.id).iterator(); it.hasNext(); ) {
+	  Phi p = it.next();
+	  if (uses.getOrDefault(p.dst, 0) == 0) {
+	    it.remove();
+	    for (IR1.Src a: p.args)
+	      if (isVar(a))
+		uses.merge(a, -1, Integer::sum);
+	    removed++;
+	    changed = true;
+	  }
+	}
+	List<IR1.Inst> insts = code.get(b.id);
+	for (int i = 0; i < insts.size(); i++) {
+	  IR1.Inst c = insts.get(i);
+	  boolean pure = c instanceof IR1.Move || c instanceof IR1.Unop
+	    || c instanceof IR1.Binop && !IR1Opt.traps((IR1.Binop) c);
+	  if (pure && uses.getOrDefault(Liveness.def(c), 0) == 0) {
+	    insts.set(i, null);
+	    srcs.clear();
+	    Liveness.uses(c, srcs);
+	    for (IR1.Src s: srcs)
+	      uses.merge(s, -1, Integer::sum);
+	    removed++;
+	    changed = true;
+	  }
+	}
+      }
+    }
+    return removed;
+  }
+
+  //-----------------------------------------------------------------
+  // Destruction
+  //-----------------------------------------------------------------
+  //
+
+  public IR1.Func toFunc() {
+    List<IR1.Inst> out = new ArrayList<IR1.Inst>(), tail = new ArrayList<IR1.Inst>();
+    HashSet<String> names = new HashSet<String>(labels.keySet());
+    Block[] blocks = cfg.blocks;
+    copies(out, blocks[0], blocks[0].preds.size());	// entering the function
+    for (Block b: blocks) {
+      if (dead[b.id])
+	continue;
+      List<IR1.Inst> insts = new ArrayList<IR1.Inst>();
+      for (IR1.Inst c: code.get(b.id))
+	if (c != null)
+	  insts.add(c);
+      IR1.Inst last = insts.isEmpty() ? null : insts.get(insts.size() - 1);
+      Block next = b.id + 1 < blocks.length ? blocks[b.id+1] : null;
+      if (last instanceof IR1.Jump) {
+	out.addAll(insts.subList(0, insts.size() - 1));
+	Block s = target(((IR1.Jump) last).lab);
+	copies(out, s, edge(b, s));
+	out.add(last);
+      } else if (last instanceof IR1.CJump) {
+	IR1.CJump j = (IR1.CJump) last;
+	Block s = target(j.lab);
+	List<IR1.Inst> split = new ArrayList<IR1.Inst>();
+	copies(split, s, edge(b, s));
+	if (!split.isEmpty() && !dom.dominates(s, b)) {
+	  out.addAll(insts.subList(0, insts.size() - 1));
+	  out.addAll(split);		// s's phis cannot be live past b
+	  insts = insts.subList(insts.size() - 1, insts.size());
+	} else if (!split.isEmpty()) {
+	  IR1.Label lab = label(names);
+	  tail.add(new IR1.LabelDec(lab));
+	  tail.addAll(split);
+	  tail.add(new IR1.Jump(j.lab));
+	  last = new IR1.CJump(j.op, j.src1, j.src2, lab);
+	}
+	out.addAll(insts.subList(0, insts.size() - 1));
+	out.add(last);
+	if (next != null && b.succs.contains(next))
+	  copies(out, next, edge(b, next));
+      } else {
+	out.addAll(insts);
+	if (!(last instanceof IR1.Return) && next != null && b.succs.contains(next))
+	  copies(out, next, edge(b, next));
+      }
+    }
+    if (!tail.isEmpty()) {
+      IR1.Inst last = out.isEmpty() ? null : out.get(out.size() - 1);
+      if (!(last instanceof IR1.Jump || last instanceof IR1.Return)) {
+	IR1.Label end = label(names);
+	out.add(new IR1.Jump(end));
+	tail.add(new IR1.LabelDec(end));
+      }
+      out.addAll(tail);
+    }
+    return new IR1.Func(func.gname, func.params, func.locals, out.toArray(new IR1.Inst[0]));
+  }
+
+  IR1.Label label(HashSet<String> names) {
+    String s;
+    for (int k = names.size(); names.contains(s = "Lssa" + k); k++)
+      ;
+    names.add(s);
+    return new IR1.Label(s);
+  }
+
+  // Add the copies of the edge into block s with pred index k, as a
+  // sequence of Moves
+  //
+  void copies(List<IR1.Inst> out, Block s, int k) {
+    if (k < 0)
+      return;
+    List<IR1.Dest> dsts = new ArrayList<IR1.Dest>();
+    List<IR1.Src> srcs = new ArrayList<IR1.Src>();
+    for (Phi p: phis.get(s.id)) {
+      IR1.Src a = p.args[k];
+      if (a != null && !a.equals(p.dst)) {
+	dsts.add(p.dst);
+	srcs.add(a);
+      }
+    }
+    while (!dsts.isEmpty()) {
+      int i = 0;
+      while (i < dsts.size() && srcs.contains((IR1.Src) dsts.get(i)))
+	i++;
+      if (i < dsts.size()) {
+	out.add(new IR1.Move(dsts.remove(i), srcs.remove(i)));
+      } else {			// a cycle: save one dst, and read it from there
+	IR1.Dest d = dsts.get(0);
+	IR1.Temp t = fresh();
+	out.add(new IR1.Move(t, (IR1.Src) d));
+	for (int j = 0; j < srcs.size(); j++)
+	  if (srcs.get(j).equals(d))
+	    srcs.set(j, t);
+      }
+    }
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder(func.header());
+    for (Block b: cfg.blocks) {
+      sb.append("# " + b + (dead[b.id] ? " dead" : "") + " preds " + b.preds + "\n");
+      for (Phi p: phis.get(b.id))
+	sb.append("   " + p + "\n");
+      for (IR1.Inst c: code.get(b.id))
+	if (c != null)
+	  sb.append(c.toString());
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,90 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// SSA-based IR1 optimizer.
+//
+// Usage: java ir.ssa.SSAOpt [-p] [-s] <file.ir> ...
+//
+// Puts each function in SSA form (see SSA), runs sparse conditional
+// constant propagation (SCCP) and global value numbering (GVN) on it,
+// deletes the dead code they leave, and takes it back out of SSA form.
+// Prints each program's instruction count before and after, with what
+// each pass did; with -s, the optimized SSA form too, and with -p, the
+// optimized program. IR1Interp --ssa runs it on each function before
+// executing it.
+//
+package ir.ssa;
+import java.util.*;
+import ir.*;
+
+public class SSAOpt {
+  public int phis, constants, branches, deadBlocks, redundant, removed;
+  boolean printSSA = false;
+
+  public static IR1.Program optimize(IR1.Program p) {
+    return new SSAOpt().run(p);
+  }
+
+  public static IR1.Func optimize(IR1.Func f) {
+    return new SSAOpt().run(f);
+  }
+
+  IR1.Program run(IR1.Program p) {
+    IR1.Func[] funcs = new IR1.Func[p.funcs.length];
+    for (int i = 0; i < funcs.length; i++)
+      funcs[i] = run(p.funcs[i]);
+    return new IR1.Program(funcs);
+  }
+
+  IR1.Func run(IR1.Func f) {
+    SSA ssa = new SSA(f);
+    SCCP sccp = SCCP.run(ssa);
+    GVN gvn = GVN.run(ssa);
+    removed += ssa.removeDead();
+    phis += ssa.phiCount;
+    constants += sccp.constants;
+    branches += sccp.branches;
+    deadBlocks += sccp.deadBlocks;
+    redundant += gvn.redundant;
+    if (printSSA)
+      System.out.print(ssa);
+    return ssa.toFunc();
+  }
+
+  public static void main(String [] args) throws Exception {
+    boolean print = false, printSSA = false;
+    int before = 0, after = 0, files = 0;
+    for (String arg: args) {
+      if (arg.equals("-p")) {
+	print = true;
+	continue;
+      }
+      if (arg.equals("-s")) {
+	printSSA = true;
+	continue;
+      }
+      IR1.Program p = arg.endsWith(".irb") ? IR1Bin.read(arg) : IR1Bin.parse(arg);
+      SSAOpt opt = new SSAOpt();
+      opt.printSSA = printSSA;
+      IR1.Program q = opt.run(p);
+      int n = IR1Opt.size(p), m = IR1Opt.size(q);
+      System.out.printf("%-24s %6d -> %6d insts  (%d phis; sccp: %d constants, "
+			+ "%d branches, %d dead blocks; gvn: %d redundant; %d dead defs)%n",
+			arg, n, m, opt.phis, opt.constants, opt.branches, opt.deadBlocks,
+			opt.redundant, opt.removed);
+      if (print)
+	System.out.print(q);
+      before += n;
+      after += m;
+      files++;
+    }
+    if (files == 0)
+      System.out.println("Usage: java ir.ssa.SSAOpt [-p] [-s] <file.ir> ...");
+    else if (files > 1)
+      System.out.printf("%-24s %6d -> %6d insts (%.1f%% fewer)%n", "total", before,
+			after, before == 0 ? 0.0 : 100.0 * (before - after) / before);
+  }
+}
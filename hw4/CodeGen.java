@@ -10,7 +10,11 @@
 
 // Naive X86-64 code generator for IR1. (A starter version)
 //
-// - No register allocation; registers are used only as scratch storage.
+// - No register allocation by default; registers are used only as
+//   scratch storage. With --alloc=linear (linear scan) or --alloc=irc
+//   (graph coloring with coalescing), vars and temps are given
+//   registers (see RegAlloc), and only the ones the allocator spills
+//   live in their stack slots.
 //
 import java.io.*;
 import java.util.*;
@@ -21,12 +25,43 @@ class CodeGen {
     public GenException(String msg) { super(msg); }
   }
 
+  // Usage: java CodeGen [--opt] [--ssa] [--alloc=linear|irc] [--peep] <file.ir>
+  //
+  // --opt: run the IR1 optimizer (ir.IR1Opt) on the program first.
+  // --ssa: run the SSA optimizer (ir.ssa.SSAOpt) on it (after --opt).
+  // --alloc=linear: allocate registers by linear scan (see RegAlloc).
+  // --alloc=irc: allocate registers by iterated register coalescing.
+  // --peep: run the peephole optimizer (see Peephole) on each function's
+  //   code, and list how often each of its rules applied at the end.
+  //
   public static void main(String [] args) throws Exception {
-    if (args.length == 1) {
-      FileInputStream stream = new FileInputStream(args[0]);
-      IR1.Program p = new IR1Parser(stream).Program();
-      stream.close();
-      gen(p);
+    boolean opt = false, ssa = false;
+    int i = 0;
+    for (; i < args.length - 1; i++) {
+      if (args[i].equals("--opt"))
+	opt = true;
+      else if (args[i].equals("--ssa"))
+	ssa = true;
+      else if (args[i].equals("--alloc=linear") || args[i].equals("--alloc=irc"))
+	allocMode = args[i].substring(8);
+      else if (args[i].equals("--peep"))
+	peephole = true;
+      else
+	break;
+    }
+    if (i == args.length - 1) {
+      String file = args[i];
+      IR1.Program p;
+      if (file.endsWith(".irb"))
+	p = IR1Bin.read(file);	// binary form (see ir.IR1Bin)
+      else {
+	FileInputStream stream = new FileInputStream(file);
+	p = new IR1Parser(stream).Program();
+	stream.close();
+      }
+      if (opt)
+	p = IR1Opt.optimize(p);
+      gen(ssa ? ir.ssa.SSAOpt.optimize(p) : p);
     } else {
       System.out.println("You must provide an input file name.");
     }
@@ -41,12 +76,18 @@ class CodeGen {
   static List<String> stringLiterals; 	    // collection of all string literals
   static final X86.Reg tempReg1 = X86.R10;  // two random scratch registers
   static final X86.Reg tempReg2 = X86.R11;  //
+  static String allocMode;		    // register allocator (null: none)
+  static boolean peephole = false;	    // run Peephole on each function
 
   // Per-function globals
   //
   static List<String> allVars; 	    	    // collection of all params, vars, and temps
   static int frameSize; 		    // stack frame size (in bytes)
   static String fnName; 		    // function's name
+  static RegAlloc alloc;		    // function's registers (null: none)
+  static List<X86.Reg> calleeSaved;	    // callee-save registers it uses
+  static int saveBase;			    // frame offset of register save area
+  static int pc;			    // index of the current instruction
 
   // Return a variable's stack frame address
   //
@@ -58,6 +99,23 @@ class CodeGen {
     int offset = idx * X86.Size.L.bytes;
     return new X86.Mem(X86.RSP, offset);
   }
+
+  // Return a var's register (null if it lives in its stack slot, or is
+  // not a var)
+  //
+  static X86.Reg reg(Object n) {
+    return alloc == null ? null : alloc.reg(n);
+  }
+
+  // Return the save slot of a callee-save register, or of a caller-save
+  // register that holds a var across a call
+  //
+  static X86.Mem saveMem(X86.Reg r) {
+    int k = calleeSaved.indexOf(r);
+    if (k < 0)
+      k = calleeSaved.size() + Arrays.asList(RegAlloc.CALLER).indexOf(r);
+    return new X86.Mem(X86.RSP, saveBase + k * X86.Size.Q.bytes);
+  }
   
   //----------------------------------------------------------------------------------
   // Gen Routines
@@ -82,7 +140,10 @@ class CodeGen {
       X86.emitString(s);
       i++;
     }      
+    X86.flush();
     System.out.print("\t\t\t  # Total inst cnt: " + X86.instCnt + "\n");
+    if (peephole)
+      System.out.print(Peephole.report());
   }
 
   // Func ---
@@ -119,7 +180,7 @@ class CodeGen {
       throw new GenException("Function has too many paramters: " 
 			     + n.params.length);
     fnName = n.gname.toString();
-    System.out.print("\t\t\t  # " + n.header());
+    X86.emitText("\t\t\t  # " + n.header());
  
     // emit the function header
     X86.emit0(".p2align 4,0x90");
@@ -136,41 +197,70 @@ class CodeGen {
     for(IR1.Id v: n.locals) {
       allVars.add(v.toString());
     }
+    // Allocate registers, if asked to
+    alloc = allocMode == null ? null
+      : allocMode.equals("irc") ? RegAlloc.coloring(n) : RegAlloc.linearScan(n);
+
     // Allocating a frame for params, vars, and temps
     frameSize = (n.locals.length + n.params.length + n.code.length)*4;
     
     // Adjust alignment if needed
-    if((frameSize % 16) == 0 ) {
+    if (alloc != null) {
+      // add the register save area (8-byte aligned), and keep the
+      // stack 16-byte aligned at calls
+      calleeSaved = alloc.calleeUsed();
+      saveBase = (frameSize + 7) & ~7;
+      frameSize = saveBase + (calleeSaved.size() + RegAlloc.CALLER.length) * 8;
+      if((frameSize % 16) == 0 ) {
+	frameSize += 8;
+      }
+    }
+    else if((frameSize % 16) == 0 ) {
       frameSize += 8;
     }
     X86.Imm to_add = new X86.Imm(frameSize);
 
     X86.emit2("subq", to_add, X86.RSP);
+    if (alloc != null)
+      for (X86.Reg r: calleeSaved)
+	X86.emit2("movq", r, saveMem(r));
 
-    // Store the incoming actual arguments to their frame slots
-    int RegId = 5;
+    // Store the incoming actual arguments to their frame slots (or,
+    // with registers allocated, move them to their registers)
+    List<X86.Reg> from = new ArrayList<X86.Reg>(), to = new ArrayList<X86.Reg>();
     for(int i = 0; i <n.params.length; i++){
-      if(RegId == 1) {
-        X86.emit2("movl", new X86.Reg(8, X86.Size.L), new X86.Mem(X86.RSP, i*4));
-      }
-      else if(RegId == 0) {
-        X86.emit2("movl", new X86.Reg(9, X86.Size.L), new X86.Mem(X86.RSP, i*4));
+      X86.Reg r = reg(n.params[i]);
+      if (r == null) {
+	X86.emit2("movl", X86.resize_reg(X86.Size.L, X86.argRegs[i]), new X86.Mem(X86.RSP, i*4));
+      } else {
+	from.add(X86.argRegs[i]);
+	to.add(r);
       }
-      else {
-        X86.emit2("movl", new X86.Reg(RegId, X86.Size.L), new X86.Mem(X86.RSP, i*4));
-      }
-      RegId--;
     }
+    parallel_move(from.toArray(), to.toArray(new X86.Reg[0]), true);
+
+    // Clear the registers of locals that are read before being set.
+    // IR1 leaves such a read undefined; this way the generated code at
+    // least reads 0 every time, rather than whatever the register last
+    // held (a local without a register reads its frame slot instead).
+    if (alloc != null)
+      for (X86.Reg r: alloc.uninitialized())
+	X86.emit2("movq", new X86.Imm(0), r);
   
     // emit code for the body
-    for (int i = 1; i <= n.code.length; i++) 
-      gen(n.code[i-1]);
+    for (pc = 0; pc < n.code.length; pc++)
+      gen(n.code[pc]);
+
+    // clean up the function's code, and print it
+    if (peephole)
+      Peephole.run(X86.code);
+    X86.flush();
   }
 
   // INSTRUCTIONS
 
   static void gen(IR1.Inst n) throws Exception {
-    System.out.print("\t\t\t  # " + n);
+    X86.emitText("\t\t\t  # " + n);
     if (n instanceof IR1.Binop) 	gen((IR1.Binop) n);
     else if (n instanceof IR1.Unop) 	gen((IR1.Unop) n);
     else if (n instanceof IR1.Move) 	gen((IR1.Move) n);
@@ -217,81 +307,84 @@ class CodeGen {
     if(!allVars.contains(n.dst.toString())) {
       allVars.add(n.dst.toString());
     }
-    
-    int idx = allVars.indexOf(n.dst.toString());
+
 
     // Arithmetic operations
     if(n.op instanceof IR1.AOP) {
       if(n.op == IR1.AOP.ADD) {
-        to_reg(n.src1, tempReg1);
-        to_reg(n.src2, tempReg2);
-        X86.emit2("addq", tempReg2, tempReg1);
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        arith("addq", n);
       }
       else if(n.op == IR1.AOP.SUB) {
-        to_reg(n.src1, tempReg1);
-        to_reg(n.src2, tempReg2);
-        X86.emit2("subq", tempReg2, tempReg1);
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        arith("subq", n);
       }
       else if(n.op == IR1.AOP.MUL) {
-        to_reg(n.src1, tempReg1);
-        to_reg(n.src2, tempReg2);
-        X86.emit2("imulq", tempReg2, tempReg1);
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        arith("imulq", n);
       }
       else if(n.op == IR1.AOP.AND || n.op == IR1.AOP.OR) {
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        store(n.dst, tempReg1);
       }
       else if(n.op == IR1.AOP.DIV) {
         to_reg(n.src1, X86.RAX);
         X86.emit0("cqto");
-        to_reg(n.src2,tempReg2);
-        X86.emit1("idivq", tempReg2);
-        X86.emit2("movl", X86.EAX, new X86.Mem(X86.RSP, idx*4));
+        X86.emit1("idivq", src_reg(n.src2, tempReg2));
+        store(n.dst, X86.RAX);
       }
     }
 
     // Relational operations
     if(n.op instanceof IR1.ROP) {
-      to_reg(n.src1, tempReg1);
-      to_reg(n.src2, tempReg2);
-      X86.emit2("cmpq", tempReg2, tempReg1);
+      X86.Reg r1 = src_reg(n.src1, tempReg1);
+      X86.emit2("cmpq", src_op(n.src2, tempReg2), r1);
       if(n.op == IR1.ROP.GT) {
         X86.emit1("setg", new X86.Reg(10, X86.Size.B));      
         X86.emit2("movzbl", new X86.Reg(10, X86.Size.B), new X86.Reg(10, X86.Size.L));
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        store(n.dst, tempReg1);
       }
       if(n.op == IR1.ROP.GE) {
         X86.emit1("setl", new X86.Reg(10, X86.Size.B));      
         X86.emit2("movzbl", new X86.Reg(10, X86.Size.B), new X86.Reg(10, X86.Size.L));
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        store(n.dst, tempReg1);
 
       }
       if(n.op == IR1.ROP.LT) {
         X86.emit1("setl", new X86.Reg(10, X86.Size.B));      
         X86.emit2("movzbl", new X86.Reg(10, X86.Size.B), new X86.Reg(10, X86.Size.L));
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        store(n.dst, tempReg1);
 
       }
       if(n.op == IR1.ROP.LE) {
         X86.emit1("sete", new X86.Reg(10, X86.Size.B));      
         X86.emit2("movzbl", new X86.Reg(10, X86.Size.B), new X86.Reg(10, X86.Size.L));
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        store(n.dst, tempReg1);
 
       }
       if(n.op == IR1.ROP.EQ) {
         X86.emit1("sete", new X86.Reg(10, X86.Size.B));      
         X86.emit2("movzbl", new X86.Reg(10, X86.Size.B), new X86.Reg(10, X86.Size.L));
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        store(n.dst, tempReg1);
       }
       if(n.op == IR1.ROP.NE) {
         X86.emit2("movzbl", new X86.Reg(10, X86.Size.B), new X86.Reg(10, X86.Size.L));
-        X86.emit2("movl", new X86.Reg(10, X86.Size.L), new X86.Mem(X86.RSP, idx*4));
+        store(n.dst, tempReg1);
       }
     }
   }
 
+  // Emit an ADD, SUB or MUL: computed in the temp register; or, when
+  // dst has a register that src2 is not in, right in dst's register
+  //
+  static void arith(String op, IR1.Binop n) throws Exception {
+    X86.Reg d = reg(n.dst);
+    if (d == null || d.equals(reg(n.src2)))
+      d = tempReg1;
+    to_reg(n.src1, d);
+    X86.emit2(op, src_op(n.src2, tempReg2), d);
+    if (d == tempReg1)
+      store(n.dst, d);
+    else
+      X86.emit2("movslq", X86.resize_reg(X86.Size.L, d), d);
+  }
+
   // Unop ---
   //  UOP op;
   //  Dest dst;
@@ -311,7 +404,6 @@ class CodeGen {
     if(!allVars.contains(n.dst.toString())) {
       allVars.add(n.dst.toString());
     }
-    int idx = allVars.indexOf(n.dst.toString());
     
     // bring the operand to a register
     to_reg(n.src, tempReg1);
@@ -323,12 +415,9 @@ class CodeGen {
     else if(n.op == IR1.UOP.NEG) {
       X86.emit1("negq", tempReg1);
     }
-    // New register and mem locations
-    X86.Reg reg = new X86.Reg(10, X86.Size.L);
-    X86.Mem mem = new X86.Mem(X86.RSP, idx*4);
 
     // Emit the code
-    X86.emit2("movl", reg, mem);
+    store(n.dst, tempReg1);
 
   }
 
@@ -345,9 +434,13 @@ class CodeGen {
     String varName = n.dst.toString();
     if (!allVars.contains(varName))
       allVars.add(varName);
+    X86.Reg dstReg = reg(n.dst);
+    if (dstReg != null) {
+      to_reg(n.src, dstReg);
+      return;
+    }
     X86.Mem dstMem = varMem(n.dst);
-    to_reg(n.src, tempReg1);
-    X86.Reg reg = X86.resize_reg(X86.Size.L, tempReg1);
+    X86.Reg reg = X86.resize_reg(X86.Size.L, src_reg(n.src, tempReg1));
     X86.emit2("movl", reg, dstMem);
   }
 
@@ -380,6 +473,11 @@ class CodeGen {
     X86.Mem mem = new X86.Mem(X86.RSP, idx*4);
 
     // emit move
+    X86.Reg dstReg = reg(n.dst);
+    if (dstReg != null) {
+      X86.emit2("movslq", addrs, dstReg);
+      return;
+    }
     X86.emit2("movslq", addrs, tempReg2);
     X86.emit2("movl", reg, mem);
 
@@ -399,13 +497,13 @@ class CodeGen {
     // ... need code ...
 
     // Bring src to a register
-    to_reg(n.src, tempReg1);
+    X86.Reg src = src_reg(n.src, tempReg1);
     
     // generate code for the addr
     X86.Mem addrs = gen_addr(n.addr, tempReg2);
     
     // Get the new register
-    X86.Reg reg = new X86.Reg(10, X86.Size.L);
+    X86.Reg reg = X86.resize_reg(X86.Size.L, src);
 
     // emit mov
     X86.emit2("movl", reg, addrs);
@@ -438,17 +536,30 @@ class CodeGen {
 
     // ... need code ...
     // Bring both operands to registers
-    to_reg(n.src1, tempReg1);
-    to_reg(n.src2, tempReg2);
+    X86.Reg r1 = src_reg(n.src1, tempReg1);
+    X86.Operand r2 = src_op(n.src2, tempReg2);
 
     // Generate the new label
     X86.Label lbl = new X86.Label(fnName + "_" + n.lab.name);
     
     // generate cmp and jump instructions
-    X86.emit2("cmpq", tempReg2, tempReg1);
-    X86.emit1("je", lbl);
+    X86.emit2("cmpq", r2, r1);
+    X86.emit1("j" + cond(n.op), lbl);
   }	
 
+  // Return the x86 condition suffix for a relational op
+  //
+  static String cond(IR1.ROP op) {
+    switch (op) {
+    case EQ: return "e";
+    case NE: return "ne";
+    case LT: return "l";
+    case LE: return "le";
+    case GT: return "g";
+    default: return "ge";
+    }
+  }
+
   // Jump ---
   //  Label lab;
   //
@@ -486,37 +597,28 @@ class CodeGen {
       throw new GenException("Too many args");
     }
     
-    // Move arguments to the registers
-    int argID = 5;
+    // Save the caller-save registers holding vars live across the call
+    List<X86.Reg> saved = alloc == null ? new ArrayList<X86.Reg>() : alloc.liveAcross(pc);
+    for (X86.Reg r: saved)
+      X86.emit2("movq", r, saveMem(r));
 
-    for(int i = 0;i<n.args.length; i++) {
-      if(argID == 1) {
-        to_reg(n.args[i], new X86.Reg(8));
-      }
-      else if(argID == 0) {
-        to_reg(n.args[i], new X86.Reg(9));
-      }
-      else {
-        to_reg(n.args[i], new X86.Reg(argID));
-      }
-      argID--;
-    }
+    // Move arguments to the registers
+    parallel_move(n.args, Arrays.copyOf(X86.argRegs, n.args.length), false);
 
     // Generate a new label for call
     X86.Label lbl = new X86.Label(n.gname.toString());
 
     // emit a call
     X86.emit1("call", lbl);
+    for (X86.Reg r: saved)
+      X86.emit2("movq", saveMem(r), r);
     
     // return value
     if(n.rdst != null) {
       if(!allVars.contains(n.rdst.toString())) {
         allVars.add(n.rdst.toString());
       }
-      int idx = allVars.indexOf(n.rdst.toString());
-      X86.Mem mem = new X86.Mem(X86.RSP, idx*4);
-      X86.emit2("movl", X86.EAX, mem);
-
+      store(n.rdst, X86.RAX);
     }
   }
 
@@ -533,7 +635,10 @@ class CodeGen {
     // ... need code ...
     // if there is a value
     if(n.val != null) {
-      if(n.val instanceof IR1.IntLit) {
+      if(reg(n.val) != null) {
+        X86.emit2("movq", reg(n.val), X86.RAX);
+      }
+      else if(n.val instanceof IR1.IntLit) {
         to_reg(n.val, X86.RAX);
       }
       else {
@@ -542,6 +647,10 @@ class CodeGen {
         X86.emit2("movslq", mem, X86.RAX);
       }
     }
+    // restore callee-save registers
+    if (alloc != null)
+      for (X86.Reg r: calleeSaved)
+	X86.emit2("movq", saveMem(r), r);
     // pop frame
     X86.Imm imm = new X86.Imm(frameSize);
     X86.emit2("addq", imm, X86.RSP);
@@ -572,7 +681,11 @@ class CodeGen {
 
     // ... need code ...
     // Case for ID/Temp
-    if(n instanceof IR1.Id || n instanceof IR1.Temp) {
+    if(reg(n) != null) {
+      if(!reg(n).equals(tempReg))
+        X86.emit2("movq", reg(n), tempReg);
+    }
+    else if(n instanceof IR1.Id || n instanceof IR1.Temp) {
       int idx = allVars.indexOf(n.toString());
       X86.Mem mem = new X86.Mem(X86.RSP, idx*4);
       X86.emit2("movslq", mem, tempReg);
@@ -601,6 +714,81 @@ class CodeGen {
     }
   }
 
+  // Return a register holding the Src's value: the Src's own register,
+  // if it has one; otherwise the temp register, after to_reg()
+  //
+  static X86.Reg src_reg(IR1.Src n, X86.Reg tempReg) throws Exception {
+    if(reg(n) != null)
+      return reg(n);
+    to_reg(n, tempReg);
+    return tempReg;
+  }
+
+  // Return an operand for the Src's value: like src_reg(), but with
+  // registers allocated, an int or bool literal is an immediate
+  //
+  static X86.Operand src_op(IR1.Src n, X86.Reg tempReg) throws Exception {
+    if(alloc != null && n instanceof IR1.IntLit)
+      return new X86.Imm(((IR1.IntLit)n).i);
+    if(alloc != null && n instanceof IR1.BoolLit)
+      return new X86.Imm(((IR1.BoolLit)n).b ? 1 : 0);
+    return src_reg(n, tempReg);
+  }
+
+  // Store a register's (int) value to a Dest: sign-extended into the
+  // Dest's register, or into its stack slot
+  //
+  static void store(IR1.Dest n, X86.Reg r) throws Exception {
+    X86.Reg reg = X86.resize_reg(X86.Size.L, r);
+    if(reg(n) != null)
+      X86.emit2("movslq", reg, reg(n));
+    else
+      X86.emit2("movl", reg, varMem(n));
+  }
+
+  // Move each source (an IR1.Src, or a register) to the register of the
+  // same index in 'dsts', as if all at once: a move into a register that
+  // another pending move still reads is put off, and a cycle of such
+  // moves is broken through a temp register. With 'extend', register
+  // sources hold 32-bit values to be sign-extended.
+  //
+  static void parallel_move(Object[] srcs, X86.Reg[] dsts, boolean extend) throws Exception {
+    Object[] from = srcs.clone();
+    List<Integer> pending = new ArrayList<Integer>();
+    for (int i = 0; i < from.length; i++)
+      pending.add(i);
+    while (!pending.isEmpty()) {
+      int next = -1;
+      for (int i: pending) {
+        boolean read = false;
+        for (int j: pending)
+          if (j != i && dsts[i].equals(from_reg(from[j])))
+            read = true;
+        if (!read) {
+          next = i;
+          break;
+        }
+      }
+      if (next < 0) {
+        int i = pending.get(0);
+        X86.emit2("movq", from_reg(from[i]), tempReg1);
+        from[i] = tempReg1;
+        continue;
+      }
+      pending.remove((Integer) next);
+      if (from[next] instanceof IR1.Src)
+        to_reg((IR1.Src) from[next], dsts[next]);
+      else if (extend)
+        X86.emit2("movslq", X86.resize_reg(X86.Size.L, (X86.Reg) from[next]), dsts[next]);
+      else if (!from[next].equals(dsts[next]))
+        X86.emit2("movq", (X86.Reg) from[next], dsts[next]);
+    }
+  }
+
+  static X86.Reg from_reg(Object src) {
+    return src instanceof X86.Reg ? (X86.Reg) src : reg(src);
+  }
+
   // Addr ---
   // Src base;  
   // int offset;
@@ -610,8 +798,7 @@ class CodeGen {
   // - return a memory operand (i.e. X86.Mem) representing the address
   //
   static X86.Mem gen_addr(IR1.Addr addr, X86.Reg tempReg) throws Exception {
-    to_reg(addr.base, tempReg);
-    return new X86.Mem(tempReg, addr.offset);
+    return new X86.Mem(src_reg(addr.base, tempReg), addr.offset);
   }
 }
 
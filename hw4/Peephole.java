@@ -0,0 +1,275 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Peephole optimizer for CodeGen's output (--peep).
+//
+// Runs over a function's buffered X86 code (see X86.code), trying each
+// rule at each instruction and going over the code again until no rule
+// applies. A rule looks at an instruction and its neighbours, skipping
+// the comment lines in between; a label ends the window (another jump
+// may reach it), except for the jump rules. The rules:
+//
+//   store-reload   movl %rXd,M; movslq M,%rY   -> movl %rXd,M; movslq %rXd,%rY
+//                  (or, storing $c, movq $c,%rY)
+//   redundant-ext  movslq %rXd,%rX, with %rX sign-extended already (by a
+//                  movslq or movzbl into it, or a movq of an immediate)
+//                  since its last change                 -> (deleted)
+//   imm-fold       movq $c,%rT; op %rT,D         -> op $c,D, if %rT is dead
+//                  after it (op: addq, subq, imulq, andq, orq, xorq,
+//                  cmpq, movq, movl, and movslq, which becomes movq)
+//   jump-next      jmp L; L:                     -> L:
+//   branch-invert  jcc L1; jmp L2; L1:           -> j!cc L2; L1:
+//
+// Liveness is looked up by scanning forward from the instruction; it
+// stops at a label, jump, call or ret, past which only CodeGen's
+// scratch registers (R10, R11, which never hold a value from one IR1
+// instruction to the next) are known to be dead.
+//
+import java.util.*;
+
+class Peephole {
+  static final String[] RULES =
+    { "store-reload", "redundant-ext", "imm-fold", "jump-next", "branch-invert" };
+  static final int STORE_RELOAD = 0, REDUNDANT_EXT = 1, IMM_FOLD = 2,
+    JUMP_NEXT = 3, BRANCH_INVERT = 4;
+  static int[] hits = new int[RULES.length];
+  static int removed = 0;		// instructions deleted
+
+  static final List<String> FOLDABLE = Arrays.asList
+    ("addq", "subq", "imulq", "andq", "orq", "xorq", "cmpq", "movq", "movl", "movslq");
+
+  // Optimize a function's code in place
+  //
+  static void run(List<X86.Inst> code) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < code.size(); i++)
+	if (code.get(i) != null && code.get(i).op != null && apply(code, i))
+	  changed = true;
+      for (Iterator<X86.Inst> it = code.iterator(); it.hasNext(); )
+	if (it.next() == null) {
+	  it.remove();
+	  removed++;
+	}
+    }
+  }
+
+  // The rule hit counts, as assembly comments
+  //
+  static String report() {
+    StringBuilder sb = new StringBuilder();
+    for (int k = 0; k < RULES.length; k++)
+      sb.append("\t\t\t  # Peephole " + RULES[k] + ": " + hits[k] + "\n");
+    sb.append("\t\t\t  # Peephole insts removed: " + removed + "\n");
+    return sb.toString();
+  }
+
+  // Try the rules at instruction i
+  //
+  static boolean apply(List<X86.Inst> code, int i) {
+    X86.Inst c = code.get(i);
+    int j = next(code, i, false);
+    X86.Inst d = j < 0 ? null : code.get(j);
+
+    // store-reload
+    if (d != null && c.op.equals("movl") && d.op.equals("movslq")
+	&& c.rand2 instanceof X86.Mem && same(c.rand2, d.rand1)) {
+      if (c.rand1 instanceof X86.Imm)
+	d.op = "movq";
+      d.rand1 = c.rand1;
+      hits[STORE_RELOAD]++;
+      return true;
+    }
+
+    // redundant-ext
+    if (c.op.equals("movslq") && c.rand1 instanceof X86.Reg && c.rand2 instanceof X86.Reg
+	&& num(c.rand1) == num(c.rand2) && extended(code, i, num(c.rand2))) {
+      code.set(i, null);
+      hits[REDUNDANT_EXT]++;
+      return true;
+    }
+
+    // imm-fold
+    if (d != null && c.op.equals("movq") && c.rand1 instanceof X86.Imm
+	&& c.rand2 instanceof X86.Reg && FOLDABLE.contains(d.op)
+	&& d.rand1 instanceof X86.Reg && num(d.rand1) == num(c.rand2)
+	&& !mentions(d.rand2, num(c.rand2)) && dead(code, j, num(c.rand2))) {
+      if (d.op.equals("movslq"))
+	d.op = "movq";
+      d.rand1 = c.rand1;
+      code.set(i, null);
+      hits[IMM_FOLD]++;
+      return true;
+    }
+
+    // jump-next
+    if (c.op.equals("jmp") && labelAhead(code, i, c.rand1)) {
+      code.set(i, null);
+      hits[JUMP_NEXT]++;
+      return true;
+    }
+
+    // branch-invert
+    if (d != null && c.op.startsWith("j") && !c.op.equals("jmp") && invert(c.op) != null
+	&& d.op.equals("jmp") && labelAhead(code, j, c.rand1)) {
+      c.op = invert(c.op);
+      c.rand1 = d.rand1;
+      code.set(j, null);
+      hits[BRANCH_INVERT]++;
+      return true;
+    }
+    return false;
+  }
+
+  //-----------------------------------------------------------------
+  // Helpers
+  //-----------------------------------------------------------------
+  //
+
+  // Index of the next instruction after i, skipping comments (and, if
+  // 'labels', labels); -1 if there is none, or a label comes first
+  //
+  static int next(List<X86.Inst> code, int i, boolean labels) {
+    for (int j = i + 1; j < code.size(); j++) {
+      X86.Inst c = code.get(j);
+      if (c == null || (c.op == null && c.label == null))
+	continue;
+      if (c.label != null) {
+	if (labels)
+	  continue;
+	return -1;
+      }
+      return j;
+    }
+    return -1;
+  }
+
+  // Whether label 'lab' is among those right after instruction i
+  //
+  static boolean labelAhead(List<X86.Inst> code, int i, X86.Operand lab) {
+    for (int j = i + 1; j < code.size(); j++) {
+      X86.Inst c = code.get(j);
+      if (c == null || (c.op == null && c.label == null))
+	continue;
+      if (c.label == null)
+	return false;
+      if (same(c.label, lab))
+	return true;
+    }
+    return false;
+  }
+
+  // Whether register r is sign-extended from 32 bits before instruction
+  // i: the last instruction to change it (in the same window) put a
+  // sign-extended value in it
+  //
+  static boolean extended(List<X86.Inst> code, int i, int r) {
+    for (int j = i - 1; j >= 0; j--) {
+      X86.Inst c = code.get(j);
+      if (c == null || (c.op == null && c.label == null))
+	continue;
+      if (c.label != null || barrier(c))
+	return false;
+      if (!modifies(c, r))
+	continue;
+      return (c.op.equals("movslq") && ((X86.Reg) c.rand2).s == X86.Size.Q)
+	|| (c.op.equals("movq") && c.rand1 instanceof X86.Imm)
+	|| c.op.equals("movzbl");
+    }
+    return false;
+  }
+
+  // Whether register r is dead after instruction i
+  //
+  static boolean dead(List<X86.Inst> code, int i, int r) {
+    for (int j = i + 1; j < code.size(); j++) {
+      X86.Inst c = code.get(j);
+      if (c == null || (c.op == null && c.label == null))
+	continue;
+      if (c.label != null || barrier(c))
+	return r == X86.R10.r || r == X86.R11.r;
+      if (reads(c, r))
+	return false;
+      if (writes(c, r))
+	return true;
+    }
+    return true;
+  }
+
+  static boolean barrier(X86.Inst c) {
+    return c.op.startsWith("j") || c.op.equals("call") || c.op.equals("ret")
+      || c.op.startsWith(".");
+  }
+
+  static boolean isMove(String op) {
+    return op.startsWith("mov") || op.startsWith("lea");
+  }
+
+  // Whether c reads register r (a partial write counts as a read)
+  //
+  static boolean reads(X86.Inst c, int r) {
+    if (c.rand1 instanceof X86.Mem && mentions(c.rand1, r)
+	|| c.rand2 instanceof X86.Mem && mentions(c.rand2, r))
+      return true;
+    if (c.op.equals("cqto"))
+      return r == X86.RAX.r;
+    if (c.op.equals("idivq"))
+      return r == X86.RAX.r || r == X86.RDX.r || mentions(c.rand1, r);
+    if (isMove(c.op))
+      return mentions(c.rand1, r);
+    return mentions(c.rand1, r) || mentions(c.rand2, r);
+  }
+
+  // Whether c sets all of register r
+  //
+  static boolean writes(X86.Inst c, int r) {
+    if (c.op.equals("cqto"))
+      return r == X86.RDX.r;
+    return isMove(c.op) && c.rand2 instanceof X86.Reg && num(c.rand2) == r
+      && ((X86.Reg) c.rand2).s != X86.Size.B;
+  }
+
+  // Whether c changes any part of register r
+  //
+  static boolean modifies(X86.Inst c, int r) {
+    if (c.op.equals("cqto") || c.op.equals("idivq"))
+      return r == X86.RAX.r || r == X86.RDX.r;
+    if (c.op.startsWith("cmp") || c.op.startsWith("test"))
+      return false;
+    X86.Operand d = c.rand2 != null ? c.rand2 : c.rand1;
+    return d instanceof X86.Reg && num(d) == r;
+  }
+
+  static boolean mentions(X86.Operand o, int r) {
+    if (o instanceof X86.Reg)
+      return num(o) == r;
+    if (o instanceof X86.Mem)
+      return ((X86.Mem) o).base != null && ((X86.Mem) o).base.r == r
+	|| ((X86.Mem) o).index != null && ((X86.Mem) o).index.r == r;
+    return false;
+  }
+
+  static int num(X86.Operand o) {
+    return ((X86.Reg) o).r;
+  }
+
+  static boolean same(X86.Operand a, X86.Operand b) {
+    return a != null && b != null && a.toString().equals(b.toString());
+  }
+
+  static String invert(String jcc) {
+    switch (jcc) {
+    case "je":  return "jne";
+    case "jne": return "je";
+    case "jl":  return "jge";
+    case "jge": return "jl";
+    case "jle": return "jg";
+    case "jg":  return "jle";
+    default:    return null;
+    }
+  }
+}
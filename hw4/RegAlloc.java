@@ -0,0 +1,668 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Register allocation for CodeGen (--alloc=linear, --alloc=irc).
+//
+// Liveness is computed over the function's instructions (one node per
+// IR1 instruction, with edges to the next one and to jump targets), as
+// bit sets of variable indices. A variable's live interval runs from
+// the first to the last instruction where it is live or defined; vars
+// live on entry (params, and locals read before being set) start at -1.
+//
+// Linear scan (Poletto and Sarkar) visits the intervals in order of
+// start, first freeing the registers of the intervals that have ended.
+// An interval that is live across a call prefers a callee-save
+// register; any other prefers a caller-save one (so neither needs
+// saving). If no register is free, whichever of the new interval and
+// the active ones ends last is spilled to its stack slot.
+//
+// Iterated register coalescing (George and Appel; after Chaitin and
+// Briggs) builds an interference graph with a node per var and one per
+// register, the registers precolored. A var live across a call
+// interferes with the caller-save registers. The graph is simplified,
+// coalescing the nodes of Moves between vars, of call arguments and
+// their argument registers, and of params and theirs, whenever the
+// Briggs or George test says it is safe; when it gets stuck, a move is
+// frozen or a spill candidate chosen by lowest cost / degree, the cost
+// being the var's uses and defs weighted by 10 ^ loop depth (loops
+// being the spans of backward jumps). A node left uncolored is spilled
+// to its stack slot; no rewrite (and no new round) is needed, since
+// CodeGen reaches slots through its own scratch registers.
+//
+// Registers handed out (the others are reserved):
+//   callee-save  RBX, R12, R13, R14, R15, RBP
+//   caller-save  RCX, RSI, RDI, R8, R9
+// RAX and RDX are used by division, call results and return values;
+// R10 and R11 are CodeGen's scratch registers.
+//
+import java.util.*;
+import ir.*;
+
+class RegAlloc {
+  static final X86.Reg[] CALLEE = { X86.RBX, X86.R12, X86.R13, X86.R14, X86.R15, X86.RBP };
+  static final X86.Reg[] CALLER = { X86.RCX, X86.RSI, X86.RDI, X86.R8, X86.R9 };
+
+  final IR1.Func func;
+  final List<String> vars = new ArrayList<String>();	// params, locals, then
+							// temps as they appear
+  final HashMap<String, Integer> index = new HashMap<String, Integer>();
+  final BitSet[] use, def, liveIn, liveOut;
+  final int[][] succs;
+  final int[] start, end;		// live intervals, by var index
+  final boolean[] crossesCall;		// live across some call
+
+  final HashMap<String, X86.Reg> regs = new HashMap<String, X86.Reg>();
+  int spilled = 0;
+
+  //-----------------------------------------------------------------
+  // Liveness
+  //-----------------------------------------------------------------
+  //
+
+  RegAlloc(IR1.Func f) throws Exception {
+    func = f;
+    IR1.Inst[] code = f.code;
+    int n = code.length;
+    for (IR1.Id v: f.params)
+      var(v);
+    for (IR1.Id v: f.locals)
+      var(v);
+    HashMap<String, Integer> labels = new HashMap<String, Integer>();
+    for (int i = 0; i < n; i++)
+      if (code[i] instanceof IR1.LabelDec)
+	labels.put(((IR1.LabelDec) code[i]).lab.name, i);
+
+    use = new BitSet[n];
+    def = new BitSet[n];
+    succs = new int[n][];
+    for (int i = 0; i < n; i++) {
+      IR1.Inst c = code[i];
+      use[i] = new BitSet();
+      def[i] = new BitSet();
+      if (c instanceof IR1.Binop) {
+	use(i, ((IR1.Binop) c).src1);
+	use(i, ((IR1.Binop) c).src2);
+	def(i, ((IR1.Binop) c).dst);
+      } else if (c instanceof IR1.Unop) {
+	use(i, ((IR1.Unop) c).src);
+	def(i, ((IR1.Unop) c).dst);
+      } else if (c instanceof IR1.Move) {
+	use(i, ((IR1.Move) c).src);
+	def(i, ((IR1.Move) c).dst);
+      } else if (c instanceof IR1.Load) {
+	use(i, ((IR1.Load) c).addr.base);
+	def(i, ((IR1.Load) c).dst);
+      } else if (c instanceof IR1.Store) {
+	use(i, ((IR1.Store) c).addr.base);
+	use(i, ((IR1.Store) c).src);
+      } else if (c instanceof IR1.Call) {
+	if (((IR1.Call) c).args.length > X86.argRegs.length)	// (as CodeGen)
+	  throw new CodeGen.GenException("Too many args");
+	for (IR1.Src a: ((IR1.Call) c).args)
+	  use(i, a);
+	if (((IR1.Call) c).rdst != null)
+	  def(i, ((IR1.Call) c).rdst);
+      } else if (c instanceof IR1.Return) {
+	if (((IR1.Return) c).val != null)
+	  use(i, ((IR1.Return) c).val);
+      } else if (c instanceof IR1.CJump) {
+	use(i, ((IR1.CJump) c).src1);
+	use(i, ((IR1.CJump) c).src2);
+      }
+      if (c instanceof IR1.Jump)
+	succs[i] = new int[] { target(labels, ((IR1.Jump) c).lab) };
+      else if (c instanceof IR1.Return || i + 1 == n)
+	succs[i] = c instanceof IR1.CJump ? new int[] { target(labels, ((IR1.CJump) c).lab) }
+	  : new int[0];
+      else if (c instanceof IR1.CJump)
+	succs[i] = new int[] { i + 1, target(labels, ((IR1.CJump) c).lab) };
+      else
+	succs[i] = new int[] { i + 1 };
+    }
+
+    liveIn = new BitSet[n];
+    liveOut = new BitSet[n];
+    for (int i = 0; i < n; i++) {
+      liveIn[i] = new BitSet();
+      liveOut[i] = new BitSet();
+    }
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = n - 1; i >= 0; i--) {
+	BitSet out = new BitSet();
+	for (int s: succs[i])
+	  out.or(liveIn[s]);
+	BitSet in = (BitSet) out.clone();
+	in.andNot(def[i]);
+	in.or(use[i]);
+	if (!in.equals(liveIn[i]) || !out.equals(liveOut[i])) {
+	  liveIn[i] = in;
+	  liveOut[i] = out;
+	  changed = true;
+	}
+      }
+    }
+
+    int m = vars.size();
+    start = new int[m];
+    end = new int[m];
+    Arrays.fill(start, Integer.MAX_VALUE);
+    Arrays.fill(end, -2);
+    if (n > 0)
+      for (int v = liveIn[0].nextSetBit(0); v >= 0; v = liveIn[0].nextSetBit(v + 1))
+	extend(v, -1);
+    for (int i = 0; i < n; i++) {
+      BitSet live = (BitSet) liveIn[i].clone();
+      live.or(def[i]);
+      for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1))
+	extend(v, i);
+    }
+    crossesCall = new boolean[m];
+    for (int i = 0; i < n; i++)
+      if (code[i] instanceof IR1.Call)
+	for (int v = liveOut[i].nextSetBit(0); v >= 0; v = liveOut[i].nextSetBit(v + 1))
+	  if (!def[i].get(v))
+	    crossesCall[v] = true;
+  }
+
+  int var(Object v) {
+    String name = v.toString();
+    Integer k = index.get(name);
+    if (k == null) {
+      k = vars.size();
+      vars.add(name);
+      index.put(name, k);
+    }
+    return k;
+  }
+
+  static boolean isVar(Object v) {
+    return v instanceof IR1.Id || v instanceof IR1.Temp;
+  }
+
+  void use(int i, IR1.Src s) {
+    if (isVar(s) && !def[i].get(var(s)))
+      use[i].set(var(s));
+  }
+
+  void def(int i, IR1.Dest d) {
+    def[i].set(var(d));
+  }
+
+  int target(HashMap<String, Integer> labels, IR1.Label lab) throws Exception {
+    Integer i = labels.get(lab.name);
+    if (i == null)
+      throw new CodeGen.GenException("Undefined label: " + lab);
+    return i;
+  }
+
+  void extend(int v, int i) {
+    start[v] = Math.min(start[v], i);
+    end[v] = Math.max(end[v], i);
+  }
+
+  //-----------------------------------------------------------------
+  // Linear Scan
+  //-----------------------------------------------------------------
+  //
+
+  static RegAlloc linearScan(IR1.Func f) throws Exception {
+    RegAlloc a = new RegAlloc(f);
+    a.linearScan();
+    return a;
+  }
+
+  void linearScan() {
+    List<Integer> order = new ArrayList<Integer>();
+    for (int v = 0; v < vars.size(); v++)
+      if (end[v] >= -1)
+	order.add(v);
+    order.sort((a, b) -> start[a] - start[b]);
+    List<Integer> active = new ArrayList<Integer>();	// by increasing end
+    X86.Reg[] holder = new X86.Reg[vars.size()];
+    boolean[] busy = new boolean[16];
+    for (int v: order) {
+      while (!active.isEmpty() && end[active.get(0)] < start[v])
+	busy[holder[active.remove(0)].r] = false;
+      X86.Reg r = crossesCall[v] ? free(busy, CALLEE, CALLER) : free(busy, CALLER, CALLEE);
+      if (r == null) {
+	int last = active.get(active.size() - 1);
+	spilled++;
+	if (end[last] <= end[v])
+	  continue;
+	active.remove(active.size() - 1);
+	regs.remove(vars.get(last));
+	r = holder[last];
+      }
+      busy[r.r] = true;
+      holder[v] = r;
+      regs.put(vars.get(v), r);
+      int k = 0;
+      while (k < active.size() && end[active.get(k)] <= end[v])
+	k++;
+      active.add(k, v);
+    }
+  }
+
+  static X86.Reg free(boolean[] busy, X86.Reg[] first, X86.Reg[] second) {
+    for (X86.Reg r: first)
+      if (!busy[r.r])
+	return r;
+    for (X86.Reg r: second)
+      if (!busy[r.r])
+	return r;
+    return null;
+  }
+
+  //-----------------------------------------------------------------
+  // Iterated Register Coalescing
+  //-----------------------------------------------------------------
+  //
+
+  static RegAlloc coloring(IR1.Func f) throws Exception {
+    RegAlloc a = new RegAlloc(f);
+    new Coloring(a).run();
+    return a;
+  }
+
+  static class Coloring {
+    static final X86.Reg[] COLORS = { X86.RCX, X86.RSI, X86.RDI, X86.R8, X86.R9,
+      X86.RBX, X86.R12, X86.R13, X86.R14, X86.R15, X86.RBP };	// caller-save first
+    static final int K = COLORS.length;
+    static final int PRECOLORED = Integer.MAX_VALUE / 2;	// their degree
+
+    final RegAlloc ra;
+    final int n;			// nodes: K registers, then the vars
+    final BitSet[] adj;
+    final int[] degree, alias, color;
+    final double[] cost;
+    final List<int[]> moves = new ArrayList<int[]>();	// { dst, src }
+    final List<BitSet> moveList = new ArrayList<BitSet>();
+
+    final BitSet simplifyWL = new BitSet(), freezeWL = new BitSet(),
+      spillWL = new BitSet(), spilled = new BitSet(), coalesced = new BitSet(),
+      colored = new BitSet(), selected = new BitSet();
+    final ArrayDeque<Integer> select = new ArrayDeque<Integer>();
+    final BitSet worklistMoves = new BitSet(), activeMoves = new BitSet();
+
+    Coloring(RegAlloc ra) {
+      this.ra = ra;
+      n = K + ra.vars.size();
+      adj = new BitSet[n];
+      degree = new int[n];
+      alias = new int[n];
+      color = new int[n];
+      cost = new double[n];
+      for (int u = 0; u < n; u++) {
+	adj[u] = new BitSet();
+	moveList.add(new BitSet());
+	alias[u] = u;
+	color[u] = u < K ? u : -1;
+	degree[u] = u < K ? PRECOLORED : 0;
+      }
+    }
+
+    boolean precolored(int u) { return u < K; }
+
+    // A var's node (-1 if it is never live or set)
+    //
+    int node(Object v) {
+      if (!isVar(v))
+	return -1;
+      int k = ra.var(v);
+      return ra.end[k] >= -1 ? K + k : -1;
+    }
+
+    // A register's node (-1 if it is not allocatable)
+    //
+    static int node(X86.Reg r) {
+      return Arrays.asList(COLORS).indexOf(r);
+    }
+
+    void run() {
+      build();
+      for (int u = K; u < n; u++) {
+	if (ra.end[u-K] < -1)
+	  continue;
+	if (degree[u] >= K)
+	  spillWL.set(u);
+	else if (moveRelated(u))
+	  freezeWL.set(u);
+	else
+	  simplifyWL.set(u);
+      }
+      while (true) {
+	if (!simplifyWL.isEmpty())
+	  simplify();
+	else if (!worklistMoves.isEmpty())
+	  coalesce();
+	else if (!freezeWL.isEmpty())
+	  freeze();
+	else if (!spillWL.isEmpty())
+	  selectSpill();
+	else
+	  break;
+      }
+      assignColors();
+      for (int u = K; u < n; u++) {
+	if (ra.end[u-K] < -1)
+	  continue;
+	if (color[u] >= 0)
+	  ra.regs.put(ra.vars.get(u-K), COLORS[color[u]]);
+	else
+	  ra.spilled++;
+      }
+    }
+
+    // Build ---
+
+    void build() {
+      IR1.Inst[] code = ra.func.code;
+      int[] depth = new int[code.length];
+      for (int i = 0; i < code.length; i++)
+	for (int s: ra.succs[i])
+	  for (int j = s; j <= i; j++)
+	    depth[j]++;
+      for (int i = 0; i < code.length; i++) {
+	IR1.Inst c = code[i];
+	BitSet live = (BitSet) ra.liveOut[i].clone();
+	if (c instanceof IR1.Move && node(((IR1.Move) c).src) >= 0) {
+	  live.clear(ra.var(((IR1.Move) c).src));
+	  addMove(node(((IR1.Move) c).dst), node(((IR1.Move) c).src));
+	}
+	BitSet def = ra.def[i];
+	for (int d = def.nextSetBit(0); d >= 0; d = def.nextSetBit(d + 1))
+	  for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1))
+	    addEdge(K + d, K + v);
+	if (c instanceof IR1.Call) {
+	  BitSet across = (BitSet) ra.liveOut[i].clone();
+	  across.andNot(def);
+	  for (int v = across.nextSetBit(0); v >= 0; v = across.nextSetBit(v + 1))
+	    for (X86.Reg r: CALLER)
+	      addEdge(K + v, node(r));
+	  IR1.Src[] args = ((IR1.Call) c).args;
+	  for (int k = 0; k < args.length; k++)
+	    addMove(node(X86.argRegs[k]), node(args[k]));
+	}
+	double w = Math.pow(10, depth[i]);
+	BitSet used = (BitSet) ra.use[i].clone();
+	used.or(def);
+	for (int v = used.nextSetBit(0); v >= 0; v = used.nextSetBit(v + 1))
+	  cost[K + v] += w;
+      }
+      // the vars live on entry are all set there
+      if (code.length > 0) {
+	BitSet in = ra.liveIn[0];
+	for (int u = in.nextSetBit(0); u >= 0; u = in.nextSetBit(u + 1))
+	  for (int v = in.nextSetBit(u + 1); v >= 0; v = in.nextSetBit(v + 1))
+	    addEdge(K + u, K + v);
+      }
+      for (int k = 0; k < ra.func.params.length; k++)
+	addMove(K + k, node(X86.argRegs[k]));
+    }
+
+    void addEdge(int u, int v) {
+      if (u == v || adj[u].get(v))
+	return;
+      adj[u].set(v);
+      adj[v].set(u);
+      if (!precolored(u))
+	degree[u]++;
+      if (!precolored(v))
+	degree[v]++;
+    }
+
+    void addMove(int dst, int src) {
+      if (dst < 0 || src < 0 || dst == src || (dst >= K && ra.end[dst-K] < -1)
+	  || (src >= K && ra.end[src-K] < -1))
+	return;
+      int m = moves.size();
+      moves.add(new int[] { dst, src });
+      moveList.get(dst).set(m);
+      moveList.get(src).set(m);
+      worklistMoves.set(m);
+    }
+
+    BitSet adjacent(int u) {
+      BitSet a = (BitSet) adj[u].clone();
+      a.andNot(selected);
+      a.andNot(coalesced);
+      return a;
+    }
+
+    BitSet nodeMoves(int u) {
+      BitSet m = (BitSet) activeMoves.clone();
+      m.or(worklistMoves);
+      m.and(moveList.get(u));
+      return m;
+    }
+
+    boolean moveRelated(int u) {
+      return moveList.get(u).intersects(activeMoves)
+	|| moveList.get(u).intersects(worklistMoves);
+    }
+
+    // Simplify ---
+
+    void simplify() {
+      int u = simplifyWL.nextSetBit(0);
+      simplifyWL.clear(u);
+      select.push(u);
+      selected.set(u);
+      BitSet a = adjacent(u);
+      for (int t = a.nextSetBit(0); t >= 0; t = a.nextSetBit(t + 1))
+	decrementDegree(t);
+    }
+
+    void decrementDegree(int u) {
+      if (precolored(u))
+	return;
+      if (degree[u]-- == K) {
+	enableMoves(u);
+	BitSet a = adjacent(u);
+	for (int t = a.nextSetBit(0); t >= 0; t = a.nextSetBit(t + 1))
+	  enableMoves(t);
+	spillWL.clear(u);
+	if (moveRelated(u))
+	  freezeWL.set(u);
+	else
+	  simplifyWL.set(u);
+      }
+    }
+
+    void enableMoves(int u) {
+      BitSet ms = nodeMoves(u);
+      for (int m = ms.nextSetBit(0); m >= 0; m = ms.nextSetBit(m + 1))
+	if (activeMoves.get(m)) {
+	  activeMoves.clear(m);
+	  worklistMoves.set(m);
+	}
+    }
+
+    // Coalesce ---
+
+    void coalesce() {
+      int m = worklistMoves.nextSetBit(0);
+      worklistMoves.clear(m);
+      int x = alias(moves.get(m)[0]), y = alias(moves.get(m)[1]);
+      int u = precolored(y) ? y : x, v = precolored(y) ? x : y;
+      if (u == v) {
+	addWorkList(u);
+      } else if (precolored(v) || adj[u].get(v)) {
+	addWorkList(u);			// constrained
+	addWorkList(v);
+      } else if (precolored(u) ? george(u, v) : briggs(u, v)) {
+	combine(u, v);
+	addWorkList(u);
+      } else {
+	activeMoves.set(m);
+      }
+    }
+
+    void addWorkList(int u) {
+      if (!precolored(u) && !moveRelated(u) && degree[u] < K) {
+	freezeWL.clear(u);
+	simplifyWL.set(u);
+      }
+    }
+
+    // George: every neighbor of v is insignificant or already adjacent
+    // to (the register) u
+    //
+    boolean george(int u, int v) {
+      BitSet a = adjacent(v);
+      for (int t = a.nextSetBit(0); t >= 0; t = a.nextSetBit(t + 1))
+	if (!(degree[t] < K || precolored(t) || adj[t].get(u)))
+	  return false;
+      return true;
+    }
+
+    // Briggs: the combined node has fewer than K significant neighbors
+    //
+    boolean briggs(int u, int v) {
+      BitSet a = adjacent(u);
+      a.or(adjacent(v));
+      int k = 0;
+      for (int t = a.nextSetBit(0); t >= 0; t = a.nextSetBit(t + 1))
+	if (degree[t] >= K)
+	  k++;
+      return k < K;
+    }
+
+    int alias(int u) {
+      while (coalesced.get(u))
+	u = alias[u];
+      return u;
+    }
+
+    void combine(int u, int v) {
+      if (freezeWL.get(v))
+	freezeWL.clear(v);
+      else
+	spillWL.clear(v);
+      coalesced.set(v);
+      alias[v] = u;
+      cost[u] += cost[v];
+      moveList.get(u).or(moveList.get(v));
+      enableMoves(v);
+      BitSet a = adjacent(v);
+      for (int t = a.nextSetBit(0); t >= 0; t = a.nextSetBit(t + 1)) {
+	addEdge(t, u);
+	decrementDegree(t);
+      }
+      if (degree[u] >= K && freezeWL.get(u)) {
+	freezeWL.clear(u);
+	spillWL.set(u);
+      }
+    }
+
+    // Freeze and Spill ---
+
+    void freeze() {
+      int u = freezeWL.nextSetBit(0);
+      freezeWL.clear(u);
+      simplifyWL.set(u);
+      freezeMoves(u);
+    }
+
+    void freezeMoves(int u) {
+      BitSet ms = nodeMoves(u);
+      for (int m = ms.nextSetBit(0); m >= 0; m = ms.nextSetBit(m + 1)) {
+	int x = moves.get(m)[0], y = moves.get(m)[1];
+	int v = alias(y) == alias(u) ? alias(x) : alias(y);
+	activeMoves.clear(m);
+	worklistMoves.clear(m);
+	if (!precolored(v) && nodeMoves(v).isEmpty() && degree[v] < K) {
+	  freezeWL.clear(v);
+	  simplifyWL.set(v);
+	}
+      }
+    }
+
+    void selectSpill() {
+      int best = -1;
+      for (int u = spillWL.nextSetBit(0); u >= 0; u = spillWL.nextSetBit(u + 1))
+	if (best < 0 || cost[u] / degree[u] < cost[best] / degree[best])
+	  best = u;
+      spillWL.clear(best);
+      simplifyWL.set(best);
+      freezeMoves(best);
+    }
+
+    // Select ---
+
+    void assignColors() {
+      while (!select.isEmpty()) {
+	int u = select.pop();
+	selected.clear(u);
+	BitSet ok = new BitSet();
+	ok.set(0, K);
+	for (int t = adj[u].nextSetBit(0); t >= 0; t = adj[u].nextSetBit(t + 1)) {
+	  int a = alias(t);
+	  if (precolored(a) || colored.get(a))
+	    ok.clear(color[a]);
+	}
+	if (ok.isEmpty()) {
+	  spilled.set(u);
+	} else {
+	  colored.set(u);
+	  color[u] = ok.nextSetBit(0);
+	}
+      }
+      for (int u = coalesced.nextSetBit(0); u >= 0; u = coalesced.nextSetBit(u + 1))
+	color[u] = color[alias(u)];
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Queries (for CodeGen)
+  //-----------------------------------------------------------------
+  //
+
+  // The register of a var (null if it is spilled, or not a var)
+  //
+  X86.Reg reg(Object v) {
+    return isVar(v) ? regs.get(v.toString()) : null;
+  }
+
+  // The callee-save registers in use (to be saved on entry)
+  //
+  List<X86.Reg> calleeUsed() {
+    List<X86.Reg> used = new ArrayList<X86.Reg>();
+    for (X86.Reg r: CALLEE)
+      if (regs.containsValue(r))
+	used.add(r);
+    return used;
+  }
+
+  // The caller-save registers holding vars that are live across the
+  // call at i (to be saved around it)
+  //
+  List<X86.Reg> liveAcross(int i) {
+    List<X86.Reg> live = new ArrayList<X86.Reg>();
+    for (int v = liveOut[i].nextSetBit(0); v >= 0; v = liveOut[i].nextSetBit(v + 1)) {
+      X86.Reg r = regs.get(vars.get(v));
+      if (r != null && !def[i].get(v) && Arrays.asList(CALLER).contains(r))
+	live.add(r);
+    }
+    return live;
+  }
+
+  // The locals (not params) that are read before being set, and have a
+  // register (to be cleared on entry)
+  //
+  List<X86.Reg> uninitialized() {
+    List<X86.Reg> list = new ArrayList<X86.Reg>();
+    if (func.code.length == 0)
+      return list;
+    BitSet in = liveIn[0];
+    for (int v = in.nextSetBit(func.params.length); v >= 0; v = in.nextSetBit(v + 1))
+      if (regs.get(vars.get(v)) != null)
+	list.add(regs.get(vars.get(v)));
+    return list;
+  }
+}
@@ -137,36 +137,78 @@ class X86 {
     }
   }
 
+  // Instructions
+  //------------------------------------------------------------------------
+
+  // An emitted line: an instruction or directive (op, with up to two
+  // operands), a label, or other text (a comment, or string data)
+  //
+  static class Inst {
+    String op;
+    Operand rand1, rand2;
+    Label label;
+    String text;
+
+    Inst(String op, Operand rand1, Operand rand2) {
+      this.op=op; this.rand1=rand1; this.rand2=rand2;
+    }
+    Inst(Label label) { this.label=label; }
+    Inst(String text) { this.text=text; }
+
+    public String toString() {
+      if (label != null)
+	return label + ":\n";
+      if (op == null)
+	return text;
+      return "\t" + op + (rand1 != null ? " " + rand1 : "")
+	+ (rand2 != null ? "," + rand2 : "") + "\n";
+    }
+  }
+
   // Code-Emitting Routines
   //------------------------------------------------------------------------
+  //
+  // Lines are buffered in 'code' (see Peephole) until flush() prints
+  // them; instCnt counts the instructions printed.
 
   static int instCnt = 0;
+  static List<Inst> code = new ArrayList<Inst>();
+
+  static void flush() {
+    for (Inst c: code) {
+      System.out.print(c);
+      if (c.op != null)
+	instCnt++;
+    }
+    code.clear();
+  }
 
   static void emit(String s) {
-    System.out.println(s);
+    code.add(new Inst(s + "\n"));
+  }
+
+  static void emitText(String s) {
+    code.add(new Inst(s));
   }
 
   static void emit0(String op) {
-    System.out.print("\t" + op + "\n");
-    instCnt++;
+    code.add(new Inst(op, null, null));
   }
 
   static void emit1(String op, Operand rand1) {
-    System.out.print("\t" + op + " " + rand1 + "\n");
-    instCnt++;
+    code.add(new Inst(op, rand1, null));
   }
 
   static void emit2(String op, Operand rand1, Operand rand2) {
-    System.out.print("\t" + op + " " + rand1 + "," + rand2 + "\n");
-    instCnt++;
+    code.add(new Inst(op, rand1, rand2));
   }
 
   static void emitLabel(Label lab) {
-    System.out.print(lab + ":\n");
+    code.add(new Inst(lab));
   }
 
   static void emitString(String s) {
-    System.out.print("\t.asciz \"" + s + "\"\n");
+    code.add(new Inst("\t.asciz \"" + s + "\"\n"));
   }
     
   // Adjust size of register operand
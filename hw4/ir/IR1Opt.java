@@ -0,0 +1,357 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// IR1 to IR1 optimizer.
+//
+// Usage: java ir.IR1Opt [-p] <file.ir> ...
+//
+// Prints each program's instruction count before and after optimizing
+// (and, with -p, the optimized program). IR1Interp --opt and CodeGen
+// --opt run it on a program before executing or compiling it.
+//
+// Each function is rewritten by the following passes, repeated until
+// its code stops shrinking:
+//
+//  - propagation: within a basic block (a label starts a new one), a
+//    use of a variable that holds a known copy of another variable or
+//    of a literal is replaced by it, and Binops, Unops and CJumps whose
+//    operands are then all literals are folded. A folded Binop or Unop
+//    becomes a Move of its value; a folded CJump becomes a Jump, or is
+//    dropped. Literals are not put in place of an Addr's base.
+//
+//  - branches: instructions after a Jump or Return that no label can
+//    reach are dropped, as are jumps to the label that follows them
+//    and labels that nothing jumps to.
+//
+//  - dead temps: Moves, Binops and Unops into temps that are never
+//    used are dropped (but not a division that might trap).
+//
+// Folding computes what the interpreter does: 32-bit wrap-around
+// arithmetic, and comparisons of ints (and, in a CJump, == and != of
+// booleans). Division is folded only by a nonzero divisor, and never
+// for MIN_VALUE / -1, which traps on x86.
+//
+package ir;
+import java.io.*;
+import java.util.*;
+import ir.IR1.*;
+
+public class IR1Opt {
+  static final int MAXPASS = 10;
+
+  public static Program optimize(Program p) {
+    Func[] funcs = new Func[p.funcs.length];
+    for (int i = 0; i < funcs.length; i++)
+      funcs[i] = optimize(p.funcs[i]);
+    return new Program(funcs);
+  }
+
+  public static Func optimize(Func f) {
+    List<Inst> code = Arrays.asList(f.code);
+    for (int pass = 0; pass < MAXPASS; pass++) {
+      int size = code.size();
+      code = deadTemps(branches(propagate(code)));
+      if (code.size() == size && pass > 0)
+	break;
+    }
+    return new Func(f.gname, f.params, f.locals, code.toArray(new Inst[0]));
+  }
+
+  public static int size(Program p) {
+    int n = 0;
+    for (Func f: p.funcs)
+      n += f.code.length;
+    return n;
+  }
+
+  //-----------------------------------------------------------------
+  // Propagation and Folding
+  //-----------------------------------------------------------------
+  //
+
+  static List<Inst> propagate(List<Inst> code) {
+    HashMap<Src, Src> copies = new HashMap<Src, Src>();
+    List<Inst> out = new ArrayList<Inst>();
+    for (Inst n: code) {
+      if (n instanceof LabelDec) {
+	copies.clear();
+	out.add(n);
+      } else if (n instanceof Binop) {
+	Binop b = (Binop) n;
+	Src s1 = use(copies, b.src1), s2 = use(copies, b.src2);
+	Src v = fold(b.op, s1, s2);
+	kill(copies, b.dst);
+	if (v != null) {
+	  out.add(new Move(b.dst, v));
+	  copies.put((Src) b.dst, v);
+	} else {
+	  out.add(new Binop(b.op, b.dst, s1, s2));
+	}
+      } else if (n instanceof Unop) {
+	Unop u = (Unop) n;
+	Src s = use(copies, u.src);
+	Src v = fold(u.op, s);
+	kill(copies, u.dst);
+	if (v != null) {
+	  out.add(new Move(u.dst, v));
+	  copies.put((Src) u.dst, v);
+	} else {
+	  out.add(new Unop(u.op, u.dst, s));
+	}
+      } else if (n instanceof Move) {
+	Move m = (Move) n;
+	Src s = use(copies, m.src);
+	if (s.equals(m.dst))
+	  continue;			// x = x
+	kill(copies, m.dst);
+	copies.put((Src) m.dst, s);
+	out.add(new Move(m.dst, s));
+      } else if (n instanceof Load) {
+	Load l = (Load) n;
+	Addr a = addr(copies, l.addr);
+	kill(copies, l.dst);
+	out.add(new Load(l.dst, a));
+      } else if (n instanceof Store) {
+	Store s = (Store) n;
+	out.add(new Store(addr(copies, s.addr), use(copies, s.src)));
+      } else if (n instanceof Call) {
+	Call c = (Call) n;
+	Src[] args = new Src[c.args.length];
+	for (int i = 0; i < args.length; i++)
+	  args[i] = use(copies, c.args[i]);
+	if (c.rdst != null)
+	  kill(copies, c.rdst);
+	out.add(new Call(c.gname, args, c.rdst));
+      } else if (n instanceof Return) {
+	Return r = (Return) n;
+	out.add(r.val == null ? r : new Return(use(copies, r.val)));
+      } else if (n instanceof CJump) {
+	CJump j = (CJump) n;
+	Src s1 = use(copies, j.src1), s2 = use(copies, j.src2);
+	Boolean taken = test(j.op, s1, s2);
+	if (taken == null)
+	  out.add(new CJump(j.op, s1, s2, j.lab));
+	else if (taken)
+	  out.add(new Jump(j.lab));
+      } else {
+	out.add(n);
+      }
+    }
+    return out;
+  }
+
+  static boolean isVar(Src s) {
+    return s instanceof Id || s instanceof Temp;
+  }
+
+  // The known value of 's' (or 's' itself)
+  //
+  static Src use(Map<Src, Src> copies, Src s) {
+    if (!isVar(s))
+      return s;
+    Src v = copies.get(s);
+    return v == null ? s : v;
+  }
+
+  // An address, with only a variable put in place of its base
+  //
+  static Addr addr(Map<Src, Src> copies, Addr a) {
+    Src b = use(copies, a.base);
+    return isVar(b) && b != a.base ? new Addr(b, a.offset) : a;
+  }
+
+  // Forget what is known about 'd', and the copies of it
+  //
+  static void kill(Map<Src, Src> copies, Dest d) {
+    copies.remove(d);
+    copies.values().removeIf(v -> v.equals(d));
+  }
+
+  public static Src fold(BOP op, Src s1, Src s2) {
+    if (s1 instanceof IntLit && s2 instanceof IntLit) {
+      int a = ((IntLit) s1).i, b = ((IntLit) s2).i;
+      if (op == AOP.ADD) return new IntLit(a + b);
+      if (op == AOP.SUB) return new IntLit(a - b);
+      if (op == AOP.MUL) return new IntLit(a * b);
+      if (op == AOP.DIV)
+	return safeDivisor(a, b) ? new IntLit(a / b) : null;
+      if (op instanceof ROP)
+	return new BoolLit(compare((ROP) op, a, b));
+    }
+    if (s1 instanceof BoolLit && s2 instanceof BoolLit) {
+      boolean a = ((BoolLit) s1).b, b = ((BoolLit) s2).b;
+      if (op == AOP.AND) return new BoolLit(a && b);
+      if (op == AOP.OR)  return new BoolLit(a || b);
+    }
+    return null;
+  }
+
+  public static Src fold(UOP op, Src s) {
+    if (op == UOP.NEG && s instanceof IntLit)
+      return new IntLit(-((IntLit) s).i);
+    if (op == UOP.NOT && s instanceof BoolLit)
+      return new BoolLit(!((BoolLit) s).b);
+    return null;
+  }
+
+  // Whether a CJump is taken (null if not known)
+  //
+  public static Boolean test(ROP op, Src s1, Src s2) {
+    if (s1 instanceof IntLit && s2 instanceof IntLit)
+      return compare(op, ((IntLit) s1).i, ((IntLit) s2).i);
+    if (s1 instanceof BoolLit && s2 instanceof BoolLit) {
+      boolean a = ((BoolLit) s1).b, b = ((BoolLit) s2).b;
+      if (op == ROP.EQ) return a == b;
+      if (op == ROP.NE) return a != b;
+    }
+    return null;
+  }
+
+  static boolean compare(ROP op, int a, int b) {
+    switch (op) {
+    case EQ: return a == b;
+    case NE: return a != b;
+    case LT: return a < b;
+    case LE: return a <= b;
+    case GT: return a > b;
+    default: return a >= b;
+    }
+  }
+
+  static boolean safeDivisor(int a, int b) {
+    return b != 0 && !(a == Integer.MIN_VALUE && b == -1);
+  }
+
+  //-----------------------------------------------------------------
+  // Branches
+  //-----------------------------------------------------------------
+  //
+
+  static List<Inst> branches(List<Inst> code) {
+    List<Inst> out = new ArrayList<Inst>();
+    boolean reachable = true;
+    for (int i = 0; i < code.size(); i++) {
+      Inst n = code.get(i);
+      if (n instanceof LabelDec)
+	reachable = true;
+      if (!reachable)
+	continue;
+      if (n instanceof Jump || n instanceof Return)
+	reachable = false;
+      Label target = n instanceof Jump ? ((Jump) n).lab
+	: n instanceof CJump ? ((CJump) n).lab : null;
+      if (target != null && follows(code, i + 1, target)) {
+	reachable = true;
+	continue;
+      }
+      out.add(n);
+    }
+
+    HashSet<String> targets = new HashSet<String>();
+    for (Inst n: out) {
+      if (n instanceof Jump)
+	targets.add(((Jump) n).lab.name);
+      else if (n instanceof CJump)
+	targets.add(((CJump) n).lab.name);
+    }
+    out.removeIf(n -> n instanceof LabelDec
+		 && !targets.contains(((LabelDec) n).lab.name));
+    return out;
+  }
+
+  // Whether label 'l' is among the labels starting at i
+  //
+  static boolean follows(List<Inst> code, int i, Label l) {
+    for (; i < code.size() && code.get(i) instanceof LabelDec; i++)
+      if (((LabelDec) code.get(i)).lab.name.equals(l.name))
+	return true;
+    return false;
+  }
+
+  //-----------------------------------------------------------------
+  // Dead Temps
+  //-----------------------------------------------------------------
+  //
+
+  static List<Inst> deadTemps(List<Inst> code) {
+    List<Inst> out = new ArrayList<Inst>(code);
+    boolean changed = true;
+    while (changed) {
+      HashSet<Src> used = new HashSet<Src>();
+      for (Inst n: out)
+	uses(n, used);
+      changed = out.removeIf(n -> {
+	  Dest d = n instanceof Move ? ((Move) n).dst
+	    : n instanceof Unop ? ((Unop) n).dst
+	    : n instanceof Binop && !traps((Binop) n) ? ((Binop) n).dst : null;
+	  return d instanceof Temp && !used.contains(d);
+	});
+    }
+    return out;
+  }
+
+  public static boolean traps(Binop b) {
+    return b.op == AOP.DIV
+      && !(b.src1 instanceof IntLit && b.src2 instanceof IntLit
+	   && safeDivisor(((IntLit) b.src1).i, ((IntLit) b.src2).i))
+      && !(b.src2 instanceof IntLit && ((IntLit) b.src2).i != 0
+	   && ((IntLit) b.src2).i != -1);
+  }
+
+  static void uses(Inst n, Set<Src> used) {
+    if (n instanceof Binop) {
+      used.add(((Binop) n).src1);
+      used.add(((Binop) n).src2);
+    } else if (n instanceof Unop) {
+      used.add(((Unop) n).src);
+    } else if (n instanceof Move) {
+      used.add(((Move) n).src);
+    } else if (n instanceof Load) {
+      used.add(((Load) n).addr.base);
+    } else if (n instanceof Store) {
+      used.add(((Store) n).addr.base);
+      used.add(((Store) n).src);
+    } else if (n instanceof Call) {
+      used.addAll(Arrays.asList(((Call) n).args));
+    } else if (n instanceof Return) {
+      if (((Return) n).val != null)
+	used.add(((Return) n).val);
+    } else if (n instanceof CJump) {
+      used.add(((CJump) n).src1);
+      used.add(((CJump) n).src2);
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Main
+  //-----------------------------------------------------------------
+  //
+
+  public static void main(String [] args) throws Exception {
+    boolean print = false;
+    int before = 0, after = 0, files = 0;
+    for (String arg: args) {
+      if (arg.equals("-p")) {
+	print = true;
+	continue;
+      }
+      Program p = arg.endsWith(".irb") ? IR1Bin.read(arg) : IR1Bin.parse(arg);
+      Program q = optimize(p);
+      int n = size(p), m = size(q);
+      System.out.printf("%-24s %6d -> %6d insts%n", arg, n, m);
+      if (print)
+	System.out.print(q);
+      before += n;
+      after += m;
+      files++;
+    }
+    if (files == 0)
+      System.out.println("Usage: java ir.IR1Opt [-p] <file.ir> ...");
+    else if (files > 1)
+      System.out.printf("%-24s %6d -> %6d insts (%.1f%% fewer)%n", "total", before,
+			after, before == 0 ? 0.0 : 100.0 * (before - after) / before);
+  }
+}
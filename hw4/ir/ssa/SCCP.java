@@ -0,0 +1,294 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+
+// Sparse conditional constant propagation (Wegman and Zadeck) on SSA.
+//
+// Every SSA name starts at TOP (no value seen yet) and can only go down,
+// to a constant (an int or bool literal) and then to BOTTOM (not a
+// constant). Two worklists drive it: CFG edges found executable, whose
+// target block's phis (and, the first time, its instructions) are
+// evaluated; and names whose value went down, whose uses in executable
+// blocks are evaluated again. A phi meets its args over the executable
+// edges only; a CJump with constant operands makes only one of its
+// edges executable. Folding is IR1Opt's (32-bit wrap-around, and no
+// division that could trap); Loads, Calls and the vars' entry values
+// are BOTTOM.
+//
+// Then the code is rewritten: blocks with no executable edge into them
+// are marked dead, phi args of edges that are not executable dropped,
+// constant uses replaced by their literal (but not an address's base),
+// the defs of constants turned into Moves of them (for removeDead to
+// delete, unless something still needs the name), and decided CJumps
+// turned into Jumps, or deleted.
+//
+package ir.ssa;
+import java.util.*;
+import ir.*;
+import ir.cfg.*;
+import ir.cfg.CFG.Block;
+
+public class SCCP {
+  static final Object TOP = "TOP", BOTTOM = "BOTTOM";
+
+  final SSA ssa;
+  final HashMap<Object, Object> value = new HashMap<Object, Object>();
+  final HashMap<Object, List<int[]>> uses = new HashMap<Object, List<int[]>>(); // {block, i}; i < 0: phi -1-i
+  final HashSet<Long> executable = new HashSet<Long>();	// edges, as from << 32 | to
+  final boolean[] visited;
+  final ArrayDeque<long[]> flowWL = new ArrayDeque<long[]>();	// {from, to}; from -1: entry
+  final ArrayDeque<Object> ssaWL = new ArrayDeque<Object>();
+  public int constants = 0, branches = 0, deadBlocks = 0;
+
+  SCCP(SSA ssa) {
+    this.ssa = ssa;
+    visited = new boolean[ssa.cfg.size()];
+  }
+
+  // Run on 'ssa'; return the pass (for its counts)
+  //
+  public static SCCP run(SSA ssa) {
+    SCCP p = new SCCP(ssa);
+    p.solve();
+    p.rewrite();
+    return p;
+  }
+
+  //-----------------------------------------------------------------
+  // Solving
+  //-----------------------------------------------------------------
+  //
+
+  void solve() {
+    List<IR1.Src> srcs = new ArrayList<IR1.Src>();
+    for (Block b: ssa.cfg.blocks) {
+      if (ssa.dead[b.id])
+	continue;
+      List<SSA.Phi> ps = ssa.phis.get(b.id);
+      for (int k = 0; k < ps.size(); k++) {
+	value.put(ps.get(k).dst, TOP);
+	for (IR1.Src a: ps.get(k).args)
+	  if (SSA.isVar(a))
+	    uses.computeIfAbsent(a, x -> new ArrayList<int[]>()).add(new int[] { b.id, -1 - k });
+      }
+      List<IR1.Inst> insts = ssa.code.get(b.id);
+      for (int i = 0; i < insts.size(); i++) {
+	IR1.Dest d = Liveness.def(insts.get(i));
+	if (d != null)
+	  value.put(d, TOP);
+	srcs.clear();
+	Liveness.uses(insts.get(i), srcs);
+	for (IR1.Src s: srcs)
+	  uses.computeIfAbsent(s, x -> new ArrayList<int[]>()).add(new int[] { b.id, i });
+      }
+    }
+
+    flowWL.add(new long[] { -1, 0 });
+    while (!flowWL.isEmpty() || !ssaWL.isEmpty()) {
+      while (!flowWL.isEmpty()) {
+	long[] e = flowWL.poll();
+	if (!executable.add(e[0] << 32 | e[1]))
+	  continue;
+	int b = (int) e[1];
+	for (int k = 0; k < ssa.phis.get(b).size(); k++)
+	  visit(b, -1 - k);
+	if (!visited[b]) {
+	  visited[b] = true;
+	  List<IR1.Inst> insts = ssa.code.get(b);
+	  for (int i = 0; i < insts.size(); i++)
+	    visit(b, i);
+	  IR1.Inst last = insts.isEmpty() ? null : insts.get(insts.size() - 1);
+	  if (!(last instanceof IR1.Jump || last instanceof IR1.CJump))
+	    for (Block s: ssa.cfg.blocks[b].succs)
+	      flow(b, s.id);
+	}
+      }
+      while (!ssaWL.isEmpty()) {
+	List<int[]> us = uses.get(ssaWL.poll());
+	if (us != null)
+	  for (int[] u: us)
+	    if (visited[u[0]])
+	      visit(u[0], u[1]);
+      }
+    }
+  }
+
+  void flow(int from, int to) {
+    flowWL.add(new long[] { from, to });
+  }
+
+  boolean isExecutable(Block from, Block to) {
+    return executable.contains((long) from.id << 32 | to.id);
+  }
+
+  // Evaluate phi -1-i, or instruction i, of block b
+  //
+  void visit(int b, int i) {
+    Block blk = ssa.cfg.blocks[b];
+    if (i < 0) {
+      SSA.Phi p = ssa.phis.get(b).get(-1 - i);
+      Object v = TOP;
+      for (int k = 0; k < p.args.length; k++) {
+	boolean entry = k == blk.preds.size();
+	if (entry ? executable.contains(-1L << 32 | 0) : isExecutable(blk.preds.get(k), blk))
+	  v = meet(v, value(p.args[k]));
+      }
+      lower(p.dst, v);
+      return;
+    }
+    IR1.Inst c = ssa.code.get(b).get(i);
+    if (c instanceof IR1.Binop) {
+      IR1.Binop n = (IR1.Binop) c;
+      Object a = value(n.src1), d = value(n.src2);
+      lower(n.dst, a == BOTTOM || d == BOTTOM ? BOTTOM : a == TOP || d == TOP ? TOP
+	    : constant(IR1Opt.fold(n.op, (IR1.Src) a, (IR1.Src) d)));
+    } else if (c instanceof IR1.Unop) {
+      IR1.Unop n = (IR1.Unop) c;
+      Object a = value(n.src);
+      lower(n.dst, a == BOTTOM || a == TOP ? a : constant(IR1Opt.fold(n.op, (IR1.Src) a)));
+    } else if (c instanceof IR1.Move) {
+      lower(((IR1.Move) c).dst, value(((IR1.Move) c).src));
+    } else if (c instanceof IR1.Load) {
+      lower(((IR1.Load) c).dst, BOTTOM);
+    } else if (c instanceof IR1.Call) {
+      if (((IR1.Call) c).rdst != null)
+	lower(((IR1.Call) c).rdst, BOTTOM);
+    } else if (c instanceof IR1.Jump) {
+      flow(b, ssa.target(((IR1.Jump) c).lab).id);
+    } else if (c instanceof IR1.CJump) {
+      IR1.CJump n = (IR1.CJump) c;
+      Boolean taken = outcome(n);
+      if (taken == null && (value(n.src1) == TOP || value(n.src2) == TOP))
+	return;
+      if (taken == null || taken)
+	flow(b, ssa.target(n.lab).id);
+      if ((taken == null || !taken) && b + 1 < ssa.cfg.size())
+	flow(b, b + 1);
+    }
+  }
+
+  // Whether a CJump is taken (null if not known)
+  //
+  Boolean outcome(IR1.CJump n) {
+    Object a = value(n.src1), d = value(n.src2);
+    if (a == TOP || a == BOTTOM || d == TOP || d == BOTTOM)
+      return null;
+    return IR1Opt.test(n.op, (IR1.Src) a, (IR1.Src) d);
+  }
+
+  Object value(IR1.Src s) {
+    if (s instanceof IR1.IntLit || s instanceof IR1.BoolLit)
+      return s;
+    if (!SSA.isVar(s))
+      return BOTTOM;
+    Object v = value.get(s);
+    return v == null ? BOTTOM : v;	// a var's entry value
+  }
+
+  static Object constant(IR1.Src s) {
+    return s == null ? BOTTOM : s;
+  }
+
+  static Object meet(Object a, Object b) {
+    if (a == TOP) return b;
+    if (b == TOP) return a;
+    if (a == BOTTOM || b == BOTTOM) return BOTTOM;
+    return same((IR1.Src) a, (IR1.Src) b) ? a : BOTTOM;
+  }
+
+  static boolean same(IR1.Src a, IR1.Src b) {
+    if (a instanceof IR1.IntLit && b instanceof IR1.IntLit)
+      return ((IR1.IntLit) a).i == ((IR1.IntLit) b).i;
+    if (a instanceof IR1.BoolLit && b instanceof IR1.BoolLit)
+      return ((IR1.BoolLit) a).b == ((IR1.BoolLit) b).b;
+    return false;
+  }
+
+  // Lower d's value to its meet with v (values only go down)
+  //
+  void lower(IR1.Dest d, Object v) {
+    Object old = value.get(d);
+    if (old == null)
+      old = TOP;
+    Object m = meet(old, v);
+    if (old == TOP ? m != TOP : old != BOTTOM && m == BOTTOM) {
+      value.put(d, m);
+      ssaWL.add(d);
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Rewriting
+  //-----------------------------------------------------------------
+  //
+
+  void rewrite() {
+    for (Block b: ssa.cfg.blocks) {
+      if (ssa.dead[b.id])
+	continue;
+      if (!visited[b.id]) {
+	ssa.dead[b.id] = true;
+	deadBlocks++;
+	continue;
+      }
+      for (SSA.Phi p: ssa.phis.get(b.id))
+	for (int k = 0; k < b.preds.size(); k++)
+	  if (!isExecutable(b.preds.get(k), b))
+	    p.args[k] = null;
+      for (Iterator<SSA.Phi> it = ssa.phis.get(b.id).iterator(); it.hasNext(); ) {
+	SSA.Phi p = it.next();
+	for (int k = 0; k < p.args.length; k++)
+	  if (p.args[k] != null)
+	    p.args[k] = use(p.args[k]);
+      }
+      List<IR1.Inst> insts = ssa.code.get(b.id);
+      for (int i = 0; i < insts.size(); i++) {
+	IR1.Inst c = insts.get(i);
+	IR1.Dest d = Liveness.def(c);
+	Object v = d == null ? null : value.get(d);
+	if (v instanceof IR1.Src && !(c instanceof IR1.Move && ((IR1.Move) c).src == v)) {
+	  insts.set(i, new IR1.Move(d, (IR1.Src) v));
+	  constants++;
+	} else if (c instanceof IR1.CJump) {
+	  boolean to = isExecutable(b, ssa.target(((IR1.CJump) c).lab));
+	  boolean past = b.id + 1 < ssa.cfg.size() && isExecutable(b, ssa.cfg.blocks[b.id+1]);
+	  Boolean taken = to == past ? null : to;
+	  if (taken == null)
+	    insts.set(i, SSA.map(c, this::use, null));
+	  else {
+	    insts.set(i, taken ? new IR1.Jump(((IR1.CJump) c).lab) : null);
+	    branches++;
+	  }
+	} else if (c != null) {
+	  insts.set(i, SSA.map(c, this::use, d));
+	}
+      }
+    }
+    // a phi whose value is a constant becomes a Move at the start of
+    // its block (after its labels)
+    for (Block b: ssa.cfg.blocks) {
+      if (ssa.dead[b.id])
+	continue;
+      List<IR1.Inst> insts = ssa.code.get(b.id);
+      int at = 0;
+      while (at < insts.size() && insts.get(at) instanceof IR1.LabelDec)
+	at++;
+      for (Iterator<SSA.Phi> it = ssa.phis.get(b.id).iterator(); it.hasNext(); ) {
+	SSA.Phi p = it.next();
+	Object v = value.get(p.dst);
+	if (v instanceof IR1.Src) {
+	  it.remove();
+	  insts.add(at++, new IR1.Move(p.dst, (IR1.Src) v));
+	  constants++;
+	}
+      }
+    }
+  }
+
+  IR1.Src use(IR1.Src s) {
+    Object v = SSA.isVar(s) ? value.get(s) : null;
+    return v instanceof IR1.Src ? (IR1.Src) v : s;
+  }
+}
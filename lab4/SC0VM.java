@@ -0,0 +1,226 @@
+// This is supporting software for CS321/CS322 Compilers and Language Design.
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+
+// SC0 virtual machine.
+//
+// Usage: java SC0VM <file.sc>
+//        java SC0VM -bench [-n <runs>] <file.sc> ...
+//
+// Runs stack code as printed by SC0Gen (and read by SC0Interp.jar):
+// one "<index>. <inst>" per line, '#' lines and blank lines ignored.
+//
+// The program is assembled once into an int[], two ints per
+// instruction (opcode, operand), with each jump's "+n" turned into its
+// absolute target; it then runs in one loop with a single switch, on an
+// int[] operand stack and an int[] variable array. The stack's size is
+// the program's maximum depth, found (and checked) at assembly time.
+//
+// Instructions (a and b are the second and top stack entries):
+//   CONST n   push n              LOAD i    push vars[i]
+//   STORE i   pop into vars[i]    PRINT     pop and print
+//   ADD SUB MUL DIV AND OR        pop b, a; push a op b
+//   NEG       negate the top      SWAP      swap a and b
+//   GOTO +n   jump n instructions ahead (or back, with -n)
+//   IFZ +n    pop; jump if zero
+//   IFEQ IFNE IFLT IFLE IFGT IFGE +n   pop b, a; jump if a op b
+//
+// With -bench, each program is run (output discarded) once to warm up,
+// then <runs> (5) more times, and the best time is reported with the
+// number of instructions executed and the throughput, for comparing
+// with the IR1 engines (java IR1Bench, in hw3; bench/count.sc here is
+// the same loop as hw3/bench/count.ir).
+//
+import java.io.*;
+import java.util.*;
+
+class SC0VM {
+
+  static class VMException extends Exception {
+    public VMException(String msg) { super(msg); }
+  }
+
+  static final int CONST = 0, LOAD = 1, STORE = 2, PRINT = 3, ADD = 4, SUB = 5,
+    MUL = 6, DIV = 7, AND = 8, OR = 9, NEG = 10, SWAP = 11, GOTO = 12, IFZ = 13,
+    IFEQ = 14, IFNE = 15, IFLT = 16, IFLE = 17, IFGT = 18, IFGE = 19;
+
+  static final String[] NAMES = { "CONST", "LOAD", "STORE", "PRINT", "ADD", "SUB",
+    "MUL", "DIV", "AND", "OR", "NEG", "SWAP", "GOTO", "IFZ", "IFEQ", "IFNE",
+    "IFLT", "IFLE", "IFGT", "IFGE" };
+
+  // Operand stack entries popped and pushed by each opcode
+  //
+  static final int[] POPS =   { 0, 0, 1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 0, 1, 2, 2, 2, 2, 2, 2 };
+  static final int[] PUSHES = { 1, 1, 0, 0, 1, 1, 1, 1, 1, 1, 1, 2, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+  final int[] code;		// opcode, operand; a jump's operand is
+				// the target's index in 'code'
+  final int[] stack;
+  final int[] vars;
+  long executed;		// instructions executed by the last run()
+
+  // Assemble 'insts' (without their "<index>. " prefixes)
+  //
+  SC0VM(List<String> insts) throws VMException {
+    int n = insts.size();
+    code = new int[2 * n];
+    int nvars = 0;
+    for (int pc = 0; pc < n; pc++) {
+      String[] f = insts.get(pc).trim().split("\\s+");
+      int op = Arrays.asList(NAMES).indexOf(f[0]);
+      if (op < 0)
+	throw new VMException(pc + ": unknown instruction: " + insts.get(pc));
+      boolean hasArg = op <= STORE || op >= GOTO;
+      if (f.length != (hasArg ? 2 : 1))
+	throw new VMException(pc + ": bad operands: " + insts.get(pc));
+      int arg = hasArg ? Integer.parseInt(f[1].startsWith("+") ? f[1].substring(1) : f[1]) : 0;
+      if (op >= GOTO) {
+	arg += pc;
+	if (arg < 0 || arg > n)
+	  throw new VMException(pc + ": jump out of range: " + insts.get(pc));
+	arg *= 2;
+      } else if (op == LOAD || op == STORE) {
+	if (arg < 0)
+	  throw new VMException(pc + ": bad var index: " + insts.get(pc));
+	nvars = Math.max(nvars, arg + 1);
+      }
+      code[2*pc] = op;
+      code[2*pc+1] = arg;
+    }
+    stack = new int[Math.max(maxDepth(), 1)];
+    vars = new int[nvars];
+  }
+
+  // The deepest the stack gets, following every path from the start;
+  // the depth at an instruction must not depend on the path to it
+  //
+  int maxDepth() throws VMException {
+    int n = code.length / 2;
+    int[] depth = new int[n + 1];
+    Arrays.fill(depth, -1);
+    ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+    depth[0] = 0;
+    work.push(0);
+    int max = 0;
+    while (!work.isEmpty()) {
+      int pc = work.pop();
+      if (pc == n)
+	continue;
+      int op = code[2*pc];
+      int d = depth[pc] - POPS[op];
+      if (d < 0)
+	throw new VMException(pc + ": stack underflow at " + NAMES[op]);
+      d += PUSHES[op];
+      max = Math.max(max, d);
+      int[] succs = op == GOTO ? new int[] { code[2*pc+1] / 2 }
+	: op >= IFZ ? new int[] { pc + 1, code[2*pc+1] / 2 } : new int[] { pc + 1 };
+      for (int s: succs) {
+	if (depth[s] < 0) {
+	  depth[s] = d;
+	  work.push(s);
+	} else if (depth[s] != d) {
+	  throw new VMException(s + ": stack depth " + depth[s] + " or " + d);
+	}
+      }
+    }
+    return max;
+  }
+
+  // Run the program from the start, printing to 'out'
+  //
+  void run(PrintStream out) {
+    final int[] code = this.code, stack = this.stack, vars = this.vars;
+    Arrays.fill(vars, 0);
+    int pc = 0, sp = 0;		// sp: number of entries on the stack
+    long count = 0;
+    while (pc < code.length) {
+      int arg = code[pc+1];
+      count++;
+      switch (code[pc]) {
+      case CONST: stack[sp++] = arg; break;
+      case LOAD:  stack[sp++] = vars[arg]; break;
+      case STORE: vars[arg] = stack[--sp]; break;
+      case PRINT: out.println(stack[--sp]); break;
+      case ADD:   sp--; stack[sp-1] += stack[sp]; break;
+      case SUB:   sp--; stack[sp-1] -= stack[sp]; break;
+      case MUL:   sp--; stack[sp-1] *= stack[sp]; break;
+      case DIV:   sp--; stack[sp-1] /= stack[sp]; break;
+      case AND:   sp--; stack[sp-1] &= stack[sp]; break;
+      case OR:    sp--; stack[sp-1] |= stack[sp]; break;
+      case NEG:   stack[sp-1] = -stack[sp-1]; break;
+      case SWAP: {
+	int t = stack[sp-1];
+	stack[sp-1] = stack[sp-2];
+	stack[sp-2] = t;
+	break;
+      }
+      case GOTO:  pc = arg; continue;
+      case IFZ:   if (stack[--sp] == 0) { pc = arg; continue; } break;
+      case IFEQ:  sp -= 2; if (stack[sp] == stack[sp+1]) { pc = arg; continue; } break;
+      case IFNE:  sp -= 2; if (stack[sp] != stack[sp+1]) { pc = arg; continue; } break;
+      case IFLT:  sp -= 2; if (stack[sp] <  stack[sp+1]) { pc = arg; continue; } break;
+      case IFLE:  sp -= 2; if (stack[sp] <= stack[sp+1]) { pc = arg; continue; } break;
+      case IFGT:  sp -= 2; if (stack[sp] >  stack[sp+1]) { pc = arg; continue; } break;
+      case IFGE:  sp -= 2; if (stack[sp] >= stack[sp+1]) { pc = arg; continue; } break;
+      }
+      pc += 2;
+    }
+    executed = count;
+  }
+
+  // The instructions of an .sc file
+  //
+  static List<String> read(String file) throws IOException {
+    List<String> insts = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#"))
+	continue;
+      int dot = line.indexOf(". ");
+      insts.add(dot >= 0 ? line.substring(dot + 2) : line);
+    }
+    in.close();
+    return insts;
+  }
+
+  public static void main(String [] args) throws Exception {
+    if (args.length == 1) {
+      PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false);
+      new SC0VM(read(args[0])).run(out);
+      out.flush();
+    } else if (args.length > 1 && args[0].equals("-bench")) {
+      int runs = 5, i = 1;
+      if (args[1].equals("-n")) {
+	runs = Integer.parseInt(args[2]);
+	i = 3;
+      }
+      for (; i < args.length; i++)
+	bench(args[i], runs);
+    } else {
+      System.out.println("Usage: java SC0VM <file.sc>\n" +
+			 "       java SC0VM -bench [-n <runs>] <file.sc> ...");
+    }
+  }
+
+  static void bench(String file, int runs) throws Exception {
+    long t0 = System.nanoTime();
+    SC0VM vm = new SC0VM(read(file));
+    long asm = System.nanoTime() - t0;
+    PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i <= runs; i++) {
+      long t1 = System.nanoTime();
+      vm.run(out);
+      long t = System.nanoTime() - t1;
+      if (i > 0)
+	best = Math.min(best, t);
+    }
+    System.out.printf("%s: %d insts, stack %d, %d vars; assembled in %.2f ms%n",
+		      file, vm.code.length / 2, vm.stack.length, vm.vars.length, asm / 1e6);
+    System.out.printf("  %9.2f ms  %d executed  %.1f M insts/s%n", best / 1e6,
+		      vm.executed, vm.executed / (best / 1e3));
+  }
+}
@@ -0,0 +1,26 @@
+# Stack Code (SC0)
+#
+# Benchmark: a tight counting loop (as hw3/bench/count.ir).
+
+0. CONST 0
+1. STORE 0
+2. CONST 0
+3. STORE 1
+4. LOAD 0
+5. CONST 10000000
+6. IFLT +3
+7. CONST 0
+8. GOTO +2
+9. CONST 1
+10. IFZ +10
+11. LOAD 1
+12. LOAD 0
+13. ADD
+14. STORE 1
+15. LOAD 0
+16. CONST 1
+17. ADD
+18. STORE 0
+19. GOTO -15
+20. LOAD 1
+21. PRINT
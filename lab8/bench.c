@@ -0,0 +1,27 @@
+// Timing driver for the lab8 examples.
+//
+// Usage: gcc -O2 -o bench bench.c example1.s; ./bench [n]
+//
+// Calls _f(0) n times (default 10000000) and prints its result and the
+// average time per call; for comparing the code CodeGen emits with and
+// without register allocation (--alloc=linear) or peephole optimization
+// (--peep).
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+extern int _f(int);
+
+int main(int argc, char **argv) {
+  long n = argc > 1 ? atol(argv[1]) : 10000000;
+  struct timespec t0, t1;
+  int r = 0;
+  clock_gettime(CLOCK_MONOTONIC, &t0);
+  for (long i = 0; i < n; i++)
+    r = _f(0);
+  clock_gettime(CLOCK_MONOTONIC, &t1);
+  double ns = (t1.tv_sec - t0.tv_sec) * 1e9 + (t1.tv_nsec - t0.tv_nsec);
+  printf("_f(0) = %d: %.1f ns/call (%ld calls)\n", r, ns / n, n);
+  return 0;
+}